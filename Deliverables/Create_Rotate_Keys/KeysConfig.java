@@ -17,35 +17,29 @@ import com.oracle.bmc.keymanagement.requests.DisableKeyRequest;
 import com.oracle.bmc.keymanagement.requests.EnableKeyRequest;
 import com.oracle.bmc.keymanagement.requests.GetKeyRequest;
 import com.oracle.bmc.keymanagement.requests.GetVaultRequest;
-import com.oracle.bmc.keymanagement.requests.ListKeyVersionsRequest;
-import com.oracle.bmc.keymanagement.requests.ListKeysRequest;
 import com.oracle.bmc.keymanagement.requests.ScheduleKeyDeletionRequest;
 import com.oracle.bmc.keymanagement.requests.UpdateKeyRequest;
 import com.oracle.bmc.keymanagement.responses.CancelKeyDeletionResponse;
 import com.oracle.bmc.keymanagement.responses.CreateKeyResponse;
-import com.oracle.bmc.keymanagement.responses.CreateKeyVersionResponse;
 import com.oracle.bmc.keymanagement.responses.DisableKeyResponse;
 import com.oracle.bmc.keymanagement.responses.EnableKeyResponse;
 import com.oracle.bmc.keymanagement.responses.GetKeyResponse;
 import com.oracle.bmc.keymanagement.responses.GetVaultResponse;
-import com.oracle.bmc.keymanagement.responses.ListKeyVersionsResponse;
-import com.oracle.bmc.keymanagement.responses.ListKeysResponse;
 import com.oracle.bmc.keymanagement.responses.ScheduleKeyDeletionResponse;
 import com.oracle.bmc.keymanagement.responses.UpdateKeyResponse;
 
+import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
 public class KeysConfig {
 
 	private static final int DEFAULT_KEY_LENGTH = 32;
-	// DELAY controls the delay for waiting for a key to become available (you cannot use the management API to modify a key that is not available).
-	// Please note that the delay is inversely proportional to the number of API calls made.
-	private static final long DELAY = 10L; // 10 second delay
-	// TIMEOUT is the maximum total time to wait for the key to become available. Honestly it's just increments of DELAY rather than total time waited,
-	// especially for small DELAYs (for instance, if you somehow want a delay of 0.01 seconds...do not do this)
-	private static final long TIMEOUT = 120L; // 2 minute timeout
+	// Operations marked "NEEDS TO WAIT" go through a KeyStateAwaiter (see KMS_Crypto): you cannot use the management
+	// API to modify a key that is not available, so the awaiter polls the key state with backoff and retries the
+	// operation as soon as the key is available, for up to KeyStateAwaiter.DEFAULT_TIMEOUT_MILLIS (2 minutes).
 
 	// The KeyShape used for testing
 	private static final KeyShape TEST_KEY_SHAPE =
@@ -78,8 +72,11 @@ public class KeysConfig {
 		// Initialize the KMS Clients. KMS has three management clients, two of which are below:
 		//	  * KmsVaultClient: The client for Vault Management
 		//	  * KmsManagementClient: The client for Key Management
-		KmsVaultClient kmsVaultClient = new KmsVaultClient(provider);
-		KmsManagementClient kmsManagementClient = new KmsManagementClient(provider);
+		// The management and cryptographic clients share one KmsRateLimiter, which keeps their calls under the vault's
+		// request quota. Concurrent getVault calls for the same vault share one request (see CoalescingKmsVaultClient).
+		KmsRateLimiter kmsRateLimiter = new KmsRateLimiter();
+		KmsVaultClient kmsVaultClient = new CoalescingKmsVaultClient(provider);
+		KmsManagementClient kmsManagementClient = new RateLimitedKmsManagementClient(provider, kmsRateLimiter, vaultId);
 
 		// Set the region
 		kmsVaultClient.setRegion(region);
@@ -119,6 +116,9 @@ public class KeysConfig {
 
 			// CANCEL KEY DELETION
 			cancelKeyDeletionTest(kmsManagementClient, keyId);
+
+			// BULK ROTATION: rotates every key of the compartment
+			bulkRotationTest(kmsManagementClient, compartmentId);
 		}
 
 		// ROTATE KEY
@@ -127,6 +127,9 @@ public class KeysConfig {
 		// LIST KEY VERSION
 		listKeyVersionsTest(kmsManagementClient, keyId);
 
+		// KEY INVENTORY
+		keyInventoryTest(kmsManagementClient, compartmentId, keyId);
+
 		System.out.println("\nDone.\n");
 	}
 
@@ -161,10 +164,9 @@ public class KeysConfig {
 
 	public static void listKeysTest(KmsManagementClient kmsManagementClient, String compartmentId) {
 		System.out.println("======== ListKeys Test ========");
-		ListKeysRequest listKeysRequest = ListKeysRequest.builder().compartmentId(compartmentId).build();
-		ListKeysResponse response = kmsManagementClient.listKeys(listKeysRequest);
+		// Follows opc-next-page, so compartments with more keys than fit on one page are listed completely
 		System.out.println("ListKeys Response: ");
-		for (KeySummary key : response.getItems()) {
+		for (KeySummary key : KeyInventory.listAllKeys(kmsManagementClient, compartmentId)) {
 			System.out.println(key);
 		}
 		System.out.println();
@@ -178,23 +180,8 @@ public class KeysConfig {
 			.displayName("Test_Key_V2")
 			.freeformTags(newEmptyFreeformTag)
 			.build();
-		UpdateKeyRequest updateKeyRequest = updateKeyRequest = UpdateKeyRequest.builder().updateKeyDetails(updateKeyDetails).keyId(keyId).build();
-		UpdateKeyResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsManagementClient.updateKey(updateKeyRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
+		UpdateKeyRequest updateKeyRequest = UpdateKeyRequest.builder().updateKeyDetails(updateKeyDetails).keyId(keyId).build();
+		UpdateKeyResponse response = new KeyStateAwaiter(kmsManagementClient).call(keyId, () -> kmsManagementClient.updateKey(updateKeyRequest));
 		System.out.println("Updated Key:\n" + response.getKey() + "\n");
 	}
 
@@ -208,22 +195,7 @@ public class KeysConfig {
 			.freeformTags(newFreeformTag)
 			.build();
 		UpdateKeyRequest updateKeyRequest = UpdateKeyRequest.builder().updateKeyDetails(updateKeyDetails).keyId(keyId).build();
-		UpdateKeyResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsManagementClient.updateKey(updateKeyRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
+		UpdateKeyResponse response = new KeyStateAwaiter(kmsManagementClient).call(keyId, () -> kmsManagementClient.updateKey(updateKeyRequest));
 		System.out.println("Updated Key:\n" + response.getKey() + "\n");
 	}
 
@@ -231,22 +203,7 @@ public class KeysConfig {
 	public static void disableKeyTest(KmsManagementClient kmsManagementClient, String keyId) throws Exception {
 		System.out.println("======== DisableKey Test ========");
 		DisableKeyRequest disableKeyRequest = DisableKeyRequest.builder().keyId(keyId).build();
-		DisableKeyResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsManagementClient.disableKey(disableKeyRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
+		DisableKeyResponse response = new KeyStateAwaiter(kmsManagementClient).call(keyId, () -> kmsManagementClient.disableKey(disableKeyRequest));
 		System.out.println("Key Disabled Successfully, Updated Key:\n" + response.getKey() + "\n");
 	}
 
@@ -254,22 +211,7 @@ public class KeysConfig {
 	public static void enableKeyTest(KmsManagementClient kmsManagementClient, String keyId) throws Exception {
 		System.out.println("======== EnableKey Test ========");
 		EnableKeyRequest enableKeyRequest = EnableKeyRequest.builder().keyId(keyId).build();
-		EnableKeyResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsManagementClient.enableKey(enableKeyRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
+		EnableKeyResponse response = new KeyStateAwaiter(kmsManagementClient).call(keyId, () -> kmsManagementClient.enableKey(enableKeyRequest));
 		System.out.println("Key Enabled Successfully, Updated Key:\n" + response.getKey() + "\n");
 	}
 
@@ -277,22 +219,7 @@ public class KeysConfig {
 	public static void cancelKeyDeletionTest(KmsManagementClient kmsManagementClient, String keyId) throws Exception{
 		System.out.println("======== CancelKeyDeletion Test ========");
 		CancelKeyDeletionRequest cancelKeyDeletionRequest = CancelKeyDeletionRequest.builder().keyId(keyId).build();
-		CancelKeyDeletionResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsManagementClient.cancelKeyDeletion(cancelKeyDeletionRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
+		CancelKeyDeletionResponse response = new KeyStateAwaiter(kmsManagementClient).call(keyId, () -> kmsManagementClient.cancelKeyDeletion(cancelKeyDeletionRequest));
 		System.out.println("Key Cancelled deletion Successfully, Updated Key:\n" + response.getKey() + "\n");
 	}
 
@@ -304,22 +231,7 @@ public class KeysConfig {
 			.keyId(keyId)
 			.scheduleKeyDeletionDetails(scheduleKeyDeletionDetails)
 			.build();
-		ScheduleKeyDeletionResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsManagementClient.scheduleKeyDeletion(scheduleKeyDeletionRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
+		ScheduleKeyDeletionResponse response = new KeyStateAwaiter(kmsManagementClient).call(keyId, () -> kmsManagementClient.scheduleKeyDeletion(scheduleKeyDeletionRequest));
 		System.out.println("Key Scheduled deletion Successfully, Updated Key:\n" + response.getKey() + "\n");
 	}
 
@@ -327,36 +239,67 @@ public class KeysConfig {
 	public static void createKeyVersionTest(KmsManagementClient kmsManagementClient, String keyId) throws Exception {
 		System.out.println("======== CreateKeyVersion Test ========");
 		CreateKeyVersionRequest createKeyVersionRequest = CreateKeyVersionRequest.builder().keyId(keyId).build();
-		CreateKeyVersionResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsManagementClient.createKeyVersion(createKeyVersionRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
-		System.out.println("Newly Created KeyVersion:\n" + response.getKeyVersion() + "\n");
+		// createKeyVersion is not idempotent: after a failure with an unknown outcome, it is only sent again if the key has
+		// no version created since this call started.
+		Date since = new Date(System.currentTimeMillis() - BulkKeyOperations.CLOCK_SKEW_MILLIS);
+		Object keyVersion = new KeyStateAwaiter(kmsManagementClient).callOnce(keyId,
+			() -> kmsManagementClient.createKeyVersion(createKeyVersionRequest).getKeyVersion(),
+			() -> BulkKeyOperations.versionCreatedSince(kmsManagementClient, keyId, since));
+		System.out.println("Newly Created KeyVersion:\n" + keyVersion + "\n");
 	}
 
 	public static void listKeyVersionsTest(KmsManagementClient kmsManagementClient, String keyId) {
 		System.out.println("======== ListKeyVersions Test ========");
-		ListKeyVersionsRequest listKeyVersionsRequest = ListKeyVersionsRequest.builder().keyId(keyId).build();
-		ListKeyVersionsResponse response = kmsManagementClient.listKeyVersions(listKeyVersionsRequest);
 		System.out.println("ListKeyVersions Response: ");
-		for (KeyVersionSummary keyVersion : response.getItems()) {
+		for (KeyVersionSummary keyVersion : KeyInventory.listAllKeyVersions(kmsManagementClient, keyId)) {
 			System.out.println(keyVersion);
 		}
 		System.out.println();
 	}
 
+	// Indexes the compartment's keys locally; the lookups after the refreshes make no API calls.
+	public static void keyInventoryTest(KmsManagementClient kmsManagementClient, String compartmentId, String keyId) throws Exception {
+		System.out.println("======== KeyInventory Test ========");
+		try (KeyInventory inventory = new KeyInventory(kmsManagementClient, compartmentId)) {
+			System.out.println("Full refresh: " + inventory.refresh());
+			System.out.println("Refresh of new keys: " + inventory.refreshNewKeys());
+			KeyInventory.Entry entry = inventory.get(keyId);
+			if (entry == null) {
+				System.out.println("The new key is not listed yet.\n");
+				return;
+			}
+			System.out.println("Test key: " + entry);
+			System.out.println("Keys named " + entry.getDisplayName() + ": " + inventory.getByName(entry.getDisplayName()).size());
+			System.out.println("Enabled keys: " + inventory.getByState(KeySummary.LifecycleState.Enabled).size());
+			if (entry.getCurrentVersionId() != null) {
+				System.out.println("Key of the current version: " + inventory.getByVersion(entry.getCurrentVersionId()).getKeyId());
+			}
+			System.out.println(inventory + "\n");
+		}
+	}
+
+	// Rotates every key of the compartment, many at a time. The journal records the keys already rotated, so running
+	// this again after a crash only rotates the rest; delete the file to start a new rotation.
+	public static void bulkRotationTest(KmsManagementClient kmsManagementClient, String compartmentId) throws Exception {
+		System.out.println("======== Bulk Rotation Test ========");
+		try (KeyInventory inventory = new KeyInventory(kmsManagementClient, compartmentId);
+				BulkKeyOperations bulkKeyOperations = new BulkKeyOperations(kmsManagementClient, BulkKeyOperations.DEFAULT_PARALLELISM,
+					Paths.get("bulk-rotation.journal"))) {
+			inventory.refresh();
+			BulkKeyOperations.Report report = bulkKeyOperations.run(BulkKeyOperations.compartment(inventory),
+				BulkKeyOperations.createKeyVersion(), progress -> {
+					if ((progress.getSucceeded() + progress.getFailed()) % 100 == 0 || progress.getRemaining() == 0) {
+						System.out.println(progress);
+					}
+				});
+			System.out.println(report);
+			for (Map.Entry<String, Throwable> failure : report.getFailures().entrySet()) {
+				System.out.println("Failed to rotate " + failure.getKey() + ": " + failure.getValue());
+			}
+			System.out.println();
+		}
+	}
+
 	private static Map<String, String> getSampleFreeformTagData() {
 		Map<String, String> freeformTags = new HashMap<String, String>();
 		freeformTags.put("dummyfreeformkey1", "dummyfreeformvalue1");
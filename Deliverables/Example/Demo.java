@@ -6,9 +6,11 @@ import com.oracle.bmc.keymanagement.model.*;
 import com.oracle.bmc.keymanagement.requests.*;
 import com.oracle.bmc.keymanagement.responses.*;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
-
-import org.apache.commons.codec.binary.Base64;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 
 public class Demo {
 
@@ -18,16 +20,20 @@ public class Demo {
 	private static final KeyShape TEST_KEY_SHAPE = KeyShape.builder().algorithm(KeyShape.Algorithm.Aes).length(DEFAULT_KEY_LENGTH).build();
 	// TEXT_TO_ENCRYPT is the plaintext to encrypt for this demo.
 	private static final String TEXT_TO_ENCRYPT = "John Doe,600600600,01-01-2000,Bank of America,1234567890000000";
+	// SSN is the field of TEXT_TO_ENCRYPT that rows can be looked up by, through the blind index column ssnindex.
+	private static final String SSN = TEXT_TO_ENCRYPT.split(",")[1];
 
 	// PSQL_ADDRESS is the location of the postgres server. This has been tested for a postgres server on the instance principal.
 	private static final String PSQL_ADDRESS = "jdbc:postgresql://localhost:5432/kms";
 	// PSQL_TABLE_NAME is the name of the table on the PSQL server. This should be created beforehand.
 	private static final String PSQL_TABLE_NAME = "encrypteddatademo";
+	// PSQL_POOL keeps connections to the postgres server open between the steps below (see Postgres_Storage).
+	private static final ConnectionPool PSQL_POOL = new ConnectionPool(PSQL_ADDRESS, "postgres", "");
 
-	// DELAY controls the delay for waiting for a key to become available (you cannot use the management API to modify a key that is not available).
-	private static final long DELAY = 10L; // 10 second delay
-	// TIMEOUT is the maximum total time to wait for the key to become available.
-	private static final long TIMEOUT = 120L; // 2 minute timeout
+	// CRYPTO_KEY_STATE_AWAITER retries cryptographic calls with backoff while a key is not available yet. Management calls
+	// use a KeyStateAwaiter with the management client, which polls the key state (you cannot use the management API to
+	// modify a key that is not available) and retries as soon as the key is available.
+	private static final KeyStateAwaiter CRYPTO_KEY_STATE_AWAITER = new KeyStateAwaiter(null);
 
 	public static void main(final String[] args) throws Exception {
 		/* These three variables will be passed in via command line. Refer to the README for more details.
@@ -57,9 +63,12 @@ public class Demo {
 		// 	* kmsVaultClient: the client for Vault Management
 		// 	* kmsManagementClient: the client for Key Management
 		// 	* kmsCryptoClient: the client for Cryptographic Management
-		KmsVaultClient kmsVaultClient = new KmsVaultClient(provider);
-		KmsManagementClient kmsManagementClient = new KmsManagementClient(provider);
-		KmsCryptoClient kmsCryptoClient = new KmsCryptoClient(provider);
+		// The management and cryptographic clients share one KmsRateLimiter, which keeps their calls under the vault's
+		// request quota. Concurrent getVault calls for the same vault share one request (see CoalescingKmsVaultClient).
+		KmsRateLimiter kmsRateLimiter = new KmsRateLimiter();
+		KmsVaultClient kmsVaultClient = new CoalescingKmsVaultClient(provider);
+		KmsManagementClient kmsManagementClient = new RateLimitedKmsManagementClient(provider, kmsRateLimiter, vaultId);
+		KmsCryptoClient kmsCryptoClient = new RateLimitedKmsCryptoClient(provider, kmsRateLimiter, vaultId);
 
 		// Set the region
 		kmsVaultClient.setRegion(region);
@@ -74,6 +83,10 @@ public class Demo {
 		// 1: A key is created in the vault.
 		System.out.println(black("1: Creating key 1..."));
 		final String keyId1 = createKeyTest(kmsManagementClient, compartmentId, "SFLY_DELIVERABLES_TEST_DEMO_KEY1");
+		new KeyStateAwaiter(kmsManagementClient).awaitStable(keyId1);
+		// The blind index key lets rows be found by SSN without decrypting them (see BlindIndex in KMS_Crypto). It is
+		// protected by key 1; a real application would store ssnIndex.getWrappedKey() and use BlindIndex.open later.
+		final BlindIndex ssnIndex = BlindIndex.create(kmsCryptoClient, keyId1);
 		System.out.println(black("Created key 1.\n"));
 
 		// 2: A string payload is encrypted using this vault key.
@@ -83,9 +96,12 @@ public class Demo {
 
 		// 3: This information is sent to a Postgres table.
 		System.out.println(black("3: Sending encrypted payload 1 to PostgreSQL table..."));
-		try (Connection connection = DriverManager.getConnection(PSQL_ADDRESS, "postgres", "")) {
+		try (Connection connection = PSQL_POOL.getConnection()) {
 			System.out.println("Connected to PostgreSQL database.\nExecuting insert...");
-			final PreparedStatement ps = connection.prepareStatement("INSERT INTO " + PSQL_TABLE_NAME + " (keyid, payload) VALUES ('" + keyId1 + "','" + ciphertext1 + "')");
+			final PreparedStatement ps = connection.prepareStatement("INSERT INTO " + PSQL_TABLE_NAME + " (keyid, payload, ssnindex) VALUES (?, ?, ?)");
+			ps.setString(1, keyId1);
+			ps.setString(2, ciphertext1);
+			ps.setBytes(3, ssnIndex.compute("ssn", SSN));
 			ps.executeUpdate();
 
 			ps.close();
@@ -100,14 +116,18 @@ public class Demo {
 		// 4: Another key is created in the vault.
 		System.out.println(black("4: Creating key 2..."));
 		final String keyId2 = createKeyTest(kmsManagementClient, compartmentId, "SFLY_DELIVERABLES_TEST_DEMO_KEY2");
+		new KeyStateAwaiter(kmsManagementClient).awaitStable(keyId2);
 		System.out.println(black("Created key 2.\n"));//, disabled key 1.\n"));
 
 		// 5: The same String payload is encrypted using the second vault key. This information is sent to a Postgres table.
 		System.out.println(black("5: Encrypting string payload using key 2..."));
 		final String ciphertext2 = encryptTest(kmsCryptoClient, keyId2, TEXT_TO_ENCRYPT);
-		try (Connection connection = DriverManager.getConnection(PSQL_ADDRESS, "postgres", "")) {
+		try (Connection connection = PSQL_POOL.getConnection()) {
 			System.out.println("Connected to PostgreSQL database.\nExecuting insert...");
-			final PreparedStatement ps = connection.prepareStatement("INSERT INTO " + PSQL_TABLE_NAME + " (keyid, payload) VALUES ('" + keyId2 + "','" + ciphertext2 + "')");
+			final PreparedStatement ps = connection.prepareStatement("INSERT INTO " + PSQL_TABLE_NAME + " (keyid, payload, ssnindex) VALUES (?, ?, ?)");
+			ps.setString(1, keyId2);
+			ps.setString(2, ciphertext2);
+			ps.setBytes(3, ssnIndex.compute("ssn", SSN));
 			ps.executeUpdate();
 
 			ps.close();
@@ -122,20 +142,24 @@ public class Demo {
 		// 6: The encrypted data is queried from the PSQL table.
 		System.out.println(black("6: Grabbing encrypted strings from PSQL table..."));
 		String ciphertextFromPSQL1 = ""; String ciphertextFromPSQL2 = "";
-		try (Connection connection = DriverManager.getConnection(PSQL_ADDRESS, "postgres", "")) {
+		try (Connection connection = PSQL_POOL.getConnection()) {
 			System.out.println("Connected to PostgreSQL database.");
-			final Statement statement = connection.createStatement();
+			// Both selects use the same SQL, so the second one reuses the statement prepared by the first.
+			final PreparedStatement statement = connection.prepareStatement("SELECT * FROM " + PSQL_TABLE_NAME + " WHERE keyid = ?");
 
 			System.out.println("Executing first select...");
-			ResultSet resultSetSelect1 = statement.executeQuery("SELECT * FROM " + PSQL_TABLE_NAME + " WHERE keyid = '" + keyId1 + "'");
+			statement.setString(1, keyId1);
+			ResultSet resultSetSelect1 = statement.executeQuery();
 			if (resultSetSelect1.next()) { // gets the first row in the ResultSet
 				ciphertextFromPSQL1 = resultSetSelect1.getString("payload");
 				System.out.println("...Grabbed result 1: payload is \"" + ciphertextFromPSQL1 + "\".");
 			} else {
 				System.out.println("Failed to grab result 1.");
 			}
+			resultSetSelect1.close();
 			System.out.println("Executing second select...");
-			ResultSet resultSetSelect2 = statement.executeQuery("SELECT * FROM " + PSQL_TABLE_NAME + " WHERE keyid = '" + keyId2 + "'");
+			statement.setString(1, keyId2);
+			ResultSet resultSetSelect2 = statement.executeQuery();
 			if (resultSetSelect2.next()) { // gets the first row in the ResultSet
 				ciphertextFromPSQL2 = resultSetSelect2.getString("payload");
 				System.out.println("...Grabbed result 2: payload is \"" + ciphertextFromPSQL2 + "\".");
@@ -143,9 +167,29 @@ public class Demo {
 				System.out.println("Failed to grab result 2.");
 			}
 
-			resultSetSelect1.close();
 			resultSetSelect2.close();
 			statement.close();
+
+			// Looking a row up by an encrypted field: the SSN's blind index is compared with the ssnindex column, which is
+			// an index probe on the server. Nothing is decrypted to find the rows. The payloads are read through a
+			// DecryptingResultSet (see Postgres_Storage), which only decrypts a payload when it is read: here, only the
+			// first match is decrypted, to check that its SSN really matches.
+			System.out.println("Executing select by SSN...");
+			final PreparedStatement bySsn = connection.prepareStatement("SELECT keyid, payload FROM " + PSQL_TABLE_NAME + " WHERE ssnindex = ?");
+			bySsn.setBytes(1, ssnIndex.compute("ssn", SSN));
+			DecryptingResultSet resultSetBySsn = new DecryptingResultSet(bySsn.executeQuery(),
+				(keyId, ciphertext) -> BatchCrypto.decrypt(kmsCryptoClient, keyId, ciphertext), "keyid", "payload");
+			int matches = 0;
+			while (resultSetBySsn.next()) {
+				if (matches++ == 0) {
+					String payload = resultSetBySsn.getString("payload");
+					System.out.println("...First match has SSN " + payload.split(",")[1] + " (key " + resultSetBySsn.getRaw("keyid") + ").");
+				}
+			}
+			System.out.println("...Found " + matches + " row(s) with SSN " + SSN + " through the blind index, decrypting "
+				+ resultSetBySsn.getDecryptions() + " of them.");
+			resultSetBySsn.close();
+			bySsn.close();
 			System.out.println(black("Successfully queried and processed both ciphertexts from postgres database."));
 		} catch (SQLException e) {
 			System.out.println("Connection failure.\n" + e);
@@ -154,17 +198,44 @@ public class Demo {
 		}
 		System.out.println();
 
-		// 7: Both payloads are decrypted using both vault keys.
+		// 7: Both payloads are decrypted using both vault keys. The two decrypt requests are sent concurrently
+		// through BatchCrypto (see KMS_Crypto) instead of one after the other.
 		System.out.println(black("7: Decrypting payloads using the vault keys..."));
-		final String decryptedCtext1 = decryptTest(kmsCryptoClient, keyId1, ciphertextFromPSQL1);
-		final String decryptedCtext2 = decryptTest(kmsCryptoClient, keyId2, ciphertextFromPSQL2);
+		BatchCrypto batchCrypto = new BatchCrypto(kmsCryptoClient, 2, 2);
+		List<BatchCrypto.Result<String>> decryptedResults = batchCrypto.decryptAll(Arrays.asList(
+			new BatchCrypto.CiphertextItem(keyId1, ciphertextFromPSQL1),
+			new BatchCrypto.CiphertextItem(keyId2, ciphertextFromPSQL2)));
+		batchCrypto.close();
+		for (BatchCrypto.Result<String> result : decryptedResults) {
+			if (!result.isSuccess()) {
+				throw new Exception("ERROR: failed to decrypt payload " + (result.getIndex() + 1) + ".", result.getError());
+			}
+		}
+		final String decryptedCtext1 = decryptedResults.get(0).getValue();
+		final String decryptedCtext2 = decryptedResults.get(1).getValue();
 		System.out.println("    Key: " + keyId1 + "; ciphertext: " + ciphertextFromPSQL1 + "; plaintext: " + decryptedCtext1);
 		System.out.println("    Key: " + keyId2 + "; ciphertext: " + ciphertextFromPSQL2 + "; plaintext: " + decryptedCtext2);
 		System.out.println(black("Successfully decrypted all payloads using their relevant vault keys.\n"));
 
-		// 8: The first vault key is rotated.
+		// 8: The first vault key is rotated, and the rows encrypted under its old version are re-encrypted under the new
+		// one by a TableRewrapPipeline (see Postgres_Storage). The pipeline streams the table in id ranges, re-encrypts
+		// on a few worker threads and writes the rows back in batches, saving its progress in the rewrapprogress table,
+		// so running it again after an interruption resumes where it stopped. Rows of key 2 are left as they are.
 		System.out.println(black("8: Rotating key 1..."));
 		createKeyVersionTest(kmsManagementClient, keyId1);
+		System.out.println("Re-encrypting the rows of key 1 under its new version...");
+		try (TableRewrapPipeline pipeline = new TableRewrapPipeline(PSQL_POOL, "demo-rotation-" + keyId1, PSQL_TABLE_NAME, "seq", "keyid",
+				"payload", (keyId, ciphertext) -> keyId1.equals(keyId) ? ByteCrypto.reencrypt(kmsCryptoClient, keyId, ciphertext) : null,
+				2, 2, 2, 100, 100)) {
+			TableRewrapPipeline.Report report = pipeline.run(progress -> System.out.println("    " + progress));
+			if (!report.getFailures().isEmpty()) {
+				System.out.println("Failed to re-encrypt partitions " + report.getFailures().keySet() + "; run the pipeline again to resume.\n"
+					+ report.getFailures().values().iterator().next());
+			}
+			System.out.println("..." + report.getProgress());
+		} catch (SQLException e) {
+			System.out.println("Connection failure.\n" + e);
+		}
 		System.out.println(black("Rotated key 1.\n"));
 
 		// 9: The string payload is encrypted, then decrypted using the rotated vault key.
@@ -174,27 +245,30 @@ public class Demo {
 		System.out.println(blue("Note the different ciphertext from the previous encryption using the newly rotated key."));
 		System.out.println(black("Encrypted and decrypted payload \n    " + TEXT_TO_ENCRYPT + "\nas ciphertext\n    " + ciphertext3 + "\nand decrypted as\n    " + decryptedCtext3));
 
-		// 10: Both keys are scheduled for deletion.
+		// 10: Both keys are scheduled for deletion. The two keys are worked on concurrently through BulkKeyOperations
+		// (see KMS_Crypto), which runs the same lifecycle operation on any number of keys.
 		System.out.println(black("10: Scheduling keys for deletion..."));
-		scheduleKeyDeletionTest(kmsManagementClient, keyId1);
-		scheduleKeyDeletionTest(kmsManagementClient, keyId2);
+		try (BulkKeyOperations bulkKeyOperations = new BulkKeyOperations(kmsManagementClient, 2, null)) {
+			BulkKeyOperations.Report report = bulkKeyOperations.run(BulkKeyOperations.ids(keyId1, keyId2),
+				BulkKeyOperations.scheduleKeyDeletion(null), progress -> System.out.println("    " + progress));
+			if (!report.getFailures().isEmpty()) {
+				throw new Exception("ERROR: failed to schedule the deletion of " + report.getFailures().keySet() + ".",
+					report.getFailures().values().iterator().next());
+			}
+		}
 		System.out.println(black("Both keys scheduled for deletion.\n"));
 
-		// 11: The contents of the PSQL table are shown.
+		// 11: The contents of the PSQL table are shown. The table is streamed through a StreamingTableReader (see
+		// Postgres_Storage), which reads only the two printed columns through a server-side cursor, so only a few rows are
+		// in memory at a time however large the table is.
 		System.out.println(black("11: Showing contents of PSQL table..."));
-		try (Connection connection = DriverManager.getConnection(PSQL_ADDRESS, "postgres", "")) {
-			System.out.println("Connected to PostgreSQL database.");
-			final Statement statement = connection.createStatement();
-
-			ResultSet resultSetSelect = statement.executeQuery("SELECT * FROM " + PSQL_TABLE_NAME);
+		try (StreamingTableReader reader = new StreamingTableReader(PSQL_POOL)) {
 			System.out.println("Reading table from " + PSQL_TABLE_NAME);
 			System.out.printf("%-30.30s  %-30.30s%n", "ID", "payload");
-			while (resultSetSelect.next()) {
-				System.out.printf("%-30.30s  %-30.30s%n", resultSetSelect.getString("id"), resultSetSelect.getString("payload"));
-			}
-
-			resultSetSelect.close();
-			statement.close();
+			reader.stream(PSQL_TABLE_NAME, row -> {
+				System.out.printf("%-30.30s  %-30.30s%n", row.getString("id"), row.getString("payload"));
+				return true;
+			}, "id", "payload");
 			System.out.println(black("Table printed."));
 		} catch (SQLException e) {
 			System.out.println("Connection failure.\n" + e);
@@ -203,6 +277,8 @@ public class Demo {
 		}
 		System.out.println();
 
+		ssnIndex.destroy();
+		PSQL_POOL.close();
 		System.out.println("\n\033[1;32mDone. Exiting program...\033[0m\n");
 	}
 
@@ -229,56 +305,17 @@ public class Demo {
 		return response.getKey().getId();
 	}
 
-	// keyManagement method to test the scheduleKeyDeletion endpoint
-	public static void scheduleKeyDeletionTest(KmsManagementClient kmsManagementClient, String keyId) throws Exception {
-		System.out.println("======== ScheduleKeyDeletion Test ========");
-		ScheduleKeyDeletionDetails scheduleKeyDeletionDetails = ScheduleKeyDeletionDetails.builder().timeOfDeletion(null).build();
-		ScheduleKeyDeletionRequest scheduleKeyDeletionRequest = ScheduleKeyDeletionRequest.builder()
-			.keyId(keyId)
-			.scheduleKeyDeletionDetails(scheduleKeyDeletionDetails)
-			.build();
-		ScheduleKeyDeletionResponse response = null;
-		long time_waited = 0L; 
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsManagementClient.scheduleKeyDeletion(scheduleKeyDeletionRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				//System.out.println("        " + e); // DEBUG
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
-		System.out.println("Key Scheduled deletion Successfully, Updated Key:\n" + response.getKey());
-	}
-
 	// keyManagement method to test the createKeyVersion endpoint
 	public static void createKeyVersionTest(KmsManagementClient kmsManagementClient, String keyId) throws Exception {
 		System.out.println("======== CreateKeyVersion Test ========");
 		CreateKeyVersionRequest createKeyVersionRequest = CreateKeyVersionRequest.builder().keyId(keyId).build();
-		CreateKeyVersionResponse response = null;
-		long time_waited = 0L; 
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsManagementClient.createKeyVersion(createKeyVersionRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				//System.out.println("        " + e); // DEBUG
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
-		System.out.println("CreateKeyVersion response:\n" + response.getKeyVersion());
+		// createKeyVersion is not idempotent: after a failure with an unknown outcome, it is only sent again if the key has
+		// no version created since this call started.
+		Date since = new Date(System.currentTimeMillis() - BulkKeyOperations.CLOCK_SKEW_MILLIS);
+		Object keyVersion = new KeyStateAwaiter(kmsManagementClient).callOnce(keyId,
+			() -> kmsManagementClient.createKeyVersion(createKeyVersionRequest).getKeyVersion(),
+			() -> BulkKeyOperations.versionCreatedSince(kmsManagementClient, keyId, since));
+		System.out.println("CreateKeyVersion response:\n" + keyVersion);
 	}
 
 	// cryptoManagement method to test the encrypt endpoint
@@ -286,26 +323,10 @@ public class Demo {
 		System.out.println("======== Encrypt Test ========");
 		EncryptDataDetails encryptDataDetails = EncryptDataDetails.builder()
 			.keyId(keyId)
-			.plaintext(Base64.encodeBase64String(plaintext.getBytes()))
+			.plaintext(ByteCrypto.toBase64(plaintext.getBytes(StandardCharsets.UTF_8)))
 			.build();
 		EncryptRequest encryptRequest = EncryptRequest.builder().encryptDataDetails(encryptDataDetails).build();
-		EncryptResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsCryptoClient.encrypt(encryptRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				//System.out.println("        " + e); // DEBUG
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
+		EncryptResponse response = CRYPTO_KEY_STATE_AWAITER.call(keyId, () -> kmsCryptoClient.encrypt(encryptRequest));
 		String ciphertextResponse = response.getEncryptedData().getCiphertext();
 		System.out.println("Plaintext:\n" + plaintext);
 		System.out.println("Ciphertext:\n" + ciphertextResponse);
@@ -320,25 +341,9 @@ public class Demo {
 			.keyId(keyId)
 			.build();
 		DecryptRequest decryptRequest = DecryptRequest.builder().decryptDataDetails(decryptDataDetails).build();
-		DecryptResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsCryptoClient.decrypt(decryptRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				//System.out.println("        " + e); // DEBUG
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
+		DecryptResponse response = CRYPTO_KEY_STATE_AWAITER.call(keyId, () -> kmsCryptoClient.decrypt(decryptRequest));
 		String plaintextResponseBase64 = response.getDecryptedData().getPlaintext();
-		String plaintextResponse = new String(Base64.decodeBase64(plaintextResponseBase64));
+		String plaintextResponse = new String(ByteCrypto.fromBase64(plaintextResponseBase64), StandardCharsets.UTF_8);
 		System.out.println("Plaintext (encoded as base 64):\n" + plaintextResponseBase64);
 		System.out.println("Plaintext:\n" + plaintextResponse);
 		return plaintextResponse;
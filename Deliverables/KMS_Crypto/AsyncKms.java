@@ -0,0 +1,162 @@
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+import com.oracle.bmc.keymanagement.KmsManagementClient;
+import com.oracle.bmc.keymanagement.KmsVaultClient;
+import com.oracle.bmc.keymanagement.requests.CancelKeyDeletionRequest;
+import com.oracle.bmc.keymanagement.requests.CreateKeyRequest;
+import com.oracle.bmc.keymanagement.requests.CreateKeyVersionRequest;
+import com.oracle.bmc.keymanagement.requests.DecryptRequest;
+import com.oracle.bmc.keymanagement.requests.DisableKeyRequest;
+import com.oracle.bmc.keymanagement.requests.EnableKeyRequest;
+import com.oracle.bmc.keymanagement.requests.EncryptRequest;
+import com.oracle.bmc.keymanagement.requests.GenerateDataEncryptionKeyRequest;
+import com.oracle.bmc.keymanagement.requests.GetKeyRequest;
+import com.oracle.bmc.keymanagement.requests.GetVaultRequest;
+import com.oracle.bmc.keymanagement.requests.ListKeyVersionsRequest;
+import com.oracle.bmc.keymanagement.requests.ListKeysRequest;
+import com.oracle.bmc.keymanagement.requests.ScheduleKeyDeletionRequest;
+import com.oracle.bmc.keymanagement.requests.UpdateKeyRequest;
+import com.oracle.bmc.keymanagement.responses.CancelKeyDeletionResponse;
+import com.oracle.bmc.keymanagement.responses.CreateKeyResponse;
+import com.oracle.bmc.keymanagement.responses.CreateKeyVersionResponse;
+import com.oracle.bmc.keymanagement.responses.DecryptResponse;
+import com.oracle.bmc.keymanagement.responses.DisableKeyResponse;
+import com.oracle.bmc.keymanagement.responses.EnableKeyResponse;
+import com.oracle.bmc.keymanagement.responses.EncryptResponse;
+import com.oracle.bmc.keymanagement.responses.GenerateDataEncryptionKeyResponse;
+import com.oracle.bmc.keymanagement.responses.GetKeyResponse;
+import com.oracle.bmc.keymanagement.responses.GetVaultResponse;
+import com.oracle.bmc.keymanagement.responses.ListKeyVersionsResponse;
+import com.oracle.bmc.keymanagement.responses.ListKeysResponse;
+import com.oracle.bmc.keymanagement.responses.ScheduleKeyDeletionResponse;
+import com.oracle.bmc.keymanagement.responses.UpdateKeyResponse;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// AsyncKms wraps the three KMS clients (vault, key management and crypto) so that every operation returns a
+// CompletableFuture instead of blocking the caller. The SDK clients are blocking, so each call still occupies a
+// thread while it waits for the vault; by default that thread is a virtual thread (Java 21 and later), which costs
+// almost nothing while parked. On older JDKs a fixed pool of platform threads is used instead.
+public class AsyncKms {
+
+	// FALLBACK_THREADS is the size of the platform thread pool used when virtual threads are not available.
+	public static final int FALLBACK_THREADS = 64;
+
+	private final KmsVaultClient kmsVaultClient;
+	private final KmsManagementClient kmsManagementClient;
+	private final KmsCryptoClient kmsCryptoClient;
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+
+	public AsyncKms(KmsVaultClient kmsVaultClient, KmsManagementClient kmsManagementClient, KmsCryptoClient kmsCryptoClient) {
+		this.kmsVaultClient = kmsVaultClient;
+		this.kmsManagementClient = kmsManagementClient;
+		this.kmsCryptoClient = kmsCryptoClient;
+		ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+		this.virtualThreads = virtualThreadExecutor != null;
+		this.executor = virtualThreads
+			? virtualThreadExecutor
+			: Executors.newFixedThreadPool(FALLBACK_THREADS, BatchCrypto.daemonThreads("async-kms-"));
+	}
+
+	// Uses the given executor for the blocking SDK calls instead of choosing one.
+	public AsyncKms(KmsVaultClient kmsVaultClient, KmsManagementClient kmsManagementClient, KmsCryptoClient kmsCryptoClient, ExecutorService executor) {
+		this.kmsVaultClient = kmsVaultClient;
+		this.kmsManagementClient = kmsManagementClient;
+		this.kmsCryptoClient = kmsCryptoClient;
+		this.executor = executor;
+		this.virtualThreads = false;
+	}
+
+	// true if the SDK calls run on virtual threads rather than a platform thread pool
+	public boolean usesVirtualThreads() { return virtualThreads; }
+
+	// Vault Management
+	public CompletableFuture<GetVaultResponse> getVault(final GetVaultRequest request) {
+		return submit(() -> kmsVaultClient.getVault(request));
+	}
+
+	// Key Management
+	public CompletableFuture<CreateKeyResponse> createKey(final CreateKeyRequest request) {
+		return submit(() -> kmsManagementClient.createKey(request));
+	}
+
+	public CompletableFuture<GetKeyResponse> getKey(final GetKeyRequest request) {
+		return submit(() -> kmsManagementClient.getKey(request));
+	}
+
+	public CompletableFuture<UpdateKeyResponse> updateKey(final UpdateKeyRequest request) {
+		return submit(() -> kmsManagementClient.updateKey(request));
+	}
+
+	public CompletableFuture<ListKeysResponse> listKeys(final ListKeysRequest request) {
+		return submit(() -> kmsManagementClient.listKeys(request));
+	}
+
+	public CompletableFuture<EnableKeyResponse> enableKey(final EnableKeyRequest request) {
+		return submit(() -> kmsManagementClient.enableKey(request));
+	}
+
+	public CompletableFuture<DisableKeyResponse> disableKey(final DisableKeyRequest request) {
+		return submit(() -> kmsManagementClient.disableKey(request));
+	}
+
+	public CompletableFuture<ScheduleKeyDeletionResponse> scheduleKeyDeletion(final ScheduleKeyDeletionRequest request) {
+		return submit(() -> kmsManagementClient.scheduleKeyDeletion(request));
+	}
+
+	public CompletableFuture<CancelKeyDeletionResponse> cancelKeyDeletion(final CancelKeyDeletionRequest request) {
+		return submit(() -> kmsManagementClient.cancelKeyDeletion(request));
+	}
+
+	public CompletableFuture<CreateKeyVersionResponse> createKeyVersion(final CreateKeyVersionRequest request) {
+		return submit(() -> kmsManagementClient.createKeyVersion(request));
+	}
+
+	public CompletableFuture<ListKeyVersionsResponse> listKeyVersions(final ListKeyVersionsRequest request) {
+		return submit(() -> kmsManagementClient.listKeyVersions(request));
+	}
+
+	// Cryptographic Management
+	public CompletableFuture<EncryptResponse> encrypt(final EncryptRequest request) {
+		return submit(() -> kmsCryptoClient.encrypt(request));
+	}
+
+	public CompletableFuture<DecryptResponse> decrypt(final DecryptRequest request) {
+		return submit(() -> kmsCryptoClient.decrypt(request));
+	}
+
+	public CompletableFuture<GenerateDataEncryptionKeyResponse> generateDataEncryptionKey(final GenerateDataEncryptionKeyRequest request) {
+		return submit(() -> kmsCryptoClient.generateDataEncryptionKey(request));
+	}
+
+	// Stops accepting new calls. Calls already submitted still complete.
+	public void close() {
+		executor.shutdown();
+	}
+
+	// Runs a blocking call on the executor. A failed call completes the future exceptionally with the SDK's exception.
+	private <T> CompletableFuture<T> submit(final Callable<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		executor.execute(() -> {
+			try {
+				future.complete(call.call());
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		});
+		return future;
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor only exists on Java 21 and later, so it is looked up reflectively to
+	// keep these samples compiling and running on older JDKs. Returns null if it is not available.
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Base64Buffers encodes and decodes standard Base64 (RFC 4648, with padding) directly between ByteBuffers and
+// characters, for the KMS calls whose requests and responses carry binary data as Base64 Strings. Unlike
+// commons-codec's Base64.encodeBase64String / decodeBase64(String), it never makes an intermediate byte[] or String:
+// decoding writes straight into the caller's buffer and encoding writes into the caller's char[].
+public final class Base64Buffers {
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	// DECODE maps a character to its 6 bit value, or -1 for characters that are not part of the alphabet
+	private static final byte[] DECODE = new byte[128];
+	static {
+		Arrays.fill(DECODE, (byte) -1);
+		for (int i = 0; i < ALPHABET.length; i++) {
+			DECODE[ALPHABET[i]] = (byte) i;
+		}
+	}
+
+	private Base64Buffers() {
+	}
+
+	// the number of characters encode writes for length bytes
+	public static int encodedLength(int length) {
+		return (length + 2) / 3 * 4;
+	}
+
+	// The number of bytes decode writes for the given Base64 text.
+	public static int decodedLength(CharSequence base64) {
+		int length = base64.length();
+		if (length % 4 != 0) {
+			throw new IllegalArgumentException("Base64 text length " + length + " is not a multiple of 4.");
+		}
+		int padding = 0;
+		if (length > 0 && base64.charAt(length - 1) == '=') {
+			padding++;
+			if (base64.charAt(length - 2) == '=') {
+				padding++;
+			}
+		}
+		return length / 4 * 3 - padding;
+	}
+
+	// Encodes the remaining bytes of src into dst starting at offset, consuming src. Returns the number of characters
+	// written, which is encodedLength(src.remaining()).
+	public static int encode(ByteBuffer src, char[] dst, int offset) {
+		int needed = encodedLength(src.remaining());
+		if (dst.length - offset < needed) {
+			throw new IllegalArgumentException("The destination has room for " + (dst.length - offset) + " characters; " + needed + " are needed.");
+		}
+		int out = offset;
+		while (src.remaining() >= 3) {
+			int bits = (src.get() & 0xFF) << 16 | (src.get() & 0xFF) << 8 | (src.get() & 0xFF);
+			dst[out++] = ALPHABET[bits >>> 18 & 0x3F];
+			dst[out++] = ALPHABET[bits >>> 12 & 0x3F];
+			dst[out++] = ALPHABET[bits >>> 6 & 0x3F];
+			dst[out++] = ALPHABET[bits & 0x3F];
+		}
+		if (src.remaining() == 1) {
+			int bits = (src.get() & 0xFF) << 16;
+			dst[out++] = ALPHABET[bits >>> 18 & 0x3F];
+			dst[out++] = ALPHABET[bits >>> 12 & 0x3F];
+			dst[out++] = '=';
+			dst[out++] = '=';
+		} else if (src.remaining() == 2) {
+			int bits = (src.get() & 0xFF) << 16 | (src.get() & 0xFF) << 8;
+			dst[out++] = ALPHABET[bits >>> 18 & 0x3F];
+			dst[out++] = ALPHABET[bits >>> 12 & 0x3F];
+			dst[out++] = ALPHABET[bits >>> 6 & 0x3F];
+			dst[out++] = '=';
+		}
+		return out - offset;
+	}
+
+	// Decodes the Base64 text into dst at its position, advancing it. Returns the number of bytes written. Throws
+	// IllegalArgumentException for malformed input and BufferOverflowException if dst is too small.
+	public static int decode(CharSequence base64, ByteBuffer dst) {
+		int decodedLength = decodedLength(base64);
+		if (dst.remaining() < decodedLength) {
+			throw new BufferOverflowException();
+		}
+		int length = base64.length();
+		int written = 0;
+		for (int i = 0; i < length; i += 4) {
+			int a = value(base64, i);
+			int b = value(base64, i + 1);
+			boolean lastQuad = i + 4 == length;
+			char c3 = base64.charAt(i + 2);
+			char c4 = base64.charAt(i + 3);
+			if (lastQuad && c3 == '=') {
+				if (c4 != '=') {
+					throw new IllegalArgumentException("Malformed Base64 padding.");
+				}
+				dst.put((byte) (a << 2 | b >>> 4));
+				written += 1;
+			} else if (lastQuad && c4 == '=') {
+				int c = value(base64, i + 2);
+				dst.put((byte) (a << 2 | b >>> 4));
+				dst.put((byte) (b << 4 | c >>> 2));
+				written += 2;
+			} else {
+				int c = value(base64, i + 2);
+				int d = value(base64, i + 3);
+				dst.put((byte) (a << 2 | b >>> 4));
+				dst.put((byte) (b << 4 | c >>> 2));
+				dst.put((byte) (c << 6 | d));
+				written += 3;
+			}
+		}
+		return written;
+	}
+
+	private static int value(CharSequence base64, int index) {
+		char c = base64.charAt(index);
+		int value = c < 128 ? DECODE[c] : -1;
+		if (value < 0) {
+			throw new IllegalArgumentException("Illegal Base64 character '" + c + "' at index " + index + ".");
+		}
+		return value;
+	}
+}
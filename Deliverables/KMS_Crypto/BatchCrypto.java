@@ -0,0 +1,181 @@
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+import com.oracle.bmc.keymanagement.model.DecryptDataDetails;
+import com.oracle.bmc.keymanagement.model.EncryptDataDetails;
+import com.oracle.bmc.keymanagement.requests.DecryptRequest;
+import com.oracle.bmc.keymanagement.requests.EncryptRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// BatchCrypto sends many encrypt or decrypt requests to the vault at once instead of one after the other, so bulk
+// jobs are bound by the vault's throughput rather than by the latency of each request.
+//     * workers: the number of threads calling the vault
+//     * maxInFlight: the maximum number of items submitted but not finished yet. Submitting blocks once this many
+//       items are outstanding, so a large batch never queues more than maxInFlight requests in memory.
+// Results are returned in the same order as the input. A failed item does not fail the batch: its Result carries
+// the exception instead of a value.
+public class BatchCrypto {
+
+	private final KmsCryptoClient kmsCryptoClient;
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+
+	public BatchCrypto(KmsCryptoClient kmsCryptoClient, int workers, int maxInFlight) {
+		if (workers <= 0 || maxInFlight <= 0) {
+			throw new IllegalArgumentException("BatchCrypto needs at least one worker and one item in flight.");
+		}
+		this.kmsCryptoClient = kmsCryptoClient;
+		this.executor = Executors.newFixedThreadPool(workers, daemonThreads("batch-crypto-"));
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	// Encrypts every plaintext with the vault key, returning the ciphertexts in input order.
+	public List<Result<String>> encryptAll(final String keyId, Collection<String> plaintexts) throws InterruptedException {
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>(plaintexts.size());
+		for (final String plaintext : plaintexts) {
+			tasks.add(new Callable<String>() {
+				public String call() throws Exception {
+					return encrypt(kmsCryptoClient, keyId, plaintext);
+				}
+			});
+		}
+		return run(tasks);
+	}
+
+	// Decrypts every (keyId, ciphertext) pair, returning the plaintexts in input order.
+	public List<Result<String>> decryptAll(Collection<CiphertextItem> items) throws InterruptedException {
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>(items.size());
+		for (final CiphertextItem item : items) {
+			tasks.add(new Callable<String>() {
+				public String call() throws Exception {
+					return decrypt(kmsCryptoClient, item.getKeyId(), item.getCiphertext());
+				}
+			});
+		}
+		return run(tasks);
+	}
+
+	// Runs arbitrary tasks on the worker pool under the same in-flight limit, e.g. EnvelopeCrypto calls.
+	public <T> List<Result<T>> run(List<? extends Callable<T>> tasks) throws InterruptedException {
+		final List<Result<T>> results = new ArrayList<Result<T>>(tasks.size());
+		for (int i = 0; i < tasks.size(); i++) {
+			results.add(null);
+		}
+		final CountDownLatch done = new CountDownLatch(tasks.size());
+		for (int i = 0; i < tasks.size(); i++) {
+			final int index = i;
+			final Callable<T> task = tasks.get(i);
+			inFlight.acquire();
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						Result<T> result;
+						try {
+							result = Result.success(index, task.call());
+						} catch (Throwable t) {
+							result = Result.failure(index, t);
+						}
+						// each index is written by exactly one worker; the latch publishes the writes to the caller
+						synchronized (results) {
+							results.set(index, result);
+						}
+						inFlight.release();
+						done.countDown();
+					}
+				});
+			} catch (RuntimeException e) {
+				inFlight.release();
+				throw e;
+			}
+		}
+		done.await();
+		synchronized (results) {
+			return results;
+		}
+	}
+
+	// Stops the worker threads once all submitted items have finished.
+	public void close() {
+		executor.shutdown();
+	}
+
+	static String encrypt(KmsCryptoClient kmsCryptoClient, String keyId, String plaintext) {
+		EncryptDataDetails encryptDataDetails = EncryptDataDetails.builder()
+			.keyId(keyId)
+			.plaintext(ByteCrypto.toBase64(plaintext.getBytes(StandardCharsets.UTF_8)))
+			.build();
+		EncryptRequest encryptRequest = EncryptRequest.builder().encryptDataDetails(encryptDataDetails).build();
+		return kmsCryptoClient.encrypt(encryptRequest).getEncryptedData().getCiphertext();
+	}
+
+	static String decrypt(KmsCryptoClient kmsCryptoClient, String keyId, String ciphertext) {
+		DecryptDataDetails decryptDataDetails = DecryptDataDetails.builder()
+			.keyId(keyId)
+			.ciphertext(ciphertext)
+			.build();
+		DecryptRequest decryptRequest = DecryptRequest.builder().decryptDataDetails(decryptDataDetails).build();
+		String plaintextBase64 = kmsCryptoClient.decrypt(decryptRequest).getDecryptedData().getPlaintext();
+		return new String(ByteCrypto.fromBase64(plaintextBase64), StandardCharsets.UTF_8);
+	}
+
+	static ThreadFactory daemonThreads(final String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	// CiphertextItem is one ciphertext to decrypt, together with the vault key that encrypted it.
+	public static class CiphertextItem {
+		private final String keyId;
+		private final String ciphertext;
+
+		public CiphertextItem(String keyId, String ciphertext) {
+			this.keyId = keyId;
+			this.ciphertext = ciphertext;
+		}
+
+		public String getKeyId() { return keyId; }
+		public String getCiphertext() { return ciphertext; }
+	}
+
+	// Result is the outcome of one item: either a value or the exception that item failed with.
+	public static class Result<T> {
+		private final int index;
+		private final T value;
+		private final Throwable error;
+
+		private Result(int index, T value, Throwable error) {
+			this.index = index;
+			this.value = value;
+			this.error = error;
+		}
+
+		static <T> Result<T> success(int index, T value) { return new Result<T>(index, value, null); }
+		static <T> Result<T> failure(int index, Throwable error) { return new Result<T>(index, null, error); }
+
+		// the position of the item in the input
+		public int getIndex() { return index; }
+		public boolean isSuccess() { return error == null; }
+		public T getValue() { return value; }
+		public Throwable getError() { return error; }
+
+		@Override
+		public String toString() {
+			return isSuccess() ? "Result[" + index + ": " + value + "]" : "Result[" + index + " failed: " + error + "]";
+		}
+	}
+}
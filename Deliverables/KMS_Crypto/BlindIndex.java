@@ -0,0 +1,140 @@
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// BlindIndex computes searchable digests of sensitive fields, so that a row can be found by an encrypted value (e.g.
+// an SSN) with an equality lookup on an indexed column instead of decrypting every row. The digest of a value is
+// HMAC-SHA256 under a secret key, truncated to digestLength bytes, and is stored next to the ciphertext, e.g. in a
+// BYTEA column with an ordinary B-tree index: to look up a value, compute its digest and query "WHERE column = ?".
+//     * The root key is a DEK from generateDataEncryptionKey, so it is protected by the vault key: only its wrapped
+//       form (getWrappedKey) is stored, and open() asks the vault to unwrap it.
+//     * Each field gets its own HMAC key, HMAC-SHA256(root key, "blind-index" || 0 || field name), so equal values in
+//       different fields do not have equal digests.
+//     * Truncation keeps the index small; shorter digests also mean more unrelated values share a digest, so a lookup
+//       returns candidates that must be decrypted and compared before they are used.
+// Values are hashed exactly as given; normalize them (case, whitespace, formatting) before calling compute.
+public class BlindIndex {
+
+	// DEFAULT_DIGEST_LENGTH is the number of HMAC bytes kept (128 bits), which makes accidental matches negligible.
+	public static final int DEFAULT_DIGEST_LENGTH = 16;
+	// MIN_DIGEST_LENGTH: shorter digests would make most lookups return false positives.
+	public static final int MIN_DIGEST_LENGTH = 8;
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final byte[] FIELD_KEY_LABEL = "blind-index".getBytes(StandardCharsets.UTF_8);
+
+	private final String keyId;
+	private final byte[] wrappedKey;
+	private final int digestLength;
+	private final SecureBufferPool.Lease rootKey;
+	// the per-field HMAC keys, derived on first use
+	private final Map<String, SecureBufferPool.Lease> fieldKeys = new ConcurrentHashMap<String, SecureBufferPool.Lease>();
+	// Mac is not thread-safe, so every thread keeps one initialized Mac per field
+	private final ThreadLocal<Map<String, Mac>> macs = new ThreadLocal<Map<String, Mac>>() {
+		@Override
+		protected Map<String, Mac> initialValue() {
+			return new HashMap<String, Mac>();
+		}
+	};
+	private volatile boolean destroyed;
+
+	// Takes ownership of the lease, whose buffer holds the unwrapped root key.
+	public BlindIndex(String keyId, SecureBufferPool.Lease rootKey, byte[] wrappedKey, int digestLength) {
+		if (digestLength < MIN_DIGEST_LENGTH || digestLength > 32) {
+			throw new IllegalArgumentException("The digest length must be between " + MIN_DIGEST_LENGTH + " and 32 bytes.");
+		}
+		this.keyId = keyId;
+		this.rootKey = rootKey;
+		this.wrappedKey = wrappedKey;
+		this.digestLength = digestLength;
+	}
+
+	// Creates a new root key under the vault key. Store getWrappedKey() (e.g. in a configuration table): every writer
+	// and reader of the index must open the same root key.
+	public static BlindIndex create(KmsCryptoClient kmsCryptoClient, String keyId) throws Exception {
+		DataKey dataKey = EnvelopeCrypto.generateDataKey(kmsCryptoClient, keyId);
+		byte[] rootKey = dataKey.toSecretKey().getEncoded();
+		dataKey.destroy();
+		return new BlindIndex(keyId, SecureBufferPool.getDefault().acquireCopy(rootKey), dataKey.getWrappedKey(), DEFAULT_DIGEST_LENGTH);
+	}
+
+	// Opens a root key created by create, asking the vault to unwrap it.
+	public static BlindIndex open(KmsCryptoClient kmsCryptoClient, String keyId, byte[] wrappedKey) throws Exception {
+		return open(kmsCryptoClient, keyId, wrappedKey, DEFAULT_DIGEST_LENGTH);
+	}
+
+	public static BlindIndex open(KmsCryptoClient kmsCryptoClient, String keyId, byte[] wrappedKey, int digestLength) throws Exception {
+		byte[] rootKey = EnvelopeCrypto.unwrap(kmsCryptoClient, keyId, wrappedKey);
+		return new BlindIndex(keyId, SecureBufferPool.getDefault().acquireCopy(rootKey), wrappedKey.clone(), digestLength);
+	}
+
+	// the OCID of the vault key that wraps the root key
+	public String getKeyId() { return keyId; }
+	public byte[] getWrappedKey() { return wrappedKey.clone(); }
+	public int getDigestLength() { return digestLength; }
+
+	// The digest of the value of the given field, to store beside the ciphertext or to look rows up with.
+	public byte[] compute(String field, byte[] value) throws GeneralSecurityException {
+		Mac mac = mac(field);
+		byte[] digest = mac.doFinal(value);
+		byte[] truncated = new byte[digestLength];
+		System.arraycopy(digest, 0, truncated, 0, digestLength);
+		return truncated;
+	}
+
+	// The digest of the UTF-8 bytes of the value.
+	public byte[] compute(String field, String value) throws GeneralSecurityException {
+		return compute(field, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Zeroes the root key and the derived field keys. Macs already initialized by other threads keep their own copy
+	// of their field key until those threads end.
+	public void destroy() {
+		destroyed = true;
+		for (SecureBufferPool.Lease fieldKey : fieldKeys.values()) {
+			fieldKey.close();
+		}
+		fieldKeys.clear();
+		macs.remove();
+		rootKey.close();
+	}
+
+	private Mac mac(String field) throws GeneralSecurityException {
+		if (destroyed) {
+			throw new IllegalStateException("The blind index key has been destroyed.");
+		}
+		Map<String, Mac> threadMacs = macs.get();
+		Mac mac = threadMacs.get(field);
+		if (mac == null) {
+			mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(fieldKey(field));
+			threadMacs.put(field, mac);
+		}
+		return mac;
+	}
+
+	private SecretKeySpec fieldKey(String field) throws GeneralSecurityException {
+		SecureBufferPool.Lease fieldKey = fieldKeys.get(field);
+		if (fieldKey == null) {
+			Mac derive = Mac.getInstance(MAC_ALGORITHM);
+			derive.init(rootKey.toSecretKey());
+			derive.update(FIELD_KEY_LABEL);
+			derive.update((byte) 0);
+			SecureBufferPool.Lease derived = SecureBufferPool.getDefault().acquireCopy(derive.doFinal(field.getBytes(StandardCharsets.UTF_8)));
+			SecureBufferPool.Lease existing = fieldKeys.putIfAbsent(field, derived);
+			if (existing != null) {
+				derived.close();
+				fieldKey = existing;
+			} else {
+				fieldKey = derived;
+			}
+		}
+		return fieldKey.toSecretKey();
+	}
+}
@@ -0,0 +1,390 @@
+import com.oracle.bmc.keymanagement.KmsManagementClient;
+import com.oracle.bmc.keymanagement.model.KeySummary;
+import com.oracle.bmc.keymanagement.model.KeyVersionSummary;
+import com.oracle.bmc.keymanagement.model.ScheduleKeyDeletionDetails;
+import com.oracle.bmc.keymanagement.model.UpdateKeyDetails;
+import com.oracle.bmc.keymanagement.requests.CancelKeyDeletionRequest;
+import com.oracle.bmc.keymanagement.requests.CreateKeyVersionRequest;
+import com.oracle.bmc.keymanagement.requests.DisableKeyRequest;
+import com.oracle.bmc.keymanagement.requests.EnableKeyRequest;
+import com.oracle.bmc.keymanagement.requests.ListKeyVersionsRequest;
+import com.oracle.bmc.keymanagement.requests.ScheduleKeyDeletionRequest;
+import com.oracle.bmc.keymanagement.requests.UpdateKeyRequest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// BulkKeyOperations runs one key lifecycle operation (rotate, disable, enable, schedule or cancel deletion, update) on
+// many keys at once, e.g. a quarterly rotation of thousands of keys:
+//     * the keys come from a KeySelector: a list of ids, or the keys of a KeyInventory, optionally filtered by a
+//       freeform tag, so that selecting keys costs no API calls besides the inventory refresh
+//     * up to parallelism keys are worked on at the same time, each through a KeyStateAwaiter, so a key that is busy
+//       (e.g. still ENABLING) is retried as soon as it settles. The pace is set by the management client: pass a
+//       RateLimitedKmsManagementClient so that the calls stay under the vault's management write quota.
+//     * a ProgressListener is told about every finished key
+//     * with a journal file, every finished key is appended to it, and keys that the same operation already
+//       succeeded on are skipped, so a run that crashed or was stopped can simply be started again. Keys that failed
+//       are retried. Use one journal per job: a second quarterly rotation needs a new file.
+// Lines are flushed to the file system after every key, so they survive a crash of the process (not of the machine).
+// The journal is at-least-once: a key is recorded after its call returns, so a key whose call went through just
+// before a crash, or whose outcome was unknown and then recorded as failed, is worked on again by the next run. That
+// is harmless for operations that can be repeated (disable, enable, update, ...). createKeyVersion cannot: within a
+// run, a call that failed with an unknown outcome is only retried after listKeyVersions shows no version created
+// since the run started (see NonIdempotentKeyOperation), but a run that is started again may still rotate such a key
+// twice.
+public class BulkKeyOperations implements AutoCloseable {
+
+	public static final int DEFAULT_PARALLELISM = 16;
+	// CLOCK_SKEW_MILLIS is how far the start of a run is moved back when it is compared with times set by the vault.
+	static final long CLOCK_SKEW_MILLIS = 60000L;
+	private static final String SUCCEEDED = "OK";
+	private static final String FAILED = "FAILED";
+
+	// KeySelector picks the keys to work on.
+	public interface KeySelector {
+		Collection<String> select() throws Exception;
+	}
+
+	// KeyOperation is the lifecycle call made for each key. Its name identifies it in the journal.
+	public interface KeyOperation {
+		String getName();
+		Object apply(KmsManagementClient kmsManagementClient, String keyId);
+	}
+
+	// NonIdempotentKeyOperation is a KeyOperation that must not be applied twice to a key. findApplied returns the
+	// result of an earlier call on the key that took effect at or after since, or null if there is none.
+	public interface NonIdempotentKeyOperation extends KeyOperation {
+		Object findApplied(KmsManagementClient kmsManagementClient, String keyId, Date since);
+	}
+
+	// ProgressListener is called from the worker threads, one call at a time, after every key.
+	public interface ProgressListener {
+		void progress(Progress progress);
+	}
+
+	private final KmsManagementClient kmsManagementClient;
+	private final KeyStateAwaiter keyStateAwaiter;
+	private final Path journal;
+	private final ExecutorService executor;
+
+	// journal may be null, in which case runs cannot be resumed.
+	public BulkKeyOperations(KmsManagementClient kmsManagementClient, int parallelism, Path journal) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("BulkKeyOperations needs a positive parallelism.");
+		}
+		this.kmsManagementClient = kmsManagementClient;
+		this.keyStateAwaiter = new KeyStateAwaiter(kmsManagementClient);
+		this.journal = journal;
+		this.executor = Executors.newFixedThreadPool(parallelism, BatchCrypto.daemonThreads("bulk-key-"));
+	}
+
+	// Runs the operation on every selected key and waits for all of them. listener may be null. Failures of single
+	// keys do not stop the run; they are collected in the report.
+	public Report run(KeySelector selector, final KeyOperation operation, final ProgressListener listener) throws Exception {
+		Set<String> keyIds = new LinkedHashSet<String>(selector.select());
+		Set<String> done = completed(operation.getName());
+		final Date since = new Date(System.currentTimeMillis() - CLOCK_SKEW_MILLIS);
+		final Tracker tracker = new Tracker(keyIds.size(), listener);
+		final Writer writer = journal == null ? null : Files.newBufferedWriter(journal, StandardCharsets.UTF_8,
+			StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for (final String keyId : keyIds) {
+				if (done.contains(keyId)) {
+					tracker.skipped();
+					continue;
+				}
+				futures.add(executor.submit(() -> {
+					Exception error = null;
+					try {
+						if (operation instanceof NonIdempotentKeyOperation) {
+							final NonIdempotentKeyOperation once = (NonIdempotentKeyOperation) operation;
+							keyStateAwaiter.callOnce(keyId, () -> once.apply(kmsManagementClient, keyId),
+								() -> once.findApplied(kmsManagementClient, keyId, since));
+						} else {
+							keyStateAwaiter.call(keyId, () -> operation.apply(kmsManagementClient, keyId));
+						}
+					} catch (Exception e) {
+						error = e;
+					}
+					record(writer, operation.getName(), keyId, error);
+					tracker.finished(keyId, error);
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+			throw e;
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+		}
+		return tracker.report();
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	// The keys the operation succeeded on in earlier runs, read from the journal. A line cut short by a crash is
+	// ignored, so its key is worked on again.
+	private Set<String> completed(String operationName) throws IOException {
+		Set<String> done = new HashSet<String>();
+		if (journal == null || !Files.exists(journal)) {
+			return done;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length == 3 && fields[0].equals(operationName)) {
+					if (SUCCEEDED.equals(fields[2])) {
+						done.add(fields[1]);
+					} else if (FAILED.equals(fields[2])) {
+						done.remove(fields[1]);
+					}
+				}
+			}
+		}
+		return done;
+	}
+
+	private static void record(Writer writer, String operationName, String keyId, Throwable error) throws IOException {
+		if (writer == null) {
+			return;
+		}
+		synchronized (writer) {
+			writer.write(operationName + "\t" + keyId + "\t" + (error == null ? SUCCEEDED : FAILED) + "\n");
+			writer.flush();
+		}
+	}
+
+	// Selectors.
+	public static KeySelector ids(String... keyIds) {
+		return ids(Arrays.asList(keyIds));
+	}
+
+	public static KeySelector ids(final Collection<String> keyIds) {
+		return () -> keyIds;
+	}
+
+	// Every key of the inventory that is not deleted or being deleted.
+	public static KeySelector compartment(final KeyInventory inventory) {
+		return () -> {
+			List<String> keyIds = new ArrayList<String>();
+			for (KeyInventory.Entry entry : inventory.getAll()) {
+				if (isLive(entry)) {
+					keyIds.add(entry.getKeyId());
+				}
+			}
+			return keyIds;
+		};
+	}
+
+	// The keys of the inventory that are not deleted or being deleted and have the given freeform tag.
+	public static KeySelector tagged(final KeyInventory inventory, final String tagName, final String tagValue) {
+		return () -> {
+			List<String> keyIds = new ArrayList<String>();
+			for (KeyInventory.Entry entry : inventory.getAll()) {
+				Map<String, String> tags = entry.getSummary().getFreeformTags();
+				if (isLive(entry) && tags != null && tagValue.equals(tags.get(tagName))) {
+					keyIds.add(entry.getKeyId());
+				}
+			}
+			return keyIds;
+		};
+	}
+
+	private static boolean isLive(KeyInventory.Entry entry) {
+		KeySummary.LifecycleState state = entry.getState();
+		return state != KeySummary.LifecycleState.Deleted && state != KeySummary.LifecycleState.Deleting
+			&& state != KeySummary.LifecycleState.PendingDeletion && state != KeySummary.LifecycleState.SchedulingDeletion;
+	}
+
+	// Operations.
+	// A new key version is not created twice by one run: see NonIdempotentKeyOperation.
+	public static KeyOperation createKeyVersion() {
+		return new NonIdempotentKeyOperation() {
+			public String getName() { return "createKeyVersion"; }
+
+			public Object apply(KmsManagementClient kmsManagementClient, String keyId) {
+				return kmsManagementClient.createKeyVersion(CreateKeyVersionRequest.builder().keyId(keyId).build());
+			}
+
+			public Object findApplied(KmsManagementClient kmsManagementClient, String keyId, Date since) {
+				return versionCreatedSince(kmsManagementClient, keyId, since);
+			}
+		};
+	}
+
+	// The newest version of the key if it was created at or after since, else null. KeyRotationScheduler uses it too.
+	static KeyVersionSummary versionCreatedSince(KmsManagementClient kmsManagementClient, String keyId, Date since) {
+		List<KeyVersionSummary> versions = kmsManagementClient.listKeyVersions(ListKeyVersionsRequest.builder()
+			.keyId(keyId)
+			.sortBy(ListKeyVersionsRequest.SortBy.Timecreated)
+			.sortOrder(ListKeyVersionsRequest.SortOrder.Desc)
+			.limit(1)
+			.build()).getItems();
+		return versions.isEmpty() || versions.get(0).getTimeCreated().before(since) ? null : versions.get(0);
+	}
+
+	public static KeyOperation disableKey() {
+		return operation("disableKey", (client, keyId) -> client.disableKey(DisableKeyRequest.builder().keyId(keyId).build()));
+	}
+
+	public static KeyOperation enableKey() {
+		return operation("enableKey", (client, keyId) -> client.enableKey(EnableKeyRequest.builder().keyId(keyId).build()));
+	}
+
+	// timeOfDeletion may be null for the vault's default waiting period.
+	public static KeyOperation scheduleKeyDeletion(final Date timeOfDeletion) {
+		return operation("scheduleKeyDeletion", (client, keyId) -> client.scheduleKeyDeletion(ScheduleKeyDeletionRequest.builder()
+			.keyId(keyId)
+			.scheduleKeyDeletionDetails(ScheduleKeyDeletionDetails.builder().timeOfDeletion(timeOfDeletion).build())
+			.build()));
+	}
+
+	public static KeyOperation cancelKeyDeletion() {
+		return operation("cancelKeyDeletion", (client, keyId) -> client.cancelKeyDeletion(CancelKeyDeletionRequest.builder().keyId(keyId).build()));
+	}
+
+	// Applies the same details (e.g. tags) to every key. Different details make a different job, so give them a
+	// distinct name for the journal.
+	public static KeyOperation updateKey(String name, final UpdateKeyDetails updateKeyDetails) {
+		return operation("updateKey:" + name, (client, keyId) -> client.updateKey(UpdateKeyRequest.builder()
+			.keyId(keyId)
+			.updateKeyDetails(updateKeyDetails)
+			.build()));
+	}
+
+	private interface Call {
+		Object apply(KmsManagementClient kmsManagementClient, String keyId);
+	}
+
+	private static KeyOperation operation(final String name, final Call call) {
+		return new KeyOperation() {
+			public String getName() { return name; }
+			public Object apply(KmsManagementClient kmsManagementClient, String keyId) { return call.apply(kmsManagementClient, keyId); }
+		};
+	}
+
+	// Progress is the state of a run after a key has finished.
+	public static class Progress {
+		private final int total;
+		private final int skipped;
+		private final int succeeded;
+		private final int failed;
+		private final long elapsedMillis;
+
+		private Progress(int total, int skipped, int succeeded, int failed, long elapsedMillis) {
+			this.total = total;
+			this.skipped = skipped;
+			this.succeeded = succeeded;
+			this.failed = failed;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public int getTotal() { return total; }
+		// keys done in an earlier run, according to the journal
+		public int getSkipped() { return skipped; }
+		public int getSucceeded() { return succeeded; }
+		public int getFailed() { return failed; }
+		public int getRemaining() { return total - skipped - succeeded - failed; }
+		public long getElapsedMillis() { return elapsedMillis; }
+
+		// the estimated time left at the pace of this run so far, or -1 if nothing has finished yet
+		public long getEstimatedRemainingMillis() {
+			int finished = succeeded + failed;
+			return finished == 0 ? -1 : elapsedMillis * getRemaining() / finished;
+		}
+
+		@Override
+		public String toString() {
+			return (total - getRemaining()) + "/" + total + " keys done (" + succeeded + " succeeded, " + failed + " failed, "
+				+ skipped + " skipped), " + (elapsedMillis / 1000) + "s elapsed"
+				+ (getEstimatedRemainingMillis() < 0 ? "" : ", about " + (getEstimatedRemainingMillis() / 1000) + "s left");
+		}
+	}
+
+	// Report is the outcome of a run: the keys that failed, with their errors.
+	public static class Report {
+		private final Progress progress;
+		private final Map<String, Throwable> failures;
+
+		private Report(Progress progress, Map<String, Throwable> failures) {
+			this.progress = progress;
+			this.failures = failures;
+		}
+
+		public Progress getProgress() { return progress; }
+		public Map<String, Throwable> getFailures() { return failures; }
+
+		@Override
+		public String toString() {
+			return "Report[" + progress + "]";
+		}
+	}
+
+	// Tracker counts the finished keys and tells the listener.
+	private static class Tracker {
+		private final int total;
+		private final ProgressListener listener;
+		private final long start = System.currentTimeMillis();
+		private final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+		private int skipped;
+		private int succeeded;
+
+		private Tracker(int total, ProgressListener listener) {
+			this.total = total;
+			this.listener = listener;
+		}
+
+		private synchronized void skipped() {
+			skipped++;
+		}
+
+		private synchronized void finished(String keyId, Throwable error) {
+			if (error == null) {
+				succeeded++;
+			} else {
+				failures.put(keyId, error);
+			}
+			if (listener != null) {
+				listener.progress(progress());
+			}
+		}
+
+		private synchronized Progress progress() {
+			return new Progress(total, skipped, succeeded, failures.size(), System.currentTimeMillis() - start);
+		}
+
+		private synchronized Report report() {
+			return new Report(progress(), new LinkedHashMap<String, Throwable>(failures));
+		}
+	}
+}
@@ -0,0 +1,137 @@
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+import com.oracle.bmc.keymanagement.model.DecryptDataDetails;
+import com.oracle.bmc.keymanagement.model.EncryptDataDetails;
+import com.oracle.bmc.keymanagement.requests.DecryptRequest;
+import com.oracle.bmc.keymanagement.requests.EncryptRequest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// ByteCrypto calls the vault's encrypt and decrypt endpoints with byte[] and ByteBuffer payloads instead of Strings.
+// The SDK carries payloads as Base64 Strings, so the usual round trip is plaintext.getBytes() -> byte[] ->
+// Base64.encodeBase64String -> String on the way in, and the same copies in reverse on the way out. Here the Base64
+// text is encoded from the caller's buffer into a reused per-thread char[] and decoded from the response straight into
+// the caller's buffer (see Base64Buffers), so the only Strings left per call are the ones the SDK request and response
+// objects themselves hold. No method here uses the default charset.
+// The ciphertext returned by the vault is itself Base64 text; the ByteBuffer methods store it decoded, which is 25%
+// smaller, and re-encode it for the decrypt call.
+public final class ByteCrypto {
+
+	// MAX_SCRATCH_CHARS: larger payloads get a one-off char[] instead of growing the per-thread one without bound.
+	// The encrypt endpoint takes at most 4 KB of plaintext, which is far below this.
+	private static final int MAX_SCRATCH_CHARS = 64 * 1024;
+	private static final ThreadLocal<char[]> SCRATCH = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[Base64Buffers.encodedLength(4096)];
+		}
+	};
+
+	private ByteCrypto() {
+	}
+
+	// Encrypts the remaining bytes of plaintext and returns the vault's ciphertext text. The bytes are only consumed
+	// once the call succeeds, so a failed call can be retried with the same buffer.
+	public static String encrypt(KmsCryptoClient kmsCryptoClient, String keyId, ByteBuffer plaintext) {
+		EncryptDataDetails encryptDataDetails = EncryptDataDetails.builder()
+			.keyId(keyId)
+			.plaintext(toBase64(plaintext.duplicate()))
+			.build();
+		EncryptRequest encryptRequest = EncryptRequest.builder().encryptDataDetails(encryptDataDetails).build();
+		String ciphertext = kmsCryptoClient.encrypt(encryptRequest).getEncryptedData().getCiphertext();
+		plaintext.position(plaintext.limit());
+		return ciphertext;
+	}
+
+	public static String encrypt(KmsCryptoClient kmsCryptoClient, String keyId, byte[] plaintext, int offset, int length) {
+		return encrypt(kmsCryptoClient, keyId, ByteBuffer.wrap(plaintext, offset, length));
+	}
+
+	// Encrypts the remaining bytes of plaintext and writes the decoded ciphertext into ciphertextOut at its position.
+	// Returns the number of bytes written.
+	public static int encrypt(KmsCryptoClient kmsCryptoClient, String keyId, ByteBuffer plaintext, ByteBuffer ciphertextOut) {
+		return Base64Buffers.decode(encrypt(kmsCryptoClient, keyId, plaintext), ciphertextOut);
+	}
+
+	// Decrypts the vault's ciphertext text into plaintextOut at its position. Returns the number of bytes written.
+	public static int decrypt(KmsCryptoClient kmsCryptoClient, String keyId, String ciphertext, ByteBuffer plaintextOut) {
+		DecryptDataDetails decryptDataDetails = DecryptDataDetails.builder()
+			.keyId(keyId)
+			.ciphertext(ciphertext)
+			.build();
+		DecryptRequest decryptRequest = DecryptRequest.builder().decryptDataDetails(decryptDataDetails).build();
+		return Base64Buffers.decode(kmsCryptoClient.decrypt(decryptRequest).getDecryptedData().getPlaintext(), plaintextOut);
+	}
+
+	// Decrypts the vault's ciphertext text into a buffer borrowed from the pool, so the plaintext never lands in a heap
+	// array. The buffer is ready to read; the caller closes the lease, which zeroes it.
+	public static SecureBufferPool.Lease decrypt(KmsCryptoClient kmsCryptoClient, String keyId, String ciphertext, SecureBufferPool pool) {
+		DecryptDataDetails decryptDataDetails = DecryptDataDetails.builder()
+			.keyId(keyId)
+			.ciphertext(ciphertext)
+			.build();
+		DecryptRequest decryptRequest = DecryptRequest.builder().decryptDataDetails(decryptDataDetails).build();
+		String plaintext = kmsCryptoClient.decrypt(decryptRequest).getDecryptedData().getPlaintext();
+		SecureBufferPool.Lease lease = pool.acquire(Base64Buffers.decodedLength(plaintext));
+		try {
+			Base64Buffers.decode(plaintext, lease.getBuffer());
+			lease.getBuffer().flip();
+			return lease;
+		} catch (RuntimeException e) {
+			lease.close();
+			throw e;
+		}
+	}
+
+	public static int decrypt(KmsCryptoClient kmsCryptoClient, String keyId, String ciphertext, byte[] plaintextOut, int offset) {
+		return decrypt(kmsCryptoClient, keyId, ciphertext, ByteBuffer.wrap(plaintextOut, offset, plaintextOut.length - offset));
+	}
+
+	// Decrypts the remaining bytes of a ciphertext written by encrypt(..., ciphertextOut). Like encrypt, the bytes are
+	// only consumed once the call succeeds.
+	public static int decrypt(KmsCryptoClient kmsCryptoClient, String keyId, ByteBuffer ciphertext, ByteBuffer plaintextOut) {
+		int length = decrypt(kmsCryptoClient, keyId, toBase64(ciphertext.duplicate()), plaintextOut);
+		ciphertext.position(ciphertext.limit());
+		return length;
+	}
+
+	// Decrypts the vault's ciphertext text and encrypts the plaintext again under the key's current version, e.g. to
+	// move a stored payload to a rotated key. SDK 1.12 has no re-encrypt call, so the plaintext passes through a pooled
+	// off-heap buffer, which is zeroed afterwards.
+	public static String reencrypt(KmsCryptoClient kmsCryptoClient, String keyId, String ciphertext) {
+		try (SecureBufferPool.Lease plaintext = decrypt(kmsCryptoClient, keyId, ciphertext, SecureBufferPool.getDefault())) {
+			return encrypt(kmsCryptoClient, keyId, plaintext.getBuffer());
+		}
+	}
+
+	// Base64 text of the remaining bytes of data, consuming them. The text is built in the per-thread scratch buffer,
+	// so the returned String is the only allocation. The scratch buffer is wiped afterwards, since the data may be a
+	// plaintext or a key.
+	public static String toBase64(ByteBuffer data) {
+		int length = Base64Buffers.encodedLength(data.remaining());
+		char[] chars = SCRATCH.get();
+		if (chars.length < length) {
+			chars = new char[length];
+			if (length <= MAX_SCRATCH_CHARS) {
+				SCRATCH.set(chars);
+			}
+		}
+		try {
+			Base64Buffers.encode(data, chars, 0);
+			return new String(chars, 0, length);
+		} finally {
+			Arrays.fill(chars, 0, length, '\0');
+		}
+	}
+
+	public static String toBase64(byte[] data) {
+		return toBase64(ByteBuffer.wrap(data));
+	}
+
+	// The bytes of the Base64 text, decoded into an array of exactly the right size.
+	public static byte[] fromBase64(String base64) {
+		byte[] data = new byte[Base64Buffers.decodedLength(base64)];
+		Base64Buffers.decode(base64, ByteBuffer.wrap(data));
+		return data;
+	}
+}
@@ -0,0 +1,33 @@
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.keymanagement.KmsVaultClient;
+import com.oracle.bmc.keymanagement.requests.GetVaultRequest;
+import com.oracle.bmc.keymanagement.responses.GetVaultResponse;
+
+// CoalescingKmsVaultClient is a KmsVaultClient whose concurrent getVault calls for the same vault share one remote
+// call (see SingleFlight). Every worker that starts up or reconnects looks up the vault's endpoints, so a restart of
+// many workers at once would otherwise send the same request hundreds of times.
+public class CoalescingKmsVaultClient extends KmsVaultClient {
+
+	private final SingleFlight<String, GetVaultResponse> getVaultFlights = new SingleFlight<String, GetVaultResponse>();
+
+	public CoalescingKmsVaultClient(BasicAuthenticationDetailsProvider provider) {
+		super(provider);
+	}
+
+	@Override
+	public GetVaultResponse getVault(final GetVaultRequest request) {
+		try {
+			return getVaultFlights.execute(request.getVaultId(), () -> super.getVault(request));
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a getVault call.", e);
+		} catch (Exception e) {
+			// super.getVault only throws unchecked exceptions
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public SingleFlight<String, GetVaultResponse> getGetVaultFlights() { return getVaultFlights; }
+}
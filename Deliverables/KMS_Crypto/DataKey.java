@@ -0,0 +1,54 @@
+import javax.crypto.spec.SecretKeySpec;
+
+// DataKey holds a single data encryption key (DEK) returned by the generateDataEncryptionKey endpoint:
+//     * plaintextKey: the raw AES key. This only ever lives in memory, in an off-heap buffer borrowed from a
+//       SecureBufferPool, and is zeroed by destroy().
+//     * wrappedKey: the same key encrypted under the vault key. This is safe to store next to the ciphertext;
+//       only the vault can turn it back into the plaintext key (see EnvelopeCrypto.unwrap).
+public class DataKey {
+	private final String keyId;
+	// keyVersionId is null if the key version that wrapped the DEK is not known
+	private final String keyVersionId;
+	private final SecureBufferPool.Lease plaintextKey;
+	private final byte[] wrappedKey;
+	private final long createdAtMillis;
+
+	// Copies the plaintext key into the default SecureBufferPool and zeroes the array.
+	public DataKey(String keyId, byte[] plaintextKey, byte[] wrappedKey) {
+		this(keyId, SecureBufferPool.getDefault().acquireCopy(plaintextKey), wrappedKey);
+	}
+
+	// Takes ownership of the lease, whose buffer holds the plaintext key between its position and limit.
+	public DataKey(String keyId, SecureBufferPool.Lease plaintextKey, byte[] wrappedKey) {
+		this(keyId, null, plaintextKey, wrappedKey);
+	}
+
+	public DataKey(String keyId, String keyVersionId, SecureBufferPool.Lease plaintextKey, byte[] wrappedKey) {
+		this.keyId = keyId;
+		this.keyVersionId = keyVersionId;
+		this.plaintextKey = plaintextKey;
+		this.wrappedKey = wrappedKey;
+		this.createdAtMillis = System.currentTimeMillis();
+	}
+
+	// the OCID of the vault key that wrapped this DEK
+	public String getKeyId() { return keyId; }
+
+	// the vault key version that wrapped this DEK, or null if it is not known
+	public String getKeyVersionId() { return keyVersionId; }
+
+	// the wrapped DEK, as the raw bytes of the ciphertext returned by the vault
+	public byte[] getWrappedKey() { return wrappedKey; }
+
+	public long getCreatedAtMillis() { return createdAtMillis; }
+
+	// The JCE key spec takes its own copy of the key bytes, so the returned key is unaffected by destroy().
+	public SecretKeySpec toSecretKey() {
+		return plaintextKey.toSecretKey();
+	}
+
+	// Zeroes the plaintext key and returns its buffer to the pool. The DataKey must not be used to encrypt afterwards.
+	public void destroy() {
+		plaintextKey.close();
+	}
+}
@@ -0,0 +1,211 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// DataKeyCache keeps one plaintext data encryption key (DEK) per vault key and hands it out for many encryptions,
+// so that generateDataEncryptionKey is only called when a DEK is retired. A DEK is retired by whichever limit is
+// reached first:
+//     * maxAgeMillis: how long the DEK may be used after it was generated
+//     * maxMessages: how many messages may be encrypted under it, each with its own IV (one per payload, or more, see
+//       acquire)
+//     * maxBytes: how many plaintext bytes may be encrypted under it
+// Callers borrow the DEK through a Lease. A retired DEK is zeroed as soon as the last lease on it is closed, so a
+// DEK is never wiped while another thread is still encrypting with it.
+public class DataKeyCache {
+
+	// DEFAULT_MAX_AGE_MILLIS is how long a DEK is used before a new one is requested.
+	public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(15);
+	// DEFAULT_MAX_MESSAGES keeps the number of random 96-bit AES-GCM IVs per DEK well under the 2^32 limit from NIST SP 800-38D.
+	public static final long DEFAULT_MAX_MESSAGES = 1L << 30;
+	// DEFAULT_MAX_BYTES is the maximum amount of plaintext encrypted under one DEK (64 GiB).
+	public static final long DEFAULT_MAX_BYTES = 64L << 30;
+
+	// Loader creates a new DEK for a vault key, usually through EnvelopeCrypto.generateDataKey.
+	public interface Loader {
+		DataKey load(String keyId) throws Exception;
+	}
+
+	private final Loader loader;
+	private final long maxAgeMillis;
+	private final long maxMessages;
+	private final long maxBytes;
+	private final Map<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public DataKeyCache(Loader loader) {
+		this(loader, DEFAULT_MAX_AGE_MILLIS, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES);
+	}
+
+	public DataKeyCache(Loader loader, long maxAgeMillis, long maxMessages, long maxBytes) {
+		if (maxAgeMillis <= 0 || maxMessages <= 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("DataKeyCache limits must be positive.");
+		}
+		this.loader = loader;
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+	}
+
+	// Borrows the current DEK for a vault key to encrypt one payload of the given size, generating a new DEK if
+	// there is none yet or the current one has reached a limit. The lease must be closed once the payload is encrypted.
+	public Lease acquire(String keyId, long plaintextBytes) throws Exception {
+		return acquire(keyId, plaintextBytes, 1);
+	}
+
+	// Like acquire, for a payload that is encrypted as several messages under the DEK, each with its own IV (e.g. the
+	// fields of a FieldCrypto record). Every message counts towards maxMessages.
+	public Lease acquire(String keyId, long plaintextBytes, long messages) throws Exception {
+		if (messages <= 0) {
+			throw new IllegalArgumentException("A payload is at least one message.");
+		}
+		Slot slot = slots.get(keyId);
+		if (slot == null) {
+			slots.putIfAbsent(keyId, new Slot());
+			slot = slots.get(keyId);
+		}
+		// The slot lock is held while a new DEK is generated, so threads that miss on the same vault key at the
+		// same time wait for a single generateDataEncryptionKey call instead of each making their own.
+		synchronized (slot) {
+			Entry entry = slot.current;
+			if (entry != null && entry.tryUse(plaintextBytes, messages, System.currentTimeMillis())) {
+				hits.incrementAndGet();
+				return new Lease(entry);
+			}
+			if (entry != null) {
+				slot.current = null;
+				entry.retire();
+				evictions.incrementAndGet();
+			}
+			misses.incrementAndGet();
+			entry = new Entry(loader.load(keyId));
+			entry.tryUse(plaintextBytes, messages, entry.dataKey.getCreatedAtMillis());
+			slot.current = entry;
+			return new Lease(entry);
+		}
+	}
+
+	// Retires every DEK that has outlived maxAgeMillis. acquire already does this lazily for the key it is asked
+	// for; call this periodically to also wipe DEKs of vault keys that are no longer being used.
+	public void evictExpired() {
+		long now = System.currentTimeMillis();
+		for (Slot slot : slots.values()) {
+			synchronized (slot) {
+				if (slot.current != null && now - slot.current.dataKey.getCreatedAtMillis() >= maxAgeMillis) {
+					slot.current.retire();
+					slot.current = null;
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	// Retires the current DEK of a vault key, so that the next acquire generates a new one. Called after the vault key
+	// was rotated, so that new payloads get DEKs wrapped under the new key version; payloads being encrypted right now
+	// finish with the old DEK.
+	public void retire(String keyId) {
+		Slot slot = slots.get(keyId);
+		if (slot == null) {
+			return;
+		}
+		synchronized (slot) {
+			if (slot.current != null) {
+				slot.current.retire();
+				slot.current = null;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	// Retires every cached DEK.
+	public void close() {
+		for (Slot slot : slots.values()) {
+			synchronized (slot) {
+				if (slot.current != null) {
+					slot.current.retire();
+					slot.current = null;
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	// Counters used to size the limits: a hit reused a cached DEK, a miss generated a new one (one vault call),
+	// and an eviction retired a DEK.
+	public long getHits() { return hits.get(); }
+	public long getMisses() { return misses.get(); }
+	public long getEvictions() { return evictions.get(); }
+
+	@Override
+	public String toString() {
+		return "DataKeyCache[hits=" + hits.get() + ", misses=" + misses.get() + ", evictions=" + evictions.get() + "]";
+	}
+
+	// Lease is a borrowed DEK. Closing it lets the cache zero the DEK once it has been retired.
+	public static class Lease implements AutoCloseable {
+		private final Entry entry;
+		private boolean closed;
+
+		private Lease(Entry entry) {
+			this.entry = entry;
+		}
+
+		public DataKey getDataKey() { return entry.dataKey; }
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				entry.release();
+			}
+		}
+	}
+
+	private static class Slot {
+		private Entry current;
+	}
+
+	// Entry tracks the usage of one DEK against the limits, and how many leases on it are still open.
+	private class Entry {
+		private final DataKey dataKey;
+		private long messages;
+		private long bytes;
+		private int leases;
+		private boolean retired;
+
+		private Entry(DataKey dataKey) {
+			this.dataKey = dataKey;
+		}
+
+		// A new DEK always takes its first payload, even one over the limits.
+		private synchronized boolean tryUse(long plaintextBytes, long messageCount, long now) {
+			if (retired
+					|| now - dataKey.getCreatedAtMillis() >= maxAgeMillis
+					|| (messages > 0 && messages + messageCount > maxMessages)
+					|| (messages > 0 && bytes + plaintextBytes > maxBytes)) {
+				return false;
+			}
+			messages += messageCount;
+			bytes += plaintextBytes;
+			leases++;
+			return true;
+		}
+
+		private synchronized void release() {
+			leases--;
+			if (retired && leases == 0) {
+				dataKey.destroy();
+			}
+		}
+
+		private synchronized void retire() {
+			retired = true;
+			if (leases == 0) {
+				dataKey.destroy();
+			}
+		}
+	}
+}
@@ -0,0 +1,252 @@
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+import com.oracle.bmc.keymanagement.model.DecryptDataDetails;
+import com.oracle.bmc.keymanagement.model.GenerateKeyDetails;
+import com.oracle.bmc.keymanagement.model.GeneratedKey;
+import com.oracle.bmc.keymanagement.model.KeyShape;
+import com.oracle.bmc.keymanagement.requests.DecryptRequest;
+import com.oracle.bmc.keymanagement.requests.GenerateDataEncryptionKeyRequest;
+import com.oracle.bmc.keymanagement.responses.DecryptResponse;
+import com.oracle.bmc.keymanagement.responses.GenerateDataEncryptionKeyResponse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// EnvelopeCrypto encrypts payloads locally with AES-GCM under a data encryption key (DEK) instead of sending every
+// payload to the vault's encrypt endpoint. DEKs are obtained from generateDataEncryptionKey and reused for many
+// payloads through a DataKeyCache. The wrapped form of the DEK is stored in front of each ciphertext, so the decrypt
+// side only has to ask the vault to unwrap the DEK, and an UnwrappedKeyCache makes that one call per DEK rather than
+// one per payload. The envelope layout is:
+//     [EnvelopeHeader: format version, algorithm, vault key id, key version id, wrapped DEK, IV]
+//     [AES-GCM ciphertext + 16 byte tag]
+// The header names the vault key and key version, so decrypt routes every envelope to its own key and caches its DEK
+// by key version without being told the key id (see EnvelopeHeader). Envelopes of the older format, which only hold
+// the wrapped DEK, are decrypted with this instance's key id.
+public class EnvelopeCrypto {
+
+	// DEK_SHAPE is the shape of the data encryption keys requested from the vault (AES-256).
+	private static final KeyShape DEK_SHAPE = KeyShape.builder().algorithm(KeyShape.Algorithm.Aes).length(32).build();
+	static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+	static final int IV_LENGTH = 12;
+	static final int TAG_LENGTH = 16;
+
+	private final KmsCryptoClient kmsCryptoClient;
+	private final String keyId;
+	// dataKeyCache decides when a new DEK has to be generated, and unwrappedKeyCache remembers DEKs already unwrapped
+	// by the vault. Both may be shared between several EnvelopeCrypto instances.
+	private final DataKeyCache dataKeyCache;
+	private final UnwrappedKeyCache unwrappedKeyCache;
+
+	// Uses a private DataKeyCache and UnwrappedKeyCache with the default limits.
+	public EnvelopeCrypto(KmsCryptoClient kmsCryptoClient, String keyId) {
+		this(kmsCryptoClient, keyId, newDataKeyCache(kmsCryptoClient), newUnwrappedKeyCache(kmsCryptoClient));
+	}
+
+	public EnvelopeCrypto(KmsCryptoClient kmsCryptoClient, String keyId, DataKeyCache dataKeyCache, UnwrappedKeyCache unwrappedKeyCache) {
+		this.kmsCryptoClient = kmsCryptoClient;
+		this.keyId = keyId;
+		this.dataKeyCache = dataKeyCache;
+		this.unwrappedKeyCache = unwrappedKeyCache;
+	}
+
+	// A DataKeyCache with the default limits that generates DEKs through the given client.
+	public static DataKeyCache newDataKeyCache(final KmsCryptoClient kmsCryptoClient) {
+		return newDataKeyCache(kmsCryptoClient, null);
+	}
+
+	// Like newDataKeyCache, but every DEK records the current version of its vault key according to the inventory, so
+	// the envelopes say which version wrapped their DEK. The inventory is read locally; the version is the one known
+	// before the DEK is generated, so after a rotation it may name the previous version until the inventory is
+	// refreshed, but never a newer one. inventory may be null.
+	public static DataKeyCache newDataKeyCache(final KmsCryptoClient kmsCryptoClient, final KeyInventory inventory) {
+		return new DataKeyCache(new DataKeyCache.Loader() {
+			public DataKey load(String keyId) throws Exception {
+				KeyInventory.Entry entry = inventory == null ? null : inventory.get(keyId);
+				return generateDataKey(kmsCryptoClient, keyId, entry == null ? null : entry.getCurrentVersionId());
+			}
+		});
+	}
+
+	// An UnwrappedKeyCache with the default size that unwraps DEKs through the given client.
+	public static UnwrappedKeyCache newUnwrappedKeyCache(final KmsCryptoClient kmsCryptoClient) {
+		return new UnwrappedKeyCache(new UnwrappedKeyCache.Unwrapper() {
+			public byte[] unwrap(String keyId, byte[] wrappedKey) throws Exception {
+				return EnvelopeCrypto.unwrap(kmsCryptoClient, keyId, wrappedKey);
+			}
+		});
+	}
+
+	public String getKeyId() { return keyId; }
+
+	public DataKeyCache getDataKeyCache() { return dataKeyCache; }
+
+	public UnwrappedKeyCache getUnwrappedKeyCache() { return unwrappedKeyCache; }
+
+	// Encrypts the payload locally. The vault is only called when the cached DEK has to be replaced.
+	public byte[] encrypt(byte[] plaintext) throws Exception {
+		try (DataKeyCache.Lease lease = dataKeyCache.acquire(keyId, plaintext.length)) {
+			return seal(lease.getDataKey(), plaintext);
+		}
+	}
+
+	// Encrypts the remaining bytes of plaintext, e.g. a buffer borrowed from a SecureBufferPool, consuming them.
+	public byte[] encrypt(ByteBuffer plaintext) throws Exception {
+		try (DataKeyCache.Lease lease = dataKeyCache.acquire(keyId, plaintext.remaining())) {
+			return seal(lease.getDataKey(), plaintext);
+		}
+	}
+
+	// Decrypts an envelope written by encrypt, under the vault key named in its header. The vault is only called to
+	// unwrap a DEK that is not cached yet.
+	public byte[] decrypt(byte[] envelope) throws Exception {
+		EnvelopeHeader header = EnvelopeHeader.read(envelope);
+		return open(unwrap(header), envelope, header);
+	}
+
+	// Decrypts an envelope into a buffer borrowed from the pool, so the plaintext never lands in a heap array. The
+	// buffer is ready to read; the caller closes the lease, which zeroes it.
+	public SecureBufferPool.Lease decrypt(byte[] envelope, SecureBufferPool pool) throws Exception {
+		EnvelopeHeader header = EnvelopeHeader.read(envelope);
+		SecretKey key = unwrap(header);
+		SecureBufferPool.Lease lease = pool.acquire(Math.max(0, envelope.length - header.getLength() - TAG_LENGTH));
+		try {
+			open(key, envelope, header, lease.getBuffer());
+			lease.getBuffer().flip();
+			return lease;
+		} catch (Exception e) {
+			lease.close();
+			throw e;
+		}
+	}
+
+	// The envelope's DEK, from the cache or the vault. Older envelopes do not name their key, so they use this one.
+	private SecretKey unwrap(EnvelopeHeader header) throws Exception {
+		String envelopeKeyId = header.getKeyId() == null ? keyId : header.getKeyId();
+		return unwrappedKeyCache.get(envelopeKeyId, header.getKeyVersionId(), header.getWrappedKey());
+	}
+
+	// String helpers for storing envelopes in text columns, e.g. the payload column used by the Demo.
+	public String encryptToBase64(String plaintext) throws Exception {
+		return ByteCrypto.toBase64(encrypt(plaintext.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	public String decryptFromBase64(String envelope) throws Exception {
+		return new String(decrypt(ByteCrypto.fromBase64(envelope)), StandardCharsets.UTF_8);
+	}
+
+	// Zeroes the cached DEKs. A new one is generated if encrypt is called again.
+	public void close() {
+		dataKeyCache.close();
+		unwrappedKeyCache.clear();
+	}
+
+	// Asks the vault for a new DEK, returned both in plaintext and wrapped under the vault key.
+	public static DataKey generateDataKey(KmsCryptoClient kmsCryptoClient, String keyId) throws Exception {
+		return generateDataKey(kmsCryptoClient, keyId, null);
+	}
+
+	// Like generateDataKey, recording the key version the DEK is wrapped under. The vault's response does not say, so
+	// the caller passes the version it believes is current; keyVersionId may be null.
+	public static DataKey generateDataKey(KmsCryptoClient kmsCryptoClient, String keyId, String keyVersionId) throws Exception {
+		GenerateKeyDetails generateKeyDetails = GenerateKeyDetails.builder()
+			.keyId(keyId)
+			.keyShape(DEK_SHAPE)
+			.includePlaintextKey(true)
+			.build();
+		GenerateDataEncryptionKeyRequest request = GenerateDataEncryptionKeyRequest.builder()
+			.generateKeyDetails(generateKeyDetails)
+			.build();
+		GenerateDataEncryptionKeyResponse response = kmsCryptoClient.generateDataEncryptionKey(request);
+		GeneratedKey generatedKey = response.getGeneratedKey();
+		// The plaintext key is decoded straight into an off-heap buffer, without a heap copy.
+		String plaintextKey = generatedKey.getPlaintext();
+		SecureBufferPool.Lease lease = SecureBufferPool.getDefault().acquire(Base64Buffers.decodedLength(plaintextKey));
+		try {
+			Base64Buffers.decode(plaintextKey, lease.getBuffer());
+			lease.getBuffer().flip();
+			return new DataKey(keyId, keyVersionId, lease, ByteCrypto.fromBase64(generatedKey.getCiphertext()));
+		} catch (RuntimeException e) {
+			lease.close();
+			throw e;
+		}
+	}
+
+	// Asks the vault to decrypt a wrapped DEK. The caller is responsible for zeroing the returned key.
+	public static byte[] unwrap(KmsCryptoClient kmsCryptoClient, String keyId, byte[] wrappedKey) throws Exception {
+		DecryptDataDetails decryptDataDetails = DecryptDataDetails.builder()
+			.keyId(keyId)
+			.ciphertext(ByteCrypto.toBase64(wrappedKey))
+			.build();
+		DecryptRequest decryptRequest = DecryptRequest.builder().decryptDataDetails(decryptDataDetails).build();
+		DecryptResponse response = kmsCryptoClient.decrypt(decryptRequest);
+		return ByteCrypto.fromBase64(response.getDecryptedData().getPlaintext());
+	}
+
+	// Wraps a DEK again under the current version of the vault key, e.g. after the key was rotated. The DEK itself does
+	// not change, so the data encrypted under it stays readable and is not touched; only the wrapped copy stored with
+	// it is replaced (see ByteCrypto.reencrypt).
+	public static byte[] rewrap(KmsCryptoClient kmsCryptoClient, String keyId, byte[] wrappedKey) throws Exception {
+		return ByteCrypto.fromBase64(ByteCrypto.reencrypt(kmsCryptoClient, keyId, ByteCrypto.toBase64(wrappedKey)));
+	}
+
+	// Re-wraps the DEK of an envelope under the current version of its vault key, which is recorded in the header as
+	// keyVersionId. Only the header changes: the body is copied as it is, so the payload is neither decrypted nor
+	// re-encrypted. Envelopes of the older format cannot be re-wrapped in place.
+	public static byte[] rewrapEnvelope(KmsCryptoClient kmsCryptoClient, byte[] envelope, String keyVersionId) throws Exception {
+		EnvelopeHeader header = EnvelopeHeader.read(envelope);
+		if (header.getKeyId() == null) {
+			throw new GeneralSecurityException("Version " + header.getFormatVersion() + " envelopes cannot be re-wrapped in place.");
+		}
+		EnvelopeHeader rewrapped = header.withWrappedKey(rewrap(kmsCryptoClient, header.getKeyId(), header.getWrappedKey()), keyVersionId);
+		int bodyLength = envelope.length - header.getLength();
+		byte[] result = new byte[rewrapped.getLength() + bodyLength];
+		System.arraycopy(rewrapped.getEncoded(), 0, result, 0, rewrapped.getLength());
+		System.arraycopy(envelope, header.getLength(), result, rewrapped.getLength(), bodyLength);
+		return result;
+	}
+
+	// Builds a complete envelope for the payload under the given DEK.
+	static byte[] seal(DataKey dataKey, byte[] plaintext) throws GeneralSecurityException {
+		return seal(dataKey, ByteBuffer.wrap(plaintext));
+	}
+
+	// Builds a complete envelope for the remaining bytes of plaintext, consuming them.
+	static byte[] seal(DataKey dataKey, ByteBuffer plaintext) throws GeneralSecurityException {
+		EnvelopeHeader header = EnvelopeHeader.create(dataKey);
+		int headerLength = header.getLength();
+		byte[] envelope = new byte[headerLength + plaintext.remaining() + TAG_LENGTH];
+		System.arraycopy(header.getEncoded(), 0, envelope, 0, headerLength);
+
+		Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+		cipher.init(Cipher.ENCRYPT_MODE, dataKey.toSecretKey(), new GCMParameterSpec(TAG_LENGTH * 8, header.getNonce()));
+		cipher.updateAAD(envelope, 0, header.getAadLength());
+		cipher.doFinal(plaintext, ByteBuffer.wrap(envelope, headerLength, envelope.length - headerLength));
+		return envelope;
+	}
+
+	// Decrypts the body of an envelope with the given header.
+	static byte[] open(SecretKey key, byte[] envelope, EnvelopeHeader header) throws GeneralSecurityException {
+		Cipher cipher = initOpen(key, envelope, header);
+		return cipher.doFinal(envelope, header.getLength(), envelope.length - header.getLength());
+	}
+
+	// Like open, but decrypts into out at its position.
+	static void open(SecretKey key, byte[] envelope, EnvelopeHeader header, ByteBuffer out) throws GeneralSecurityException {
+		Cipher cipher = initOpen(key, envelope, header);
+		cipher.doFinal(ByteBuffer.wrap(envelope, header.getLength(), envelope.length - header.getLength()), out);
+	}
+
+	private static Cipher initOpen(SecretKey key, byte[] envelope, EnvelopeHeader header) throws GeneralSecurityException {
+		if (envelope.length < header.getLength() + TAG_LENGTH) {
+			throw new GeneralSecurityException("Envelope is truncated.");
+		}
+		Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+		cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, header.getNonce()));
+		cipher.updateAAD(envelope, 0, header.getAadLength());
+		return cipher;
+	}
+}
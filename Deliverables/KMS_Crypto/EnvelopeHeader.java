@@ -0,0 +1,150 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+// EnvelopeHeader is the header in front of the AES-GCM body of an envelope written by EnvelopeCrypto. It says
+// everything needed to decrypt the envelope, so a reader does not need the key id from a separate column or any
+// lookup in the vault or a database: it unwraps the DEK with the key named in the header (through an
+// UnwrappedKeyCache keyed by key, key version and wrapped DEK) and decrypts the body. The current layout (version 2) is:
+//     [1 byte format version][1 byte algorithm][2 byte length][vault key id, UTF-8]
+//     [2 byte length][key version id, UTF-8, empty if unknown][2 byte length][wrapped DEK][12 byte nonce]
+// Only the format version, the algorithm and the key id are associated data of the body. The key version and the
+// wrapped DEK are left out so that a DEK can be re-wrapped under a new key version in place (see withWrappedKey),
+// without decrypting the body; a wrapped DEK that is swapped for another one still fails, because it unwraps to a
+// different key. Version 1 envelopes, which only hold the wrapped DEK, are still read:
+//     [1 byte format version][2 byte length][wrapped DEK][12 byte IV]
+// and all of their header is associated data, so they cannot be re-wrapped in place.
+public class EnvelopeHeader {
+
+	static final byte FORMAT_VERSION_1 = 1;
+	static final byte FORMAT_VERSION_2 = 2;
+	// ALGORITHM_AES_256_GCM: AES-256 in GCM mode with a 12 byte nonce and a 16 byte tag
+	public static final byte ALGORITHM_AES_256_GCM = 1;
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final byte formatVersion;
+	private final byte algorithm;
+	// keyId is null in version 1 headers
+	private final String keyId;
+	private final String keyVersionId;
+	private final byte[] wrappedKey;
+	private final byte[] nonce;
+	private final byte[] encoded;
+	private final int aadLength;
+
+	private EnvelopeHeader(byte formatVersion, byte algorithm, String keyId, String keyVersionId, byte[] wrappedKey, byte[] nonce,
+			byte[] encoded, int aadLength) {
+		this.formatVersion = formatVersion;
+		this.algorithm = algorithm;
+		this.keyId = keyId;
+		this.keyVersionId = keyVersionId;
+		this.wrappedKey = wrappedKey;
+		this.nonce = nonce;
+		this.encoded = encoded;
+		this.aadLength = aadLength;
+	}
+
+	// A version 2 header for a new envelope under the DEK, with a random nonce.
+	static EnvelopeHeader create(DataKey dataKey) {
+		byte[] nonce = new byte[EnvelopeCrypto.IV_LENGTH];
+		RANDOM.nextBytes(nonce);
+		return create(dataKey.getKeyId(), dataKey.getKeyVersionId(), dataKey.getWrappedKey(), nonce);
+	}
+
+	private static EnvelopeHeader create(String keyId, String keyVersionId, byte[] wrappedKey, byte[] nonce) {
+		byte[] keyIdBytes = keyId.getBytes(StandardCharsets.UTF_8);
+		byte[] keyVersionIdBytes = keyVersionId == null ? new byte[0] : keyVersionId.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer out = ByteBuffer.allocate(1 + 1 + 2 + keyIdBytes.length + 2 + keyVersionIdBytes.length + 2 + wrappedKey.length + nonce.length);
+		out.put(FORMAT_VERSION_2);
+		out.put(ALGORITHM_AES_256_GCM);
+		out.putShort((short) keyIdBytes.length);
+		out.put(keyIdBytes);
+		int aadLength = out.position();
+		out.putShort((short) keyVersionIdBytes.length);
+		out.put(keyVersionIdBytes);
+		out.putShort((short) wrappedKey.length);
+		out.put(wrappedKey);
+		out.put(nonce);
+		return new EnvelopeHeader(FORMAT_VERSION_2, ALGORITHM_AES_256_GCM, keyId, keyVersionId, wrappedKey, nonce, out.array(), aadLength);
+	}
+
+	// Reads the header at the start of an envelope, of either format version.
+	public static EnvelopeHeader read(byte[] envelope) throws GeneralSecurityException {
+		ByteBuffer in = ByteBuffer.wrap(envelope);
+		try {
+			byte formatVersion = in.get();
+			if (formatVersion == FORMAT_VERSION_1) {
+				byte[] wrappedKey = readBlock(in);
+				int aadLength = in.position();
+				byte[] nonce = readNonce(in);
+				return new EnvelopeHeader(formatVersion, ALGORITHM_AES_256_GCM, null, null, wrappedKey, nonce, copy(envelope, in.position()), aadLength);
+			}
+			if (formatVersion != FORMAT_VERSION_2) {
+				throw new GeneralSecurityException("Unsupported envelope format version " + formatVersion + ".");
+			}
+			byte algorithm = in.get();
+			if (algorithm != ALGORITHM_AES_256_GCM) {
+				throw new GeneralSecurityException("Unsupported envelope algorithm " + algorithm + ".");
+			}
+			String keyId = new String(readBlock(in), StandardCharsets.UTF_8);
+			int aadLength = in.position();
+			byte[] keyVersionIdBytes = readBlock(in);
+			String keyVersionId = keyVersionIdBytes.length == 0 ? null : new String(keyVersionIdBytes, StandardCharsets.UTF_8);
+			byte[] wrappedKey = readBlock(in);
+			byte[] nonce = readNonce(in);
+			return new EnvelopeHeader(formatVersion, algorithm, keyId, keyVersionId, wrappedKey, nonce, copy(envelope, in.position()), aadLength);
+		} catch (BufferUnderflowException e) {
+			throw new GeneralSecurityException("Envelope is truncated.", e);
+		}
+	}
+
+	private static byte[] readBlock(ByteBuffer in) {
+		byte[] block = new byte[in.getShort() & 0xFFFF];
+		in.get(block);
+		return block;
+	}
+
+	private static byte[] readNonce(ByteBuffer in) {
+		byte[] nonce = new byte[EnvelopeCrypto.IV_LENGTH];
+		in.get(nonce);
+		return nonce;
+	}
+
+	private static byte[] copy(byte[] envelope, int length) {
+		byte[] header = new byte[length];
+		System.arraycopy(envelope, 0, header, 0, length);
+		return header;
+	}
+
+	// The same header with another wrapped copy of the DEK, e.g. one wrapped under the new key version after a
+	// rotation. The associated data does not change, so the envelope's body stays valid. Version 2 only.
+	public EnvelopeHeader withWrappedKey(byte[] newWrappedKey, String newKeyVersionId) throws GeneralSecurityException {
+		if (formatVersion != FORMAT_VERSION_2) {
+			throw new GeneralSecurityException("Version " + formatVersion + " envelopes cannot be re-wrapped in place.");
+		}
+		return create(keyId, newKeyVersionId, newWrappedKey, nonce);
+	}
+
+	public byte getFormatVersion() { return formatVersion; }
+	public byte getAlgorithm() { return algorithm; }
+	// the OCID of the vault key that wrapped the DEK, or null for version 1 envelopes
+	public String getKeyId() { return keyId; }
+	// the vault key version that wrapped the DEK, or null if it was not recorded
+	public String getKeyVersionId() { return keyVersionId; }
+	public byte[] getWrappedKey() { return wrappedKey.clone(); }
+	// the length of the encoded header, i.e. the offset of the body
+	public int getLength() { return encoded.length; }
+
+	byte[] getEncoded() { return encoded; }
+	byte[] getNonce() { return nonce; }
+	// the length of the associated data, which starts at the first byte of the header
+	int getAadLength() { return aadLength; }
+
+	@Override
+	public String toString() {
+		return "EnvelopeHeader[version=" + formatVersion + ", keyId=" + keyId + ", keyVersionId=" + keyVersionId + ", wrappedKey="
+			+ wrappedKey.length + " bytes]";
+	}
+}
@@ -0,0 +1,222 @@
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// FieldCrypto encrypts each field of a record (e.g. a CSV line such as "name,SSN,date of birth,bank,card number")
+// separately, so that a reader can decrypt only the fields it needs instead of the whole record: CPU time and the
+// amount of plaintext exposed then depend on the fields read, not on the size of the record. All fields of a record
+// share one DEK, which comes from a DataKeyCache like in EnvelopeCrypto. The record layout is:
+//     [1 byte format version][2 byte wrapped DEK length][wrapped DEK][12 byte record IV]
+//     [2 byte field count n][n x 2 byte field ciphertext length][field 0 ciphertext + tag]...[field n-1 ciphertext + tag]
+// Field i is encrypted with AES-GCM under the IV made by XORing i into the last 4 bytes of the record IV, so a record
+// stores one IV instead of one per field. Everything in front of the first field is the associated data of every field,
+// so fields cannot be moved, dropped or swapped between records without failing authentication.
+public class FieldCrypto {
+
+	// FORMAT_VERSION is the first byte of every record written by this class.
+	static final byte FORMAT_VERSION = 1;
+	// MAX_FIELD_LENGTH: field ciphertext lengths are stored in 2 bytes
+	public static final int MAX_FIELD_LENGTH = 0xFFFF - EnvelopeCrypto.TAG_LENGTH;
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final String keyId;
+	private final DataKeyCache dataKeyCache;
+	private final UnwrappedKeyCache unwrappedKeyCache;
+
+	// Uses a private DataKeyCache and UnwrappedKeyCache with the default limits.
+	public FieldCrypto(KmsCryptoClient kmsCryptoClient, String keyId) {
+		this(keyId, EnvelopeCrypto.newDataKeyCache(kmsCryptoClient), EnvelopeCrypto.newUnwrappedKeyCache(kmsCryptoClient));
+	}
+
+	public FieldCrypto(String keyId, DataKeyCache dataKeyCache, UnwrappedKeyCache unwrappedKeyCache) {
+		this.keyId = keyId;
+		this.dataKeyCache = dataKeyCache;
+		this.unwrappedKeyCache = unwrappedKeyCache;
+	}
+
+	public String getKeyId() { return keyId; }
+
+	// Encrypts every field of the record on its own.
+	public byte[] encrypt(List<String> fields) throws Exception {
+		if (fields.size() > 0xFFFF) {
+			throw new IllegalArgumentException("A record can have at most 65535 fields.");
+		}
+		byte[][] plaintexts = new byte[fields.size()][];
+		long plaintextBytes = 0;
+		for (int i = 0; i < plaintexts.length; i++) {
+			plaintexts[i] = fields.get(i).getBytes(StandardCharsets.UTF_8);
+			if (plaintexts[i].length > MAX_FIELD_LENGTH) {
+				throw new IllegalArgumentException("Field " + i + " is longer than " + MAX_FIELD_LENGTH + " bytes.");
+			}
+			plaintextBytes += plaintexts[i].length;
+		}
+		// every field is a message under its own IV
+		try (DataKeyCache.Lease lease = dataKeyCache.acquire(keyId, plaintextBytes, Math.max(1, plaintexts.length))) {
+			return seal(lease.getDataKey(), plaintexts);
+		}
+	}
+
+	// Encrypts a delimited record, e.g. a CSV line. Fields are split at every delimiter; quoting is not supported.
+	public byte[] encryptDelimited(String record, char delimiter) throws Exception {
+		return encrypt(split(record, delimiter));
+	}
+
+	// Decrypts only the requested fields. The returned array has one entry per field of the record, and the fields
+	// that were not requested are null.
+	public String[] decrypt(byte[] record, int... fieldIndexes) throws Exception {
+		Layout layout = new Layout(record);
+		SecretKey key = unwrappedKeyCache.get(keyId, null, layout.wrappedKey);
+		Cipher cipher = Cipher.getInstance(EnvelopeCrypto.CIPHER_ALGORITHM);
+		String[] fields = new String[layout.fieldCount];
+		for (int index : fieldIndexes) {
+			if (index < 0 || index >= layout.fieldCount) {
+				throw new IllegalArgumentException("The record has no field " + index + ".");
+			}
+			if (fields[index] == null) {
+				fields[index] = new String(open(cipher, key, layout, record, index), StandardCharsets.UTF_8);
+			}
+		}
+		return fields;
+	}
+
+	// String helpers for storing records in text columns.
+	public String encryptDelimitedToBase64(String record, char delimiter) throws Exception {
+		return ByteCrypto.toBase64(encryptDelimited(record, delimiter));
+	}
+
+	public String[] decryptFromBase64(String record, int... fieldIndexes) throws Exception {
+		return decrypt(ByteCrypto.fromBase64(record), fieldIndexes);
+	}
+
+	// Decrypts one field.
+	public String decryptField(byte[] record, int fieldIndex) throws Exception {
+		return decrypt(record, fieldIndex)[fieldIndex];
+	}
+
+	// Decrypts every field.
+	public String[] decryptAll(byte[] record) throws Exception {
+		int[] all = new int[fieldCount(record)];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = i;
+		}
+		return decrypt(record, all);
+	}
+
+	// The number of fields in the record, read from its header without decrypting anything.
+	public static int fieldCount(byte[] record) throws GeneralSecurityException {
+		return new Layout(record).fieldCount;
+	}
+
+	// Zeroes the cached DEKs.
+	public void close() {
+		dataKeyCache.close();
+		unwrappedKeyCache.clear();
+	}
+
+	static List<String> split(String record, char delimiter) {
+		List<String> fields = new ArrayList<String>();
+		int start = 0;
+		for (int i = 0; i < record.length(); i++) {
+			if (record.charAt(i) == delimiter) {
+				fields.add(record.substring(start, i));
+				start = i + 1;
+			}
+		}
+		fields.add(record.substring(start));
+		return fields;
+	}
+
+	private static byte[] seal(DataKey dataKey, byte[][] plaintexts) throws GeneralSecurityException {
+		byte[] wrappedKey = dataKey.getWrappedKey();
+		int headerLength = 1 + 2 + wrappedKey.length + EnvelopeCrypto.IV_LENGTH + 2 + 2 * plaintexts.length;
+		int length = headerLength;
+		for (byte[] plaintext : plaintexts) {
+			length += plaintext.length + EnvelopeCrypto.TAG_LENGTH;
+		}
+		byte[] record = new byte[length];
+		ByteBuffer out = ByteBuffer.wrap(record);
+		out.put(FORMAT_VERSION);
+		out.putShort((short) wrappedKey.length);
+		out.put(wrappedKey);
+		byte[] recordIv = new byte[EnvelopeCrypto.IV_LENGTH];
+		RANDOM.nextBytes(recordIv);
+		out.put(recordIv);
+		out.putShort((short) plaintexts.length);
+		for (byte[] plaintext : plaintexts) {
+			out.putShort((short) (plaintext.length + EnvelopeCrypto.TAG_LENGTH));
+		}
+
+		Cipher cipher = Cipher.getInstance(EnvelopeCrypto.CIPHER_ALGORITHM);
+		SecretKey key = dataKey.toSecretKey();
+		int offset = headerLength;
+		for (int i = 0; i < plaintexts.length; i++) {
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(EnvelopeCrypto.TAG_LENGTH * 8, fieldIv(recordIv, i)));
+			cipher.updateAAD(record, 0, headerLength);
+			offset += cipher.doFinal(plaintexts[i], 0, plaintexts[i].length, record, offset);
+		}
+		return record;
+	}
+
+	private static byte[] open(Cipher cipher, SecretKey key, Layout layout, byte[] record, int index) throws GeneralSecurityException {
+		cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(EnvelopeCrypto.TAG_LENGTH * 8, fieldIv(layout.recordIv, index)));
+		cipher.updateAAD(record, 0, layout.headerLength);
+		return cipher.doFinal(record, layout.fieldOffsets[index], layout.fieldLengths[index]);
+	}
+
+	private static byte[] fieldIv(byte[] recordIv, int index) {
+		byte[] iv = recordIv.clone();
+		iv[8] ^= (byte) (index >>> 24);
+		iv[9] ^= (byte) (index >>> 16);
+		iv[10] ^= (byte) (index >>> 8);
+		iv[11] ^= (byte) index;
+		return iv;
+	}
+
+	// Layout is the parsed header of a record: where each field's ciphertext starts and how long it is.
+	private static class Layout {
+		private final byte[] wrappedKey;
+		private final byte[] recordIv = new byte[EnvelopeCrypto.IV_LENGTH];
+		private final int fieldCount;
+		private final int[] fieldOffsets;
+		private final int[] fieldLengths;
+		private final int headerLength;
+
+		private Layout(byte[] record) throws GeneralSecurityException {
+			try {
+				ByteBuffer in = ByteBuffer.wrap(record);
+				byte version = in.get();
+				if (version != FORMAT_VERSION) {
+					throw new GeneralSecurityException("Unsupported record format version " + version + ".");
+				}
+				wrappedKey = new byte[in.getShort() & 0xFFFF];
+				in.get(wrappedKey);
+				in.get(recordIv);
+				fieldCount = in.getShort() & 0xFFFF;
+				fieldOffsets = new int[fieldCount];
+				fieldLengths = new int[fieldCount];
+				int offset = in.position() + 2 * fieldCount;
+				for (int i = 0; i < fieldCount; i++) {
+					fieldLengths[i] = in.getShort() & 0xFFFF;
+					fieldOffsets[i] = offset;
+					offset += fieldLengths[i];
+				}
+				headerLength = in.position();
+				if (offset != record.length) {
+					throw new GeneralSecurityException("The record's field lengths do not match its size: it was truncated or modified.");
+				}
+			} catch (BufferUnderflowException e) {
+				throw new GeneralSecurityException("Record is truncated.", e);
+			}
+		}
+	}
+}
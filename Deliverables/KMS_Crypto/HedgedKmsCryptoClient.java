@@ -0,0 +1,340 @@
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+import com.oracle.bmc.keymanagement.requests.DecryptRequest;
+import com.oracle.bmc.keymanagement.requests.EncryptRequest;
+import com.oracle.bmc.keymanagement.requests.GenerateDataEncryptionKeyRequest;
+import com.oracle.bmc.keymanagement.responses.DecryptResponse;
+import com.oracle.bmc.keymanagement.responses.EncryptResponse;
+import com.oracle.bmc.keymanagement.responses.GenerateDataEncryptionKeyResponse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// HedgedKmsCryptoClient sends cryptographic calls to several crypto endpoints that can serve the same keys, e.g. the
+// vault's own endpoint followed by the endpoint of a replica vault in another region, and uses them two ways:
+//     * hedging: a decrypt or generateDataEncryptionKey call that is still running after the endpoint's usual
+//       latency (the hedgePercentile of its recent calls, bounded by minHedgeDelayMillis and maxHedgeDelayMillis)
+//       is sent again to the next endpoint, and the first answer wins. Both calls are side-effect free, so the
+//       duplicate only costs a request against the quota, and the slowest few percent of calls stop setting the
+//       latency of the whole batch.
+//     * failover: a call that fails with a retryable error (see KeyStateAwaiter.isRetryable) is sent to the next
+//       endpoint right away. Other errors (bad key id, missing permission, ...) are thrown as they are, since another
+//       endpoint would give the same answer. encrypt calls fail over but are not hedged.
+// Every endpoint keeps a health score between 0 and 1: an exponentially weighted average of its outcomes, where a
+// success counts 1, a call slow enough to be hedged 0.5 and a retryable failure 0. An endpoint whose score falls below
+// DEGRADED_HEALTH is skipped (only tried after all the healthy ones) for probeIntervalMillis, after which it gets
+// traffic again and can earn its score back.
+// The client extends KmsCryptoClient only so that it can be passed anywhere a KmsCryptoClient is expected (EnvelopeCrypto,
+// BatchCrypto, ...): it forwards every call to the clients of its endpoints, which can be RateLimitedKmsCryptoClients.
+// The base client never sends a request. It is built with the same provider and pointed at the first endpoint, so
+// that getEndpoint reports the preferred endpoint.
+public class HedgedKmsCryptoClient extends KmsCryptoClient {
+
+	public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+	public static final long DEFAULT_MIN_HEDGE_DELAY_MILLIS = 20;
+	public static final long DEFAULT_MAX_HEDGE_DELAY_MILLIS = 2000;
+	public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 10000;
+	// DEGRADED_HEALTH: below this score an endpoint is skipped until its probe interval has passed
+	public static final double DEGRADED_HEALTH = 0.5;
+	// HEALTH_WEIGHT is the weight of the latest outcome in the health score
+	private static final double HEALTH_WEIGHT = 0.2;
+	// LATENCY_SAMPLES: the hedge delay is computed from this many recent latencies of the endpoint
+	private static final int LATENCY_SAMPLES = 256;
+	// MIN_LATENCY_SAMPLES: until an endpoint has this many samples, maxHedgeDelayMillis is used as its hedge delay
+	private static final int MIN_LATENCY_SAMPLES = 20;
+
+	private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+	private final double hedgePercentile;
+	private final long minHedgeDelayMillis;
+	private final long maxHedgeDelayMillis;
+	private final long probeIntervalMillis;
+	private final ExecutorService executor = Executors.newCachedThreadPool(BatchCrypto.daemonThreads("kms-hedge-"));
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+	private final AtomicLong failovers = new AtomicLong();
+
+	// endpoints maps a name for each endpoint (e.g. its URL) to a client whose endpoint is already set, in order of
+	// preference; use a LinkedHashMap.
+	public HedgedKmsCryptoClient(BasicAuthenticationDetailsProvider provider, Map<String, KmsCryptoClient> endpoints) {
+		this(provider, endpoints, DEFAULT_HEDGE_PERCENTILE, DEFAULT_MIN_HEDGE_DELAY_MILLIS, DEFAULT_MAX_HEDGE_DELAY_MILLIS,
+			DEFAULT_PROBE_INTERVAL_MILLIS);
+	}
+
+	public HedgedKmsCryptoClient(BasicAuthenticationDetailsProvider provider, Map<String, KmsCryptoClient> endpoints,
+			double hedgePercentile, long minHedgeDelayMillis, long maxHedgeDelayMillis, long probeIntervalMillis) {
+		super(provider);
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("HedgedKmsCryptoClient needs at least one endpoint.");
+		}
+		if (hedgePercentile <= 0 || hedgePercentile > 1) {
+			throw new IllegalArgumentException("The hedge percentile must be in (0, 1].");
+		}
+		if (minHedgeDelayMillis < 0 || maxHedgeDelayMillis < minHedgeDelayMillis) {
+			throw new IllegalArgumentException("The hedge delays must satisfy 0 <= minHedgeDelayMillis <= maxHedgeDelayMillis.");
+		}
+		for (Map.Entry<String, KmsCryptoClient> endpoint : endpoints.entrySet()) {
+			this.endpoints.add(new Endpoint(endpoint.getKey(), endpoint.getValue()));
+		}
+		String preferredEndpoint = this.endpoints.get(0).client.getEndpoint();
+		if (preferredEndpoint != null) {
+			setEndpoint(preferredEndpoint);
+		}
+		this.hedgePercentile = hedgePercentile;
+		this.minHedgeDelayMillis = minHedgeDelayMillis;
+		this.maxHedgeDelayMillis = maxHedgeDelayMillis;
+		this.probeIntervalMillis = probeIntervalMillis;
+	}
+
+	@Override
+	public EncryptResponse encrypt(final EncryptRequest request) {
+		return call(new Operation<EncryptResponse>() {
+			public EncryptResponse call(KmsCryptoClient client) {
+				return client.encrypt(request);
+			}
+		}, false);
+	}
+
+	@Override
+	public DecryptResponse decrypt(final DecryptRequest request) {
+		return call(new Operation<DecryptResponse>() {
+			public DecryptResponse call(KmsCryptoClient client) {
+				return client.decrypt(request);
+			}
+		}, true);
+	}
+
+	@Override
+	public GenerateDataEncryptionKeyResponse generateDataEncryptionKey(final GenerateDataEncryptionKeyRequest request) {
+		return call(new Operation<GenerateDataEncryptionKeyResponse>() {
+			public GenerateDataEncryptionKeyResponse call(KmsCryptoClient client) {
+				return client.generateDataEncryptionKey(request);
+			}
+		}, true);
+	}
+
+	// Closes the clients of all endpoints.
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		for (Endpoint endpoint : endpoints) {
+			endpoint.client.close();
+		}
+		super.close();
+	}
+
+	// the health score of every endpoint, in order of preference
+	public double[] getHealth() {
+		double[] health = new double[endpoints.size()];
+		for (int i = 0; i < health.length; i++) {
+			health[i] = endpoints.get(i).getHealth();
+		}
+		return health;
+	}
+
+	// Counters: hedges is the number of duplicate calls sent, hedgeWins the number of those that answered first, and
+	// failovers the number of calls resent after a retryable failure.
+	public long getCalls() { return calls.get(); }
+	public long getHedges() { return hedges.get(); }
+	public long getHedgeWins() { return hedgeWins.get(); }
+	public long getFailovers() { return failovers.get(); }
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("HedgedKmsCryptoClient[calls=").append(calls.get())
+			.append(", hedges=").append(hedges.get()).append(", hedgeWins=").append(hedgeWins.get())
+			.append(", failovers=").append(failovers.get());
+		for (Endpoint endpoint : endpoints) {
+			builder.append(", ").append(endpoint);
+		}
+		return builder.append("]").toString();
+	}
+
+	// Runs the operation on the preferred endpoint, hedging (if asked) and failing over to the others in order. The
+	// first success is returned and the calls still running are cancelled.
+	private <T> T call(Operation<T> operation, boolean hedge) {
+		calls.incrementAndGet();
+		List<Endpoint> order = ranked();
+		CompletionService<T> completions = new ExecutorCompletionService<T>(executor);
+		List<Future<T>> running = new ArrayList<Future<T>>();
+		List<Endpoint> runningEndpoints = new ArrayList<Endpoint>();
+		int next = 0;
+		int inFlight = 0;
+		RuntimeException lastError = null;
+		try {
+			running.add(completions.submit(attempt(order.get(next), operation)));
+			runningEndpoints.add(order.get(next++));
+			inFlight++;
+			while (true) {
+				Future<T> done;
+				if (hedge && next < order.size()) {
+					Endpoint slowest = runningEndpoints.get(runningEndpoints.size() - 1);
+					done = completions.poll(hedgeDelay(slowest), TimeUnit.MILLISECONDS);
+					if (done == null) {
+						// still no answer: hedge on the next endpoint
+						slowest.record(0.5);
+						hedges.incrementAndGet();
+						running.add(completions.submit(attempt(order.get(next), operation)));
+						runningEndpoints.add(order.get(next++));
+						inFlight++;
+						continue;
+					}
+				} else {
+					done = completions.take();
+				}
+				inFlight--;
+				try {
+					T result = done.get();
+					if (running.indexOf(done) > 0 && lastError == null) {
+						hedgeWins.incrementAndGet();
+					}
+					return result;
+				} catch (ExecutionException e) {
+					RuntimeException error = unchecked(e.getCause());
+					if (!KeyStateAwaiter.isRetryable(error)) {
+						throw error;
+					}
+					lastError = error;
+					if (next < order.size()) {
+						failovers.incrementAndGet();
+						running.add(completions.submit(attempt(order.get(next), operation)));
+						runningEndpoints.add(order.get(next++));
+						inFlight++;
+					} else if (inFlight == 0) {
+						throw lastError;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the KMS crypto endpoints.", e);
+		} finally {
+			for (Future<T> future : running) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	// Wraps the operation so that its outcome is recorded against the endpoint, also when it loses the race.
+	private <T> Callable<T> attempt(final Endpoint endpoint, final Operation<T> operation) {
+		return new Callable<T>() {
+			public T call() {
+				long start = System.nanoTime();
+				try {
+					T result = operation.call(endpoint.client);
+					endpoint.recordLatency(System.nanoTime() - start);
+					endpoint.record(1);
+					return result;
+				} catch (RuntimeException e) {
+					if (KeyStateAwaiter.isRetryable(e)) {
+						endpoint.record(0);
+					}
+					throw e;
+				}
+			}
+		};
+	}
+
+	// The endpoints in order of preference, with the skipped (degraded) ones moved to the end as a last resort.
+	private List<Endpoint> ranked() {
+		long now = System.currentTimeMillis();
+		List<Endpoint> healthy = new ArrayList<Endpoint>();
+		List<Endpoint> skipped = new ArrayList<Endpoint>();
+		for (Endpoint endpoint : endpoints) {
+			(endpoint.isSkipped(now) ? skipped : healthy).add(endpoint);
+		}
+		healthy.addAll(skipped);
+		return healthy;
+	}
+
+	private long hedgeDelay(Endpoint endpoint) {
+		long percentile = endpoint.latencyPercentileMillis(hedgePercentile);
+		if (percentile < 0) {
+			return maxHedgeDelayMillis;
+		}
+		return Math.max(minHedgeDelayMillis, Math.min(maxHedgeDelayMillis, percentile));
+	}
+
+	private static RuntimeException unchecked(Throwable cause) {
+		if (cause instanceof RuntimeException) {
+			return (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new IllegalStateException(cause);
+	}
+
+	// Operation is one SDK call, made against the client of whichever endpoint runs it.
+	private interface Operation<T> {
+		T call(KmsCryptoClient client);
+	}
+
+	// Endpoint is one crypto endpoint with its recent latencies and its health score.
+	private class Endpoint {
+		private final String name;
+		private final KmsCryptoClient client;
+		// the last LATENCY_SAMPLES latencies in nanoseconds, as a ring buffer
+		private final long[] latencies = new long[LATENCY_SAMPLES];
+		private long samples;
+		private double health = 1;
+		private long skipUntil;
+
+		private Endpoint(String name, KmsCryptoClient client) {
+			this.name = name;
+			this.client = client;
+		}
+
+		private synchronized void recordLatency(long nanos) {
+			latencies[(int) (samples++ % LATENCY_SAMPLES)] = nanos;
+		}
+
+		// Folds an outcome (1 success, 0.5 slow, 0 failure) into the health score, and starts skipping the endpoint
+		// if that leaves it degraded.
+		private synchronized void record(double outcome) {
+			health += HEALTH_WEIGHT * (outcome - health);
+			if (outcome < 1 && health < DEGRADED_HEALTH) {
+				skipUntil = System.currentTimeMillis() + probeIntervalMillis;
+			}
+		}
+
+		private synchronized double getHealth() {
+			return health;
+		}
+
+		private synchronized boolean isSkipped(long now) {
+			return now < skipUntil;
+		}
+
+		// the given percentile of the recent latencies in milliseconds, or -1 if there are too few of them yet
+		private long latencyPercentileMillis(double percentile) {
+			long[] sorted;
+			synchronized (this) {
+				if (samples < MIN_LATENCY_SAMPLES) {
+					return -1;
+				}
+				sorted = Arrays.copyOf(latencies, (int) Math.min(samples, LATENCY_SAMPLES));
+			}
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile * sorted.length) - 1;
+			return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]);
+		}
+
+		@Override
+		public synchronized String toString() {
+			return name + "[health=" + String.format("%.2f", health) + (isSkipped(System.currentTimeMillis()) ? ", skipped" : "") + "]";
+		}
+	}
+}
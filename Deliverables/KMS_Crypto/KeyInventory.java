@@ -0,0 +1,323 @@
+import com.oracle.bmc.keymanagement.KmsManagementClient;
+import com.oracle.bmc.keymanagement.model.KeySummary;
+import com.oracle.bmc.keymanagement.model.KeyVersionSummary;
+import com.oracle.bmc.keymanagement.requests.ListKeyVersionsRequest;
+import com.oracle.bmc.keymanagement.requests.ListKeysRequest;
+import com.oracle.bmc.keymanagement.responses.ListKeyVersionsResponse;
+import com.oracle.bmc.keymanagement.responses.ListKeysResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// KeyInventory keeps a local index of the keys of a compartment and their versions, so that looking a key up by id,
+// display name, lifecycle state or key version costs no API call. The index is filled by refresh calls:
+//     * refresh() walks every page of listKeys (following opc-next-page), compares each key with the index, and then
+//       fetches the versions of the keys that are new, changed state, or whose versions are older than
+//       versionMaxAgeMillis, with up to parallelism listKeyVersions walks at a time. Keys that no longer show up are
+//       dropped. Listing the keys takes one call per PAGE_SIZE keys, so a refresh of an unchanged compartment of
+//       thousands of keys costs a few dozen calls instead of one per key.
+//     * refreshNewKeys() lists the keys newest first and stops at the first key not newer than the newest key already
+//       indexed, which usually takes a single call.
+// The key summaries of SDK 1.12 have no time-modified field, so changes cannot be asked for since a point in time:
+// refreshNewKeys works from a timeCreated watermark, and refresh finds state changes by comparing every summary with the
+// index. A rotation does not show up in the summary at all; it is picked up once the key's versions are refetched
+// (see versionMaxAgeMillis), or right away with refreshKey. The current version of a key is its newest version.
+// Every refresh publishes a new immutable Snapshot, so lookups never block and always see a consistent index.
+public class KeyInventory implements AutoCloseable {
+
+	// PAGE_SIZE is the number of items asked for per list call.
+	public static final int PAGE_SIZE = 100;
+	public static final int DEFAULT_PARALLELISM = 8;
+	public static final long DEFAULT_VERSION_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private final KmsManagementClient kmsManagementClient;
+	private final String compartmentId;
+	private final long versionMaxAgeMillis;
+	private final ExecutorService executor;
+	private volatile Snapshot snapshot = new Snapshot(Collections.<String, Entry>emptyMap());
+
+	public KeyInventory(KmsManagementClient kmsManagementClient, String compartmentId) {
+		this(kmsManagementClient, compartmentId, DEFAULT_PARALLELISM, DEFAULT_VERSION_MAX_AGE_MILLIS);
+	}
+
+	// parallelism bounds the listKeyVersions walks running at the same time; the calls still go through the client's
+	// rate limiter if it is a RateLimitedKmsManagementClient.
+	public KeyInventory(KmsManagementClient kmsManagementClient, String compartmentId, int parallelism, long versionMaxAgeMillis) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("KeyInventory needs a positive parallelism.");
+		}
+		this.kmsManagementClient = kmsManagementClient;
+		this.compartmentId = compartmentId;
+		this.versionMaxAgeMillis = versionMaxAgeMillis;
+		this.executor = Executors.newFixedThreadPool(parallelism, BatchCrypto.daemonThreads("key-inventory-"));
+	}
+
+	// Lists every key of the compartment, following opc-next-page.
+	public static List<KeySummary> listAllKeys(KmsManagementClient kmsManagementClient, String compartmentId) {
+		List<KeySummary> keys = new ArrayList<KeySummary>();
+		String page = null;
+		do {
+			ListKeysRequest listKeysRequest = ListKeysRequest.builder()
+				.compartmentId(compartmentId)
+				.limit(PAGE_SIZE)
+				.page(page)
+				.build();
+			ListKeysResponse response = kmsManagementClient.listKeys(listKeysRequest);
+			keys.addAll(response.getItems());
+			page = response.getOpcNextPage();
+		} while (page != null);
+		return keys;
+	}
+
+	// Lists every version of the key, following opc-next-page, oldest first.
+	public static List<KeyVersionSummary> listAllKeyVersions(KmsManagementClient kmsManagementClient, String keyId) {
+		List<KeyVersionSummary> versions = new ArrayList<KeyVersionSummary>();
+		String page = null;
+		do {
+			ListKeyVersionsRequest listKeyVersionsRequest = ListKeyVersionsRequest.builder()
+				.keyId(keyId)
+				.limit(PAGE_SIZE)
+				.page(page)
+				.build();
+			ListKeyVersionsResponse response = kmsManagementClient.listKeyVersions(listKeyVersionsRequest);
+			versions.addAll(response.getItems());
+			page = response.getOpcNextPage();
+		} while (page != null);
+		Collections.sort(versions, new Comparator<KeyVersionSummary>() {
+			public int compare(KeyVersionSummary a, KeyVersionSummary b) {
+				return a.getTimeCreated().compareTo(b.getTimeCreated());
+			}
+		});
+		return versions;
+	}
+
+	// Synchronizes the index with every key of the compartment. Returns what changed.
+	public synchronized Changes refresh() throws InterruptedException {
+		return apply(listAllKeys(kmsManagementClient, compartmentId), true);
+	}
+
+	// Adds the keys created since the newest key in the index. Keys that changed state are not noticed; see refresh.
+	public synchronized Changes refreshNewKeys() throws InterruptedException {
+		Date watermark = snapshot.watermark;
+		List<KeySummary> keys = new ArrayList<KeySummary>();
+		String page = null;
+		boolean done = false;
+		do {
+			ListKeysRequest listKeysRequest = ListKeysRequest.builder()
+				.compartmentId(compartmentId)
+				.limit(PAGE_SIZE)
+				.page(page)
+				.sortBy(ListKeysRequest.SortBy.Timecreated)
+				.sortOrder(ListKeysRequest.SortOrder.Desc)
+				.build();
+			ListKeysResponse response = kmsManagementClient.listKeys(listKeysRequest);
+			for (KeySummary key : response.getItems()) {
+				if (watermark != null && !key.getTimeCreated().after(watermark)) {
+					done = true;
+					break;
+				}
+				keys.add(key);
+			}
+			page = response.getOpcNextPage();
+		} while (page != null && !done);
+		return apply(keys, false);
+	}
+
+	// Refetches the versions of one key, e.g. right after rotating it.
+	public synchronized void refreshKey(String keyId) {
+		Entry entry = snapshot.byId.get(keyId);
+		if (entry == null) {
+			throw new IllegalArgumentException("Key " + keyId + " is not in the inventory.");
+		}
+		Map<String, Entry> entries = new LinkedHashMap<String, Entry>(snapshot.byId);
+		entries.put(keyId, entry.withVersions(listAllKeyVersions(kmsManagementClient, keyId), System.currentTimeMillis()));
+		snapshot = new Snapshot(entries);
+	}
+
+	// Lookups, answered from the index without calling the vault.
+	public Entry get(String keyId) { return snapshot.byId.get(keyId); }
+
+	// Display names do not have to be unique, so a name can match several keys.
+	public List<Entry> getByName(String displayName) { return list(snapshot.byName.get(displayName)); }
+
+	public List<Entry> getByState(KeySummary.LifecycleState state) { return list(snapshot.byState.get(state)); }
+
+	// the key a version belongs to
+	public Entry getByVersion(String keyVersionId) { return snapshot.byVersion.get(keyVersionId); }
+
+	public List<Entry> getAll() { return new ArrayList<Entry>(snapshot.byId.values()); }
+
+	public int size() { return snapshot.byId.size(); }
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		Snapshot current = snapshot;
+		return "KeyInventory[keys=" + current.byId.size() + ", versions=" + current.byVersion.size() + ", newest=" + current.watermark + "]";
+	}
+
+	private static List<Entry> list(List<Entry> entries) {
+		return entries == null ? Collections.<Entry>emptyList() : Collections.unmodifiableList(entries);
+	}
+
+	// Merges listed key summaries into the index. With complete, the summaries are the whole compartment and keys
+	// missing from them are dropped.
+	private Changes apply(List<KeySummary> summaries, boolean complete) throws InterruptedException {
+		Snapshot current = snapshot;
+		long now = System.currentTimeMillis();
+		Changes changes = new Changes();
+		Map<String, Entry> entries = new LinkedHashMap<String, Entry>(complete ? Collections.<String, Entry>emptyMap() : current.byId);
+		Map<String, Future<List<KeyVersionSummary>>> fetches = new LinkedHashMap<String, Future<List<KeyVersionSummary>>>();
+		for (final KeySummary summary : summaries) {
+			Entry previous = current.byId.get(summary.getId());
+			if (previous == null) {
+				changes.added.add(summary.getId());
+			} else if (previous.getState() != summary.getLifecycleState()) {
+				changes.stateChanged.add(summary.getId());
+			}
+			Entry entry = new Entry(summary, previous);
+			entries.put(summary.getId(), entry);
+			if (previous == null || previous.getState() != summary.getLifecycleState() || now - previous.versionsFetchedAt > versionMaxAgeMillis) {
+				fetches.put(summary.getId(), executor.submit(() -> listAllKeyVersions(kmsManagementClient, summary.getId())));
+			}
+		}
+		if (complete) {
+			for (String keyId : current.byId.keySet()) {
+				if (!entries.containsKey(keyId)) {
+					changes.removed.add(keyId);
+				}
+			}
+		}
+		for (Map.Entry<String, Future<List<KeyVersionSummary>>> fetch : fetches.entrySet()) {
+			String keyId = fetch.getKey();
+			try {
+				entries.put(keyId, entries.get(keyId).withVersions(fetch.getValue().get(), now));
+				changes.versionFetches++;
+			} catch (ExecutionException e) {
+				// keep the versions known so far; the key is fetched again on the next refresh
+				changes.failed.put(keyId, e.getCause());
+			}
+		}
+		snapshot = new Snapshot(entries);
+		return changes;
+	}
+
+	// Entry is what the inventory knows about one key.
+	public static class Entry {
+		private final KeySummary summary;
+		private final List<KeyVersionSummary> versions;
+		// when the versions were last listed, in epoch milliseconds; 0 if they never were
+		private final long versionsFetchedAt;
+
+		// Keeps the versions of the previous entry for the same key, if any, until they are fetched again.
+		private Entry(KeySummary summary, Entry previous) {
+			this(summary, previous == null ? Collections.<KeyVersionSummary>emptyList() : previous.versions,
+				previous == null ? 0 : previous.versionsFetchedAt);
+		}
+
+		private Entry(KeySummary summary, List<KeyVersionSummary> versions, long versionsFetchedAt) {
+			this.summary = summary;
+			this.versions = Collections.unmodifiableList(versions);
+			this.versionsFetchedAt = versionsFetchedAt;
+		}
+
+		private Entry withVersions(List<KeyVersionSummary> versions, long fetchedAt) {
+			return new Entry(summary, new ArrayList<KeyVersionSummary>(versions), fetchedAt);
+		}
+
+		public String getKeyId() { return summary.getId(); }
+		public String getDisplayName() { return summary.getDisplayName(); }
+		public KeySummary.LifecycleState getState() { return summary.getLifecycleState(); }
+		public Date getTimeCreated() { return summary.getTimeCreated(); }
+		public KeySummary getSummary() { return summary; }
+		// every version of the key, oldest first; empty until they have been fetched
+		public List<KeyVersionSummary> getVersions() { return versions; }
+
+		// the newest version, which is the one the vault encrypts with, or null if the versions were not fetched
+		public String getCurrentVersionId() {
+			return versions.isEmpty() ? null : versions.get(versions.size() - 1).getId();
+		}
+
+		@Override
+		public String toString() {
+			return "Entry[keyId=" + getKeyId() + ", displayName=" + getDisplayName() + ", state=" + getState()
+				+ ", versions=" + versions.size() + ", currentVersionId=" + getCurrentVersionId() + "]";
+		}
+	}
+
+	// Changes is what a refresh found, by key id.
+	public static class Changes {
+		private final List<String> added = new ArrayList<String>();
+		private final List<String> removed = new ArrayList<String>();
+		private final List<String> stateChanged = new ArrayList<String>();
+		private final Map<String, Throwable> failed = new LinkedHashMap<String, Throwable>();
+		private int versionFetches;
+
+		public List<String> getAdded() { return added; }
+		public List<String> getRemoved() { return removed; }
+		public List<String> getStateChanged() { return stateChanged; }
+		// the keys whose versions could not be listed, with the error
+		public Map<String, Throwable> getFailed() { return failed; }
+		public int getVersionFetches() { return versionFetches; }
+
+		@Override
+		public String toString() {
+			return "Changes[added=" + added.size() + ", removed=" + removed.size() + ", stateChanged=" + stateChanged.size()
+				+ ", versionFetches=" + versionFetches + ", failed=" + failed.size() + "]";
+		}
+	}
+
+	// Snapshot is one published version of the index and its lookup tables.
+	private static class Snapshot {
+		private final Map<String, Entry> byId;
+		private final Map<String, List<Entry>> byName = new HashMap<String, List<Entry>>();
+		private final Map<KeySummary.LifecycleState, List<Entry>> byState =
+			new EnumMap<KeySummary.LifecycleState, List<Entry>>(KeySummary.LifecycleState.class);
+		private final Map<String, Entry> byVersion = new HashMap<String, Entry>();
+		// the creation time of the newest key, or null if there are none
+		private final Date watermark;
+
+		private Snapshot(Map<String, Entry> entries) {
+			this.byId = Collections.unmodifiableMap(entries);
+			Date newest = null;
+			for (Entry entry : entries.values()) {
+				add(byName, entry.getDisplayName(), entry);
+				if (entry.getState() != null) {
+					add(byState, entry.getState(), entry);
+				}
+				for (KeyVersionSummary version : entry.versions) {
+					byVersion.put(version.getId(), entry);
+				}
+				if (newest == null || entry.getTimeCreated().after(newest)) {
+					newest = entry.getTimeCreated();
+				}
+			}
+			this.watermark = newest;
+		}
+
+		private static <K> void add(Map<K, List<Entry>> index, K key, Entry entry) {
+			List<Entry> entries = index.get(key);
+			if (entries == null) {
+				entries = new ArrayList<Entry>();
+				index.put(key, entries);
+			}
+			entries.add(entry);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+import com.oracle.bmc.keymanagement.KmsManagementClient;
+import com.oracle.bmc.keymanagement.model.KeySummary;
+import com.oracle.bmc.keymanagement.model.KeyVersionSummary;
+import com.oracle.bmc.keymanagement.requests.CreateKeyVersionRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// KeyRotationScheduler rotates vault keys in the background according to RotationPolicies, and then re-wraps the DEKs
+// stored under a rotated key so that they are protected by its new version. Every cycle (runOnce):
+//     1. refreshes the KeyInventory, and picks the enabled keys whose first matching policy says they are due: their
+//        current version is at least maxAgeMillis old, or they have been used at least maxUses times since the last
+//        rotation (see recordUse)
+//     2. rotates each due key with createKeyVersion, and retires its current DEK in the given DataKeyCaches so that
+//        new payloads get DEKs wrapped under the new version. A key that fails to rotate is counted and skipped; it is
+//        still due on the next cycle, and the other keys are rotated and re-wrapped as usual.
+//     3. asks the WrappedKeyStore, for every enabled key, for the distinct DEKs that are not wrapped under the key's
+//        current version yet, and replaces each of them with EnvelopeCrypto.rewrap: one decrypt and one encrypt call
+//        per DEK, however much data it protects and however many rows share it.
+// The DEKs left to re-wrap are not remembered between cycles: every cycle works them out again from the store, so DEKs
+// that failed to re-wrap, or that were left behind by a process that stopped between a rotation and its re-wrap, are
+// picked up by the next cycle of whichever process runs it. This costs one listStale call per enabled key and cycle.
+// Nothing is re-encrypted and nothing is blocked: the old key versions stay enabled, so readers can decrypt with either
+// wrapped copy of a DEK while the re-wrap runs, and live encrypt and decrypt calls keep going through their own
+// clients. The cycles run on one background thread, so rotation traffic stays small next to live traffic; with a
+// RateLimitedKmsCryptoClient both share the vault's quota.
+// Use counts live in memory and start at 0 when the process starts.
+public class KeyRotationScheduler implements AutoCloseable {
+
+	// WrappedKeyStore gives access to the wrapped DEKs an application keeps, e.g. in a table column next to the
+	// rows they encrypt. It records the vault key version each DEK is wrapped under, because the vault's ciphertext
+	// does not say.
+	public interface WrappedKeyStore {
+		// The distinct wrapped DEKs stored under the vault key that are not wrapped under keyVersionId. It is called
+		// for every enabled key on every cycle, so it should be cheap when there are none, e.g. an indexed query.
+		Collection<byte[]> listStale(String keyId, String keyVersionId) throws Exception;
+
+		// Replaces every stored copy of oldWrappedKey by newWrappedKey, which is wrapped under keyVersionId.
+		void replace(String keyId, byte[] oldWrappedKey, byte[] newWrappedKey, String keyVersionId) throws Exception;
+	}
+
+	private final KmsManagementClient kmsManagementClient;
+	private final KmsCryptoClient kmsCryptoClient;
+	private final KeyInventory inventory;
+	private final List<RotationPolicy> policies;
+	private final WrappedKeyStore wrappedKeyStore;
+	private final List<DataKeyCache> dataKeyCaches;
+	private final KeyStateAwaiter keyStateAwaiter;
+	private final Map<String, AtomicLong> uses = new ConcurrentHashMap<String, AtomicLong>();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(BatchCrypto.daemonThreads("key-rotation-"));
+
+	private final AtomicLong rotations = new AtomicLong();
+	private final AtomicLong rotationFailures = new AtomicLong();
+	private final AtomicLong rewraps = new AtomicLong();
+	private final AtomicLong rewrapFailures = new AtomicLong();
+
+	// wrappedKeyStore may be null if the application keeps no wrapped DEKs apart from the data.
+	public KeyRotationScheduler(KmsManagementClient kmsManagementClient, KmsCryptoClient kmsCryptoClient, KeyInventory inventory,
+			List<RotationPolicy> policies, WrappedKeyStore wrappedKeyStore, DataKeyCache... dataKeyCaches) {
+		this.kmsManagementClient = kmsManagementClient;
+		this.kmsCryptoClient = kmsCryptoClient;
+		this.inventory = inventory;
+		this.policies = new ArrayList<RotationPolicy>(policies);
+		this.wrappedKeyStore = wrappedKeyStore;
+		this.dataKeyCaches = Arrays.asList(dataKeyCaches);
+		this.keyStateAwaiter = new KeyStateAwaiter(kmsManagementClient);
+	}
+
+	// Runs a cycle every periodMillis, starting now. A failed cycle is reported on standard error and the next one
+	// runs as planned.
+	public void start(long periodMillis) {
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				runOnce();
+			} catch (Exception e) {
+				System.err.println("Key rotation cycle failed: " + e);
+			}
+		}, 0, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// Counts uses of a vault key, e.g. one per DEK generated or payload encrypted, for the maxUses policies.
+	public void recordUse(String keyId) {
+		recordUses(keyId, 1);
+	}
+
+	public void recordUses(String keyId, long count) {
+		AtomicLong counter = uses.get(keyId);
+		if (counter == null) {
+			uses.putIfAbsent(keyId, new AtomicLong());
+			counter = uses.get(keyId);
+		}
+		counter.addAndGet(count);
+	}
+
+	// Runs one cycle now and returns the keys it rotated.
+	public synchronized List<String> runOnce() throws Exception {
+		inventory.refresh();
+		long now = System.currentTimeMillis();
+		List<String> rotated = new ArrayList<String>();
+		// the versions just created, which the inventory may not show yet if refreshKey failed
+		Map<String, String> newVersions = new HashMap<String, String>();
+		for (KeyInventory.Entry entry : inventory.getByState(KeySummary.LifecycleState.Enabled)) {
+			RotationPolicy policy = policyFor(entry);
+			AtomicLong counter = uses.get(entry.getKeyId());
+			if (policy != null && policy.isDue(now - currentVersionCreated(entry), counter == null ? 0 : counter.get())) {
+				try {
+					newVersions.put(entry.getKeyId(), rotate(entry.getKeyId()));
+					rotated.add(entry.getKeyId());
+				} catch (Exception e) {
+					rotationFailures.incrementAndGet();
+					System.err.println("Rotation of key " + entry.getKeyId() + " failed: " + e);
+				}
+			}
+		}
+		if (wrappedKeyStore != null) {
+			for (KeyInventory.Entry entry : inventory.getByState(KeySummary.LifecycleState.Enabled)) {
+				String keyVersionId = newVersions.containsKey(entry.getKeyId()) ? newVersions.get(entry.getKeyId()) : entry.getCurrentVersionId();
+				if (keyVersionId == null) {
+					// the key's versions were not listed; its DEKs are re-wrapped once they are
+					continue;
+				}
+				try {
+					rewrap(entry.getKeyId(), keyVersionId);
+				} catch (Exception e) {
+					// the store could not list the key's DEKs; they are listed again on the next cycle
+					rewrapFailures.incrementAndGet();
+					System.err.println("Re-wrap of the DEKs of key " + entry.getKeyId() + " failed: " + e);
+				}
+			}
+		}
+		return rotated;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	// Counters: rotations made and failed, DEKs re-wrapped, and re-wraps that failed. Failures are retried on the next
+	// cycle, by this process or by the next one started.
+	public long getRotations() { return rotations.get(); }
+	public long getRotationFailures() { return rotationFailures.get(); }
+	public long getRewraps() { return rewraps.get(); }
+	public long getRewrapFailures() { return rewrapFailures.get(); }
+
+	@Override
+	public synchronized String toString() {
+		return "KeyRotationScheduler[rotations=" + rotations.get() + ", rotationFailures=" + rotationFailures.get() + ", rewraps=" + rewraps.get() + ", rewrapFailures="
+			+ rewrapFailures.get() + "]";
+	}
+
+	private RotationPolicy policyFor(KeyInventory.Entry entry) {
+		for (RotationPolicy policy : policies) {
+			if (policy.matches(entry.getSummary())) {
+				return policy;
+			}
+		}
+		return null;
+	}
+
+	// the creation time of the key's current version, or of the key itself if its versions were not listed
+	private static long currentVersionCreated(KeyInventory.Entry entry) {
+		List<KeyVersionSummary> versions = entry.getVersions();
+		return (versions.isEmpty() ? entry.getTimeCreated() : versions.get(versions.size() - 1).getTimeCreated()).getTime();
+	}
+
+	// createKeyVersion is not idempotent: after a failure with an unknown outcome, it is only sent again if the key has
+	// no version created since this rotation started. Returns the new version.
+	private String rotate(final String keyId) throws Exception {
+		final CreateKeyVersionRequest request = CreateKeyVersionRequest.builder().keyId(keyId).build();
+		final Date since = new Date(System.currentTimeMillis() - BulkKeyOperations.CLOCK_SKEW_MILLIS);
+		String keyVersionId = keyStateAwaiter.callOnce(keyId,
+			() -> kmsManagementClient.createKeyVersion(request).getKeyVersion().getId(),
+			() -> {
+				KeyVersionSummary created = BulkKeyOperations.versionCreatedSince(kmsManagementClient, keyId, since);
+				return created == null ? null : created.getId();
+			});
+		rotations.incrementAndGet();
+		uses.remove(keyId);
+		for (DataKeyCache dataKeyCache : dataKeyCaches) {
+			dataKeyCache.retire(keyId);
+		}
+		try {
+			inventory.refreshKey(keyId);
+		} catch (RuntimeException e) {
+			// the versions are refetched by a later refresh; the re-wrap uses the version just created
+			System.err.println("Listing the versions of key " + keyId + " failed: " + e);
+		}
+		return keyVersionId;
+	}
+
+	// Re-wraps the stale DEKs of a key. A DEK that fails is counted, and listed again on the next cycle.
+	private void rewrap(String keyId, String keyVersionId) throws Exception {
+		// the store may list a DEK more than once; each DEK is re-wrapped only once
+		Map<String, byte[]> done = new HashMap<String, byte[]>();
+		for (byte[] wrappedKey : wrappedKeyStore.listStale(keyId, keyVersionId)) {
+			String fingerprint = UnwrappedKeyCache.fingerprint(keyId, null, wrappedKey);
+			try {
+				byte[] newWrappedKey = done.get(fingerprint);
+				if (newWrappedKey == null) {
+					newWrappedKey = EnvelopeCrypto.rewrap(kmsCryptoClient, keyId, wrappedKey);
+					done.put(fingerprint, newWrappedKey);
+					rewraps.incrementAndGet();
+				}
+				wrappedKeyStore.replace(keyId, wrappedKey, newWrappedKey, keyVersionId);
+			} catch (Exception e) {
+				rewrapFailures.incrementAndGet();
+			}
+		}
+	}
+
+	// RotationPolicy says when the keys it applies to are due for rotation. It applies to the keys with the given
+	// freeform tag, or to every key if tagName is null. A key is due once it reaches either limit; a limit of 0 is not
+	// checked.
+	public static class RotationPolicy {
+		private final String tagName;
+		private final String tagValue;
+		private final long maxAgeMillis;
+		private final long maxUses;
+
+		public RotationPolicy(String tagName, String tagValue, long maxAgeMillis, long maxUses) {
+			if (maxAgeMillis < 0 || maxUses < 0) {
+				throw new IllegalArgumentException("Rotation limits must not be negative.");
+			}
+			this.tagName = tagName;
+			this.tagValue = tagValue;
+			this.maxAgeMillis = maxAgeMillis;
+			this.maxUses = maxUses;
+		}
+
+		// A policy for every key.
+		public static RotationPolicy all(long maxAgeMillis, long maxUses) {
+			return new RotationPolicy(null, null, maxAgeMillis, maxUses);
+		}
+
+		private boolean matches(KeySummary key) {
+			if (tagName == null) {
+				return true;
+			}
+			Map<String, String> tags = key.getFreeformTags();
+			return tags != null && tagValue.equals(tags.get(tagName));
+		}
+
+		private boolean isDue(long ageMillis, long useCount) {
+			return (maxAgeMillis > 0 && ageMillis >= maxAgeMillis) || (maxUses > 0 && useCount >= maxUses);
+		}
+
+		@Override
+		public String toString() {
+			return "RotationPolicy[" + (tagName == null ? "all keys" : tagName + "=" + tagValue) + ", maxAgeMillis=" + maxAgeMillis
+				+ ", maxUses=" + maxUses + "]";
+		}
+	}
+}
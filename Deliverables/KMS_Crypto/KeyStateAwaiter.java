@@ -0,0 +1,242 @@
+import com.oracle.bmc.keymanagement.KmsManagementClient;
+import com.oracle.bmc.keymanagement.model.Key;
+import com.oracle.bmc.keymanagement.requests.GetKeyRequest;
+import com.oracle.bmc.model.BmcException;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// KeyStateAwaiter runs a vault operation that needs the key to be available (a key that was just created, rotated,
+// enabled, etc. spends some time in a transitional state such as CREATING or ENABLING) and retries it until the key
+// is ready. It replaces the fixed 10 second sleep loops that used to be copied into every sample:
+//     * Failures are classified first. Errors that retrying cannot fix (400, 401, 403, 404, ...) are rethrown
+//       immediately instead of after the full timeout.
+//     * Retryable failures (409 while the key is busy, 429, 5xx, timeouts and connection errors) are retried with
+//       exponential backoff and jitter, starting at a fraction of a second.
+//     * If a KmsManagementClient is given, the awaiter polls getKey instead and retries as soon as the key has left
+//       its transitional state. All threads waiting on the same key share a single poll.
+//     * Operations that must not be applied twice (createKeyVersion) go through callOnce: after a 5xx, a timeout or a
+//       connection error the vault may have acted on the request anyway, so it is only sent again once a check has
+//       found that it did not take effect.
+public class KeyStateAwaiter {
+
+	// DEFAULT_INITIAL_DELAY_MILLIS is the first backoff delay; it doubles on every retry up to DEFAULT_MAX_DELAY_MILLIS.
+	public static final long DEFAULT_INITIAL_DELAY_MILLIS = 250L;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 10000L;
+	// DEFAULT_TIMEOUT_MILLIS is the maximum total time to wait for the key to become available.
+	public static final long DEFAULT_TIMEOUT_MILLIS = 120000L;
+
+	// POLLS holds the getKey poll currently running for each key id, so that concurrent waiters share it.
+	private static final ConcurrentHashMap<String, CompletableFuture<Key>> POLLS = new ConcurrentHashMap<String, CompletableFuture<Key>>();
+
+	private final KmsManagementClient kmsManagementClient;
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+	private final long timeoutMillis;
+
+	// kmsManagementClient may be null, in which case the operation itself is retried with backoff.
+	public KeyStateAwaiter(KmsManagementClient kmsManagementClient) {
+		this(kmsManagementClient, DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	public KeyStateAwaiter(KmsManagementClient kmsManagementClient, long initialDelayMillis, long maxDelayMillis, long timeoutMillis) {
+		if (initialDelayMillis <= 0 || maxDelayMillis < initialDelayMillis || timeoutMillis <= 0) {
+			throw new IllegalArgumentException("KeyStateAwaiter needs positive delays and timeout, with maxDelayMillis >= initialDelayMillis.");
+		}
+		this.kmsManagementClient = kmsManagementClient;
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	// Runs the operation, retrying it while the key with the given id is not available yet.
+	public <T> T call(String keyId, Callable<T> operation) throws Exception {
+		return call(keyId, operation, null);
+	}
+
+	// Runs a non-idempotent operation like call. Before it is retried after a failure with an unknown outcome (see
+	// isAmbiguous), check is asked whether the failed attempt took effect: it returns the result of that attempt,
+	// which is then returned, or null to retry. If the check fails, the operation's error is thrown.
+	public <T> T callOnce(String keyId, Callable<T> operation, Callable<T> check) throws Exception {
+		return call(keyId, operation, check);
+	}
+
+	private <T> T call(String keyId, Callable<T> operation, Callable<T> check) throws Exception {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		int attempt = 0;
+		while (true) {
+			try {
+				return operation.call();
+			} catch (Exception e) {
+				// A 404 is final, unless the key state can be checked: a key that is still being created may not be
+				// visible to the cryptographic endpoint yet.
+				boolean notFound = hasStatus(e, 404);
+				if (!isRetryable(e) && !(notFound && kmsManagementClient != null)) {
+					throw e;
+				}
+				if (check != null && isAmbiguous(e)) {
+					T applied;
+					try {
+						applied = check.call();
+					} catch (Exception checkError) {
+						e.addSuppressed(checkError);
+						throw e;
+					}
+					if (applied != null) {
+						return applied;
+					}
+				}
+				if (System.currentTimeMillis() >= deadline) {
+					throw timeout(keyId, e);
+				}
+				if (kmsManagementClient != null && !isThrottled(e)) {
+					if (awaitStable(keyId, deadline).waited) {
+						// the key has just settled: retry right away
+						attempt = 0;
+						continue;
+					}
+					if (notFound || hasStatus(e, 409)) {
+						// the key is not changing state, so the error will not go away by itself (e.g. disabling a disabled key)
+						throw e;
+					}
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				Thread.sleep(Math.max(0L, Math.min(remaining, backoff(attempt++))));
+			}
+		}
+	}
+
+	// Waits until the key is no longer in a transitional state and returns it. Requires a KmsManagementClient.
+	public Key awaitStable(String keyId) throws Exception {
+		if (kmsManagementClient == null) {
+			throw new IllegalStateException("KeyStateAwaiter needs a KmsManagementClient to poll the key state.");
+		}
+		return awaitStable(keyId, System.currentTimeMillis() + timeoutMillis).key;
+	}
+
+	// Polls getKey with backoff until the key is stable. If another thread is already polling the same key, this
+	// waits for that poll instead of starting a second one.
+	private Observation awaitStable(String keyId, long deadline) throws Exception {
+		CompletableFuture<Key> poll = new CompletableFuture<Key>();
+		CompletableFuture<Key> existing = POLLS.putIfAbsent(keyId, poll);
+		if (existing != null) {
+			long remaining = deadline - System.currentTimeMillis();
+			try {
+				return new Observation(existing.get(Math.max(0L, remaining), TimeUnit.MILLISECONDS), true);
+			} catch (TimeoutException e) {
+				throw timeout(keyId, e);
+			} catch (ExecutionException e) {
+				throw rethrow(e.getCause());
+			}
+		}
+		try {
+			Key key = getKey(keyId);
+			boolean waited = false;
+			int attempt = 0;
+			while (!isStable(key)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw timeout(keyId, null);
+				}
+				waited = true;
+				Thread.sleep(Math.min(remaining, backoff(attempt++)));
+				key = getKey(keyId);
+			}
+			poll.complete(key);
+			return new Observation(key, waited);
+		} catch (Exception e) {
+			poll.completeExceptionally(e);
+			throw e;
+		} finally {
+			POLLS.remove(keyId, poll);
+		}
+	}
+
+	private Key getKey(String keyId) {
+		return kmsManagementClient.getKey(GetKeyRequest.builder().keyId(keyId).build()).getKey();
+	}
+
+	// exponential backoff with "full jitter": a random delay between half and all of initialDelay * 2^attempt
+	private long backoff(int attempt) {
+		long ceiling = Math.min(maxDelayMillis, initialDelayMillis << Math.min(attempt, 20));
+		return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+	}
+
+	// A key is stable once it is not being created, enabled, disabled, deleted or (un)scheduled for deletion.
+	static boolean isStable(Key key) {
+		switch (key.getLifecycleState()) {
+			case Creating:
+			case Enabling:
+			case Disabling:
+			case Deleting:
+			case SchedulingDeletion:
+			case CancellingDeletion:
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	// true if retrying the call that failed with this error could succeed
+	public static boolean isRetryable(Throwable error) {
+		if (error instanceof BmcException) {
+			BmcException bmcException = (BmcException) error;
+			if (bmcException.isTimeout()) {
+				return true;
+			}
+			int status = bmcException.getStatusCode();
+			return status == 409 || status == 429 || status >= 500 || status <= 0;
+		}
+		// connection failures surface as runtime exceptions wrapping an IOException
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// true if the call failed in a way that leaves it unknown whether the vault carried it out: a retryable error other
+	// than 409 and 429, which mean the request was turned down
+	public static boolean isAmbiguous(Throwable error) {
+		return isRetryable(error) && !hasStatus(error, 409) && !hasStatus(error, 429);
+	}
+
+	// true if the vault rejected the call because of request throttling (HTTP 429)
+	public static boolean isThrottled(Throwable error) {
+		return hasStatus(error, 429);
+	}
+
+	private static boolean hasStatus(Throwable error, int status) {
+		return error instanceof BmcException && ((BmcException) error).getStatusCode() == status;
+	}
+
+	private Exception timeout(String keyId, Throwable cause) {
+		return new Exception("ERROR: timeout of " + TimeUnit.MILLISECONDS.toSeconds(timeoutMillis)
+			+ " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.", cause);
+	}
+
+	// Observation is a stable key, and whether the key had to be waited for to get there.
+	private static class Observation {
+		private final Key key;
+		private final boolean waited;
+
+		private Observation(Key key, boolean waited) {
+			this.key = key;
+			this.waited = waited;
+		}
+	}
+
+	private static Exception rethrow(Throwable cause) {
+		if (cause instanceof Exception) {
+			return (Exception) cause;
+		}
+		throw (Error) cause;
+	}
+}
@@ -20,10 +20,22 @@ import com.oracle.bmc.keymanagement.responses.DecryptResponse;
 import com.oracle.bmc.keymanagement.responses.EncryptResponse;
 import com.oracle.bmc.keymanagement.responses.GenerateDataEncryptionKeyResponse;
 import com.oracle.bmc.keymanagement.responses.GetVaultResponse;
-import org.apache.commons.codec.binary.Base64;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class KmsCrypto {
 
@@ -31,17 +43,18 @@ public class KmsCrypto {
 	private static final KeyShape TEST_KEY_SHAPE =
 			KeyShape.builder().algorithm(KeyShape.Algorithm.Aes).length(DEFAULT_KEY_LENGTH).build();
 
-	private static final long DELAY = 10L; // 10 second delay
-	private static final long TIMEOUT = 120L; // 2 minute timeout
+	// CRYPTO_KEY_STATE_AWAITER retries cryptographic calls with backoff while a key is not available yet.
+	private static final KeyStateAwaiter CRYPTO_KEY_STATE_AWAITER = new KeyStateAwaiter(null);
 
 	public static void main(final String[] args) throws Exception {
 		/* These three variables will be passed in via command line. Refer to the README for more details.
 			* compartmentId: the OCID of the compartment in which your key will be created in the createKeyTest.
 			* vaultId: the OCID of the virtual vault you are using
 			* region: the region in which the vault was created
-		By default, this should be the same compartment your vault is located in.*/
-		if (args.length != 3) {
-			throw new IllegalArgumentException("This program requires three arguments: compartmentId, vaultId, and region.");
+		By default, this should be the same compartment your vault is located in.
+		Any further arguments are the crypto endpoints of replicas of the vault, which calls are hedged and failed over to.*/
+		if (args.length < 3) {
+			throw new IllegalArgumentException("This program requires three arguments: compartmentId, vaultId, and region, optionally followed by replica crypto endpoints.");
 		}
 		final String compartmentId = args[0];
 		final String vaultId = args[1];
@@ -61,9 +74,12 @@ public class KmsCrypto {
 		//     * kmsVaultClient: the client for Vault Management
 		//     * kmsManagementClient: the client for Key Management
 		//     * kmsCryptoClient: the client for Crypographic Management
-		KmsVaultClient kmsVaultClient = new KmsVaultClient(provider);
-		KmsManagementClient kmsManagementClient = new KmsManagementClient(provider);
-		KmsCryptoClient kmsCryptoClient = new KmsCryptoClient(provider);
+		// The management and cryptographic clients share one KmsRateLimiter, which keeps their calls under the vault's
+		// request quota. Concurrent getVault calls for the same vault share one request (see CoalescingKmsVaultClient).
+		KmsRateLimiter kmsRateLimiter = new KmsRateLimiter();
+		KmsVaultClient kmsVaultClient = new CoalescingKmsVaultClient(provider);
+		KmsManagementClient kmsManagementClient = new RateLimitedKmsManagementClient(provider, kmsRateLimiter, vaultId);
+		KmsCryptoClient kmsCryptoClient = new RateLimitedKmsCryptoClient(provider, kmsRateLimiter, vaultId);
 
 		// Set the region
 		kmsVaultClient.setRegion(region);
@@ -74,17 +90,52 @@ public class KmsCrypto {
 		// Set the cryptographic management endpoint
 		kmsManagementClient.setEndpoint(vault.getManagementEndpoint());
 		kmsCryptoClient.setEndpoint(vault.getCryptoEndpoint());
+		// With replica crypto endpoints, calls are hedged and failed over across the vault and its replicas. Each
+		// replica has its own quota, so its calls are limited under its endpoint instead of the vault id.
+		if (args.length > 3) {
+			Map<String, KmsCryptoClient> cryptoEndpoints = new LinkedHashMap<String, KmsCryptoClient>();
+			cryptoEndpoints.put(vault.getCryptoEndpoint(), kmsCryptoClient);
+			for (int i = 3; i < args.length; i++) {
+				KmsCryptoClient replicaCryptoClient = new RateLimitedKmsCryptoClient(provider, kmsRateLimiter, args[i]);
+				replicaCryptoClient.setEndpoint(args[i]);
+				cryptoEndpoints.put(args[i], replicaCryptoClient);
+			}
+			kmsCryptoClient = new HedgedKmsCryptoClient(provider, cryptoEndpoints);
+		}
 
 		// Get the keyID using createKey
 		String keyId = createKeyTest(kmsManagementClient, compartmentId, "SFLY_DELIVERABLES_TEST_KMS");
+		// Wait for the new key to leave the CREATING state before using it
+		new KeyStateAwaiter(kmsManagementClient).awaitStable(keyId);
 
 		// Testing the encryption endpoint
 		String plaintext = "1234567890000000";
 		String ciphertext = encryptTest(kmsCryptoClient, keyId, plaintext);
 		// Testing the decryption endpoint
 		decryptTest(kmsCryptoClient, keyId, ciphertext);
+		// Testing the byte-oriented encrypt and decrypt calls
+		byteCryptoTest(kmsCryptoClient, keyId, plaintext);
 		// Testing the generateDataEncryptionKey endpoint
 		generateDataEncryptionKeyTest(kmsCryptoClient, keyId);
+		// Testing envelope encryption: one generateDataEncryptionKey call, then local AES-GCM
+		envelopeEncryptionTest(kmsCryptoClient, keyId, plaintext);
+		// Testing field-level encryption of a delimited record, with only some fields decrypted
+		fieldEncryptionTest(kmsCryptoClient, keyId);
+		// Testing streaming encryption of a payload too large for the encrypt endpoint
+		streamingEncryptionTest(kmsCryptoClient, keyId);
+		// Testing random access to an encrypted file
+		seekableDecryptionTest(kmsCryptoClient, keyId);
+		// Testing parallel encryption of a file on all cores
+		parallelFileEncryptionTest(kmsCryptoClient, keyId);
+		// Testing policy-driven rotation of the key, and the re-wrap of a stored DEK under the new key version
+		keyRotationTest(kmsManagementClient, kmsCryptoClient, compartmentId, keyId);
+		// Testing the asynchronous facade
+		asyncTest(new AsyncKms(kmsVaultClient, kmsManagementClient, kmsCryptoClient), keyId, plaintext);
+		// How close to the vault's quota the tests ran
+		System.out.println(kmsRateLimiter + "\n");
+		if (kmsCryptoClient instanceof HedgedKmsCryptoClient) {
+			System.out.println(kmsCryptoClient + "\n");
+		}
 	}
 
 	public static Vault getVaultTest(KmsVaultClient kmsVaultClient, String vaultId) {
@@ -112,27 +163,11 @@ public class KmsCrypto {
 		System.out.println("======== Encrypt Test ========");
 		EncryptDataDetails encryptDataDetails = EncryptDataDetails.builder()
 			.keyId(keyId)
-			.plaintext(Base64.encodeBase64String(plaintext.getBytes()))
+			.plaintext(ByteCrypto.toBase64(plaintext.getBytes(StandardCharsets.UTF_8)))
 			.loggingContext(getSampleLoggingContext()) // this is optional
 			.build();
 		EncryptRequest encryptRequest = EncryptRequest.builder().encryptDataDetails(encryptDataDetails).build();
-		EncryptResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsCryptoClient.encrypt(encryptRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				//System.out.println("        " + e); // DEBUG
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
+		EncryptResponse response = CRYPTO_KEY_STATE_AWAITER.call(keyId, () -> kmsCryptoClient.encrypt(encryptRequest));
 		String ciphertextResponse = response.getEncryptedData().getCiphertext();
 		System.out.println("Plaintext:\n" + plaintext);
 		System.out.println("Ciphertext:\n" + ciphertextResponse + "\n");
@@ -147,29 +182,34 @@ public class KmsCrypto {
 			.loggingContext(getSampleLoggingContext()) // optional
 			.build();
 		DecryptRequest decryptRequest = DecryptRequest.builder().decryptDataDetails(decryptDataDetails).build();
-		DecryptResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsCryptoClient.decrypt(decryptRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
-			}
-		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
-		}
+		DecryptResponse response = CRYPTO_KEY_STATE_AWAITER.call(keyId, () -> kmsCryptoClient.decrypt(decryptRequest));
 		String plaintextResponseBase64 = response.getDecryptedData().getPlaintext();
-		String plaintextResponse = new String(Base64.decodeBase64(plaintextResponseBase64));
+		String plaintextResponse = new String(ByteCrypto.fromBase64(plaintextResponseBase64), StandardCharsets.UTF_8);
 		System.out.println("Plaintext (encoded as base 64):\n" + plaintextResponseBase64);
 		System.out.println("Plaintext:\n" + plaintextResponse + "\n");
 		return plaintextResponse;
 	}
 
+	public static void byteCryptoTest(KmsCryptoClient kmsCryptoClient, String keyId, String plaintext) throws Exception {
+		System.out.println("======== Byte Crypto Test ========");
+		// The payload and results live in off-heap buffers borrowed from a SecureBufferPool, which are zeroed and
+		// reused for the next call once their leases are closed.
+		SecureBufferPool pool = SecureBufferPool.getDefault();
+		try (SecureBufferPool.Lease plaintextIn = pool.acquireCopy(plaintext.getBytes(StandardCharsets.UTF_8));
+				SecureBufferPool.Lease ciphertext = pool.acquire(8192);
+				SecureBufferPool.Lease plaintextOut = pool.acquire(4096)) {
+			int ciphertextLength = CRYPTO_KEY_STATE_AWAITER.call(keyId, () -> ByteCrypto.encrypt(kmsCryptoClient, keyId, plaintextIn.getBuffer(), ciphertext.getBuffer()));
+			ciphertext.getBuffer().flip();
+			int plaintextLength = CRYPTO_KEY_STATE_AWAITER.call(keyId, () -> ByteCrypto.decrypt(kmsCryptoClient, keyId, ciphertext.getBuffer(), plaintextOut.getBuffer()));
+			plaintextOut.getBuffer().flip();
+			byte[] decrypted = new byte[plaintextOut.getBuffer().remaining()];
+			plaintextOut.getBuffer().get(decrypted);
+			System.out.println("Ciphertext bytes: " + ciphertextLength + ", plaintext bytes: " + plaintextLength);
+			System.out.println("Plaintext:\n" + new String(decrypted, StandardCharsets.UTF_8));
+		}
+		System.out.println(pool + "\n");
+	}
+
 	public static void generateDataEncryptionKeyTest(KmsCryptoClient kmsCryptoClient, String keyId) throws Exception {
 		System.out.println("======== GenerateDataEncryptionKey Test ========");
 		GenerateKeyDetails generateKeyDetails = GenerateKeyDetails.builder()
@@ -181,23 +221,177 @@ public class KmsCrypto {
 		GenerateDataEncryptionKeyRequest generateDataEncryptionKeyRequest = GenerateDataEncryptionKeyRequest.builder()
 			.generateKeyDetails(generateKeyDetails)
 			.build();
-		GenerateDataEncryptionKeyResponse response = null;
-		long time_waited = 0L;
-		boolean keyIsAvailable = false;
-		while (time_waited < TIMEOUT && !keyIsAvailable) {
-			try {
-				response = kmsCryptoClient.generateDataEncryptionKey(generateDataEncryptionKeyRequest);
-				keyIsAvailable = true;
-			} catch (Exception e) {
-				System.out.println("    Waiting for key state to become available (" + time_waited + " seconds elapsed).");
-				Thread.sleep(DELAY * 1000L);
-				time_waited += DELAY;
+		GenerateDataEncryptionKeyResponse response = CRYPTO_KEY_STATE_AWAITER.call(keyId, () -> kmsCryptoClient.generateDataEncryptionKey(generateDataEncryptionKeyRequest));
+		System.out.println("GenerateDataEncryptionKey Response:\n" + response.getGeneratedKey() + "\n");
+	}
+
+	public static void envelopeEncryptionTest(KmsCryptoClient kmsCryptoClient, String keyId, String plaintext) throws Exception {
+		System.out.println("======== Envelope Encryption Test ========");
+		EnvelopeCrypto envelopeCrypto = new EnvelopeCrypto(kmsCryptoClient, keyId);
+		// Only the first encryption calls the vault (generateDataEncryptionKey); the rest are done locally.
+		String envelope1 = envelopeCrypto.encryptToBase64(plaintext);
+		String envelope2 = envelopeCrypto.encryptToBase64(plaintext + plaintext);
+		System.out.println("Plaintext:\n" + plaintext);
+		System.out.println("Envelopes (header + ciphertext, encoded as base 64):\n" + envelope1 + "\n" + envelope2);
+		// The header names the vault key that wrapped the DEK, so the envelope can be decrypted without storing the key id
+		// next to it.
+		System.out.println("Header of the first envelope:\n" + EnvelopeHeader.read(ByteCrypto.fromBase64(envelope1)));
+		// Decryption only calls the vault to unwrap the DEK stored in the envelope, and only the first time.
+		System.out.println("Decrypted envelopes:\n" + envelopeCrypto.decryptFromBase64(envelope1) + "\n" + envelopeCrypto.decryptFromBase64(envelope2));
+		// Both envelopes share one DEK: expect 1 miss (one vault call) and 1 hit in each cache.
+		System.out.println("DEK cache: " + envelopeCrypto.getDataKeyCache());
+		System.out.println("Unwrapped DEK cache: " + envelopeCrypto.getUnwrappedKeyCache() + "\n");
+		envelopeCrypto.close();
+	}
+
+	public static void fieldEncryptionTest(KmsCryptoClient kmsCryptoClient, String keyId) throws Exception {
+		System.out.println("======== Field Encryption Test ========");
+		FieldCrypto fieldCrypto = new FieldCrypto(kmsCryptoClient, keyId);
+		// name, SSN, date of birth, bank, card number: every field is encrypted on its own under one DEK
+		String record = "John Doe,600600600,01-01-2000,Bank of America,1234567890000000";
+		String encrypted = fieldCrypto.encryptDelimitedToBase64(record, ',');
+		System.out.println("Record:\n" + record);
+		System.out.println("Encrypted record (" + FieldCrypto.fieldCount(ByteCrypto.fromBase64(encrypted)) + " fields, encoded as base 64):\n" + encrypted);
+		// A reader that only needs the name and the bank decrypts those two fields; the others stay encrypted.
+		String[] fields = fieldCrypto.decryptFromBase64(encrypted, 0, 3);
+		System.out.println("Decrypted fields 0 and 3:\n" + Arrays.toString(fields) + "\n");
+		fieldCrypto.close();
+	}
+
+	public static void streamingEncryptionTest(KmsCryptoClient kmsCryptoClient, String keyId) throws Exception {
+		System.out.println("======== Streaming Encryption Test ========");
+		StreamingCrypto streamingCrypto = new StreamingCrypto(kmsCryptoClient, keyId);
+		// 10 MB of sample data; the streams only ever hold one 64 KB segment of it at a time.
+		byte[] plaintext = new byte[10 * 1024 * 1024];
+		Arrays.fill(plaintext, (byte) 'x');
+		ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+		streamingCrypto.encrypt(new ByteArrayInputStream(plaintext), ciphertext);
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		streamingCrypto.decrypt(new ByteArrayInputStream(ciphertext.toByteArray()), decrypted);
+		System.out.println("Encrypted " + plaintext.length + " bytes into " + ciphertext.size() + " bytes; decrypted "
+			+ (Arrays.equals(plaintext, decrypted.toByteArray()) ? "successfully.\n" : "to DIFFERENT data.\n"));
+	}
+
+	public static void seekableDecryptionTest(KmsCryptoClient kmsCryptoClient, String keyId) throws Exception {
+		System.out.println("======== Seekable Decryption Test ========");
+		StreamingCrypto streamingCrypto = new StreamingCrypto(kmsCryptoClient, keyId);
+		// An "export" of 100000 fixed-width records, encrypted to a temporary file
+		StringBuilder records = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			records.append(String.format("record %09d%n", i));
+		}
+		byte[] plaintext = records.toString().getBytes(StandardCharsets.UTF_8);
+		int recordLength = plaintext.length / 100000;
+		Path file = Files.createTempFile("kms-seekable-test", ".enc");
+		try {
+			try (OutputStream out = Files.newOutputStream(file)) {
+				streamingCrypto.encrypt(new ByteArrayInputStream(plaintext), out);
+			}
+			// Reading record 54321 only decrypts the segment that holds it, not the 2 MB in front of it.
+			try (SeekableDecryptingChannel channel = streamingCrypto.newSeekableDecryptingChannel(FileChannel.open(file))) {
+				ByteBuffer record = ByteBuffer.allocate(recordLength);
+				channel.position(54321L * recordLength);
+				while (record.hasRemaining() && channel.read(record) != -1) {
+				}
+				System.out.println("Plaintext size: " + channel.size() + " bytes; record 54321: "
+					+ new String(record.array(), StandardCharsets.UTF_8).trim() + "\n");
 			}
+		} finally {
+			Files.delete(file);
 		}
-		if (!keyIsAvailable) {
-			throw new Exception("ERROR: timeout of " + TIMEOUT + " seconds reached. Please check your vault for the state of the key with KeyId <" + keyId + ">.");
+	}
+
+	public static void parallelFileEncryptionTest(KmsCryptoClient kmsCryptoClient, String keyId) throws Exception {
+		System.out.println("======== Parallel File Encryption Test ========");
+		ParallelFileCrypto parallelFileCrypto = new ParallelFileCrypto(kmsCryptoClient, keyId);
+		Path input = Files.createTempFile("kms-parallel-test", ".bin");
+		Path encrypted = Files.createTempFile("kms-parallel-test", ".enc");
+		Path decrypted = Files.createTempFile("kms-parallel-test", ".dec");
+		try {
+			// 64 MB of sample data
+			byte[] block = new byte[1024 * 1024];
+			Arrays.fill(block, (byte) 'x');
+			try (OutputStream out = Files.newOutputStream(input)) {
+				for (int i = 0; i < 64; i++) {
+					out.write(block);
+				}
+			}
+			long start = System.nanoTime();
+			long encryptedSize = parallelFileCrypto.encryptFile(input, encrypted);
+			long elapsedMillis = (System.nanoTime() - start) / 1000000;
+			parallelFileCrypto.decryptFile(encrypted, decrypted);
+			System.out.println("Encrypted " + Files.size(input) + " bytes into " + encryptedSize + " bytes in " + elapsedMillis + " ms on "
+				+ Runtime.getRuntime().availableProcessors() + " cores; decrypted "
+				+ (Arrays.equals(Files.readAllBytes(input), Files.readAllBytes(decrypted)) ? "successfully.\n" : "to DIFFERENT data.\n"));
+		} finally {
+			Files.delete(input);
+			Files.delete(encrypted);
+			Files.delete(decrypted);
 		}
-		System.out.println("GenerateDataEncryptionKey Response:\n" + response.getGeneratedKey() + "\n");
+	}
+
+	// Rotates the test key through a KeyRotationScheduler once it has been used, then checks that the DEK the
+	// scheduler re-wrapped under the new key version is still the same DEK. The WrappedKeyStore here holds a single
+	// DEK in memory; an application would keep its wrapped DEKs in a table. Only keys with recorded uses are rotated,
+	// so the other keys of the compartment are left alone.
+	public static void keyRotationTest(KmsManagementClient kmsManagementClient, KmsCryptoClient kmsCryptoClient, String compartmentId,
+			final String keyId) throws Exception {
+		System.out.println("======== Key Rotation Test ========");
+		DataKey dataKey = EnvelopeCrypto.generateDataKey(kmsCryptoClient, keyId);
+		byte[] plaintextKey = dataKey.toSecretKey().getEncoded();
+		dataKey.destroy();
+		// the stored wrapped DEK and the key version it is wrapped under (null: the version before the rotation)
+		final byte[][] storedKey = { dataKey.getWrappedKey() };
+		final String[] storedKeyVersion = { null };
+		KeyRotationScheduler.WrappedKeyStore wrappedKeyStore = new KeyRotationScheduler.WrappedKeyStore() {
+			public Collection<byte[]> listStale(String staleKeyId, String keyVersionId) {
+				if (staleKeyId.equals(keyId) && !keyVersionId.equals(storedKeyVersion[0])) {
+					return Collections.singletonList(storedKey[0]);
+				}
+				return Collections.emptyList();
+			}
+
+			public void replace(String replacedKeyId, byte[] oldWrappedKey, byte[] newWrappedKey, String keyVersionId) {
+				storedKey[0] = newWrappedKey;
+				storedKeyVersion[0] = keyVersionId;
+			}
+		};
+		try (KeyInventory inventory = new KeyInventory(kmsManagementClient, compartmentId);
+				KeyRotationScheduler scheduler = new KeyRotationScheduler(kmsManagementClient, kmsCryptoClient, inventory,
+					Collections.singletonList(KeyRotationScheduler.RotationPolicy.all(0, 1)), wrappedKeyStore)) {
+			scheduler.recordUse(keyId);
+			System.out.println("Rotated keys: " + scheduler.runOnce());
+			System.out.println("DEK re-wrapped under key version " + storedKeyVersion[0]);
+			byte[] unwrapped = EnvelopeCrypto.unwrap(kmsCryptoClient, keyId, storedKey[0]);
+			System.out.println("Re-wrapped DEK unwraps to the original DEK: " + Arrays.equals(plaintextKey, unwrapped));
+			System.out.println(scheduler + "\n");
+			Arrays.fill(unwrapped, (byte) 0);
+		} finally {
+			Arrays.fill(plaintextKey, (byte) 0);
+		}
+	}
+
+	public static void asyncTest(AsyncKms asyncKms, String keyId, String plaintext) throws Exception {
+		System.out.println("======== Async Test ========");
+		System.out.println("Running SDK calls on " + (asyncKms.usesVirtualThreads() ? "virtual threads." : "a platform thread pool."));
+		EncryptDataDetails encryptDataDetails = EncryptDataDetails.builder()
+			.keyId(keyId)
+			.plaintext(ByteCrypto.toBase64(plaintext.getBytes(StandardCharsets.UTF_8)))
+			.build();
+		GenerateKeyDetails generateKeyDetails = GenerateKeyDetails.builder()
+			.keyId(keyId)
+			.keyShape(TEST_KEY_SHAPE)
+			.includePlaintextKey(false)
+			.build();
+		// The two requests are sent at the same time; neither blocks the calling thread until join().
+		CompletableFuture<String> ciphertext = asyncKms
+			.encrypt(EncryptRequest.builder().encryptDataDetails(encryptDataDetails).build())
+			.thenApply(response -> response.getEncryptedData().getCiphertext());
+		CompletableFuture<String> wrappedKey = asyncKms
+			.generateDataEncryptionKey(GenerateDataEncryptionKeyRequest.builder().generateKeyDetails(generateKeyDetails).build())
+			.thenApply(response -> response.getGeneratedKey().getCiphertext());
+		System.out.println(ciphertext.thenCombine(wrappedKey, (c, k) -> "Ciphertext:\n" + c + "\nWrapped DEK:\n" + k).join() + "\n");
+		asyncKms.close();
 	}
 
 	// This map is used in the generateKeyDetails. It is not required, but it provides context for
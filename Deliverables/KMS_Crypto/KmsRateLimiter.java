@@ -0,0 +1,181 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// KmsRateLimiter keeps a process just under the vault's request quota instead of running into 429 responses and
+// then backing off for a long time. There is one bucket per vault and operation type, and each bucket combines:
+//     * a token bucket, which limits the request rate. The rate starts at the configured maximum, is halved every
+//       time the vault answers 429, and grows back linearly while requests succeed.
+//     * an AIMD (additive increase, multiplicative decrease) concurrency limit, which bounds the number of requests
+//       in flight. It grows by one per "round trip" while latency stays close to the best latency seen so far, and
+//       shrinks when the vault throttles us or latency spikes (a sign the vault is close to its limit).
+// Callers take a Permit before sending a request and release it with the outcome. RateLimitedKmsCryptoClient and
+// RateLimitedKmsManagementClient do this for every call.
+public class KmsRateLimiter {
+
+	// OperationType groups operations that share a quota on the vault.
+	public enum OperationType { CRYPTO, MANAGEMENT_READ, MANAGEMENT_WRITE }
+
+	// DEFAULT_MAX_RATES are the default maximum request rates (requests per second) for each operation type. Set
+	// them to your vault's service limits with the constructor.
+	private static final Map<OperationType, Double> DEFAULT_MAX_RATES = new EnumMap<OperationType, Double>(OperationType.class);
+	static {
+		DEFAULT_MAX_RATES.put(OperationType.CRYPTO, 100.0);
+		DEFAULT_MAX_RATES.put(OperationType.MANAGEMENT_READ, 20.0);
+		DEFAULT_MAX_RATES.put(OperationType.MANAGEMENT_WRITE, 5.0);
+	}
+	// DEFAULT_MAX_CONCURRENCY is the upper bound of the concurrency limit of each bucket.
+	public static final int DEFAULT_MAX_CONCURRENCY = 64;
+	// LATENCY_SPIKE_RATIO: a request slower than this multiple of the baseline latency counts as a latency spike.
+	private static final double LATENCY_SPIKE_RATIO = 2.0;
+
+	private final Map<OperationType, Double> maxRates;
+	private final int maxConcurrency;
+	private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+	public KmsRateLimiter() {
+		this(DEFAULT_MAX_RATES, DEFAULT_MAX_CONCURRENCY);
+	}
+
+	public KmsRateLimiter(Map<OperationType, Double> maxRates, int maxConcurrency) {
+		if (maxConcurrency <= 0) {
+			throw new IllegalArgumentException("KmsRateLimiter needs a positive maximum concurrency.");
+		}
+		this.maxRates = new EnumMap<OperationType, Double>(DEFAULT_MAX_RATES);
+		this.maxRates.putAll(maxRates);
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	// Blocks until a request of the given type may be sent to the vault.
+	public Permit acquire(String vaultId, OperationType type) throws InterruptedException {
+		String name = vaultId + "/" + type;
+		Bucket bucket = buckets.get(name);
+		if (bucket == null) {
+			buckets.putIfAbsent(name, new Bucket(maxRates.get(type), maxConcurrency));
+			bucket = buckets.get(name);
+		}
+		bucket.acquire();
+		return new Permit(bucket);
+	}
+
+	// Current rate and concurrency limit of every bucket, e.g. to log how close to the quota the process runs.
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("KmsRateLimiter[");
+		for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+			sb.append("\n    ").append(entry.getKey()).append(": ").append(entry.getValue());
+		}
+		return sb.append("]").toString();
+	}
+
+	// Permit is one request admitted by the limiter. It must be released exactly once with the request's outcome.
+	public static class Permit {
+		private final Bucket bucket;
+		private final long startNanos = System.nanoTime();
+		private boolean released;
+
+		private Permit(Bucket bucket) {
+			this.bucket = bucket;
+		}
+
+		// error is null if the request succeeded
+		public void release(Throwable error) {
+			if (released) {
+				return;
+			}
+			released = true;
+			long latencyNanos = System.nanoTime() - startNanos;
+			if (KeyStateAwaiter.isThrottled(error)) {
+				bucket.onThrottled();
+			} else {
+				bucket.onCompleted(latencyNanos);
+			}
+		}
+	}
+
+	private static class Bucket {
+		private final double maxRate;
+		private final double minRate;
+		private final int maxLimit;
+
+		// token bucket
+		private double rate;
+		private double tokens;
+		private long lastRefillNanos = System.nanoTime();
+		// AIMD concurrency limit
+		private double limit;
+		private int inFlight;
+		// baselineNanos tracks the best recent latency; it drifts up slowly so it can follow a slower network
+		private double baselineNanos = -1;
+
+		private long throttled;
+		private long spikes;
+
+		private Bucket(double maxRate, int maxLimit) {
+			this.maxRate = maxRate;
+			this.minRate = Math.min(1.0, maxRate);
+			this.maxLimit = maxLimit;
+			this.rate = maxRate;
+			this.tokens = Math.max(1.0, maxRate);
+			this.limit = Math.max(1.0, maxLimit / 4.0);
+		}
+
+		private synchronized void acquire() throws InterruptedException {
+			while (true) {
+				refill();
+				if (inFlight < (int) limit && tokens >= 1.0) {
+					tokens -= 1.0;
+					inFlight++;
+					return;
+				}
+				if (inFlight >= (int) limit) {
+					wait();
+				} else {
+					long waitNanos = (long) ((1.0 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+					TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1L));
+				}
+			}
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			double capacity = Math.max(1.0, rate);
+			tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * rate / TimeUnit.SECONDS.toNanos(1));
+			lastRefillNanos = now;
+		}
+
+		private synchronized void onCompleted(long latencyNanos) {
+			inFlight--;
+			if (baselineNanos < 0 || latencyNanos < baselineNanos) {
+				baselineNanos = latencyNanos;
+			} else {
+				baselineNanos += (latencyNanos - baselineNanos) * 0.01;
+			}
+			if (latencyNanos > baselineNanos * LATENCY_SPIKE_RATIO) {
+				spikes++;
+				limit = Math.max(1.0, limit * 0.9);
+			} else {
+				// additive increase: roughly +1 for every "limit" requests that complete healthily
+				limit = Math.min(maxLimit, limit + 1.0 / limit);
+				rate = Math.min(maxRate, rate + maxRate / 100.0);
+			}
+			notifyAll();
+		}
+
+		private synchronized void onThrottled() {
+			inFlight--;
+			throttled++;
+			rate = Math.max(minRate, rate / 2.0);
+			limit = Math.max(1.0, limit / 2.0);
+			tokens = 0.0;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format("rate=%.1f/s (max %.1f/s), concurrency limit=%d, in flight=%d, throttled=%d, latency spikes=%d",
+				rate, maxRate, (int) limit, inFlight, throttled, spikes);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+// ParallelFileCrypto encrypts and decrypts whole files on all cores instead of one. It writes the same format as
+// StreamingCrypto (see StreamHeader), whose segments are independent of each other, so the file can be cut into
+// ranges of segments that are encrypted in parallel on a ForkJoinPool:
+//     * the input is memory-mapped with FileChannel.map, one range at a time, so no thread copies it through a stream
+//     * the output file is created at its final size up front, and every range is written at its own offset with
+//       positional FileChannel.write, so the ranges can finish in any order
+// The file's DEK comes from generateDataEncryptionKey, like EnvelopeCrypto, and is used for this one file only.
+// Files written here can be read with StreamingCrypto or SeekableDecryptingChannel, and the other way around.
+public class ParallelFileCrypto {
+
+	// BYTES_PER_TASK is roughly how much plaintext one fork-join task encrypts; larger ranges are split in two.
+	private static final int BYTES_PER_TASK = 4 * 1024 * 1024;
+
+	private final KmsCryptoClient kmsCryptoClient;
+	private final String keyId;
+	private final int segmentSize;
+	private final UnwrappedKeyCache unwrappedKeyCache;
+	private final ForkJoinPool pool;
+
+	// Uses the common ForkJoinPool, which has one thread per core.
+	public ParallelFileCrypto(KmsCryptoClient kmsCryptoClient, String keyId) {
+		this(kmsCryptoClient, keyId, StreamingCrypto.DEFAULT_SEGMENT_SIZE, EnvelopeCrypto.newUnwrappedKeyCache(kmsCryptoClient), ForkJoinPool.commonPool());
+	}
+
+	public ParallelFileCrypto(KmsCryptoClient kmsCryptoClient, String keyId, int segmentSize, UnwrappedKeyCache unwrappedKeyCache, ForkJoinPool pool) {
+		if (segmentSize <= 0 || segmentSize > StreamHeader.MAX_SEGMENT_SIZE) {
+			throw new IllegalArgumentException("ParallelFileCrypto needs a positive segment size of at most " + StreamHeader.MAX_SEGMENT_SIZE + " bytes.");
+		}
+		this.kmsCryptoClient = kmsCryptoClient;
+		this.keyId = keyId;
+		this.segmentSize = segmentSize;
+		this.unwrappedKeyCache = unwrappedKeyCache;
+		this.pool = pool;
+	}
+
+	// Encrypts the input file into the output file under a new DEK. Returns the size of the output file.
+	public long encryptFile(Path input, Path output) throws Exception {
+		DataKey dataKey = EnvelopeCrypto.generateDataKey(kmsCryptoClient, keyId);
+		try {
+			return encryptFile(dataKey, input, output);
+		} finally {
+			dataKey.destroy();
+		}
+	}
+
+	// Encrypts the input file under a DEK the caller already has, e.g. from a DataKeyCache lease.
+	public long encryptFile(DataKey dataKey, Path input, Path output) throws Exception {
+		StreamHeader header = StreamHeader.create(dataKey, null, segmentSize);
+		SecretKey key = dataKey.toSecretKey();
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+				RandomAccessFile outFile = new RandomAccessFile(output.toFile(), "rw")) {
+			long plaintextLength = in.size();
+			long ciphertextLength = header.ciphertextLength(plaintextLength);
+			outFile.setLength(ciphertextLength);
+			FileChannel out = outFile.getChannel();
+			writeFully(out, ByteBuffer.wrap(header.getEncoded()), 0);
+			long segmentCount = header.segmentCount(plaintextLength);
+			run(new SegmentTask(true, header, key, in, out, plaintextLength, 0, segmentCount, segmentCount));
+			out.force(false);
+			return ciphertextLength;
+		}
+	}
+
+	// Decrypts a file written by encryptFile (or by StreamingCrypto) into the output file. Returns the plaintext size.
+	// If any segment fails authentication, the output file is incomplete and must not be used.
+	public long decryptFile(Path input, Path output) throws Exception {
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+				RandomAccessFile outFile = new RandomAccessFile(output.toFile(), "rw")) {
+			StreamHeader header = SeekableDecryptingChannel.readHeader(in);
+			long plaintextLength = header.plaintextLength(in.size());
+			if (plaintextLength < 0) {
+				throw new GeneralSecurityException("The ciphertext has an invalid length: it was truncated or is not a stream written by StreamingCrypto.");
+			}
+			SecretKey key = unwrappedKeyCache.get(header.getKeyId(), header.getKeyVersionId(), header.getWrappedKey());
+			outFile.setLength(plaintextLength);
+			FileChannel out = outFile.getChannel();
+			long segmentCount = header.segmentCount(plaintextLength);
+			run(new SegmentTask(false, header, key, in, out, plaintextLength, 0, segmentCount, segmentCount));
+			out.force(false);
+			return plaintextLength;
+		}
+	}
+
+	// Runs the task on the pool, rethrowing the checked exception a segment failed with.
+	private void run(SegmentTask task) throws IOException, GeneralSecurityException {
+		try {
+			pool.invoke(task);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} catch (SegmentException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	// SegmentTask encrypts (or decrypts) the segments [from, to), splitting the range while it is larger than
+	// BYTES_PER_TASK. Each task maps its own part of the input and uses its own Cipher, as Cipher is not thread-safe.
+	// The segment size is the one in the header, which for decryption is whatever the file was written with.
+	private static class SegmentTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final boolean encrypt;
+		private final StreamHeader header;
+		private final int segmentSize;
+		private final SecretKey key;
+		private final FileChannel in;
+		private final FileChannel out;
+		private final long plaintextLength;
+		private final long from;
+		private final long to;
+		private final long segmentCount;
+
+		private SegmentTask(boolean encrypt, StreamHeader header, SecretKey key, FileChannel in, FileChannel out,
+				long plaintextLength, long from, long to, long segmentCount) {
+			this.encrypt = encrypt;
+			this.header = header;
+			this.segmentSize = header.getSegmentSize();
+			this.key = key;
+			this.in = in;
+			this.out = out;
+			this.plaintextLength = plaintextLength;
+			this.from = from;
+			this.to = to;
+			this.segmentCount = segmentCount;
+		}
+
+		@Override
+		protected void compute() {
+			long segmentsPerTask = Math.max(1, BYTES_PER_TASK / segmentSize);
+			if (to - from > segmentsPerTask) {
+				long middle = from + (to - from) / 2;
+				invokeAll(new SegmentTask(encrypt, header, key, in, out, plaintextLength, from, middle, segmentCount),
+					new SegmentTask(encrypt, header, key, in, out, plaintextLength, middle, to, segmentCount));
+				return;
+			}
+			try {
+				if (encrypt) {
+					encryptRange();
+				} else {
+					decryptRange();
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (GeneralSecurityException e) {
+				throw new SegmentException(e);
+			}
+		}
+
+		private void encryptRange() throws IOException, GeneralSecurityException {
+			long start = from * segmentSize;
+			long end = Math.min(to * segmentSize, plaintextLength);
+			MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			Cipher cipher = Cipher.getInstance(EnvelopeCrypto.CIPHER_ALGORITHM);
+			ByteBuffer ciphertext = ByteBuffer.allocate(header.getCiphertextSegmentSize());
+			for (long segment = from; segment < to; segment++) {
+				int offset = (int) ((segment - from) * segmentSize);
+				int length = (int) Math.min(segmentSize, end - start - offset);
+				ByteBuffer plaintext = mapped.duplicate();
+				plaintext.position(offset).limit(offset + length);
+				ciphertext.clear();
+				StreamingCrypto.initSegmentCipher(cipher, Cipher.ENCRYPT_MODE, key, header, segment, segment == segmentCount - 1);
+				cipher.doFinal(plaintext, ciphertext);
+				ciphertext.flip();
+				writeFully(out, ciphertext, header.getLength() + segment * header.getCiphertextSegmentSize());
+			}
+		}
+
+		private void decryptRange() throws IOException, GeneralSecurityException {
+			long ciphertextSegmentSize = header.getCiphertextSegmentSize();
+			long start = header.getLength() + from * ciphertextSegmentSize;
+			long end = Math.min(header.getLength() + to * ciphertextSegmentSize, in.size());
+			MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			Cipher cipher = Cipher.getInstance(EnvelopeCrypto.CIPHER_ALGORITHM);
+			ByteBuffer plaintext = ByteBuffer.allocate(segmentSize);
+			for (long segment = from; segment < to; segment++) {
+				int offset = (int) ((segment - from) * ciphertextSegmentSize);
+				int length = (int) Math.min(ciphertextSegmentSize, end - start - offset);
+				if (length < EnvelopeCrypto.TAG_LENGTH) {
+					throw new GeneralSecurityException("Segment " + segment + " is truncated.");
+				}
+				ByteBuffer ciphertext = mapped.duplicate();
+				ciphertext.position(offset).limit(offset + length);
+				plaintext.clear();
+				StreamingCrypto.initSegmentCipher(cipher, Cipher.DECRYPT_MODE, key, header, segment, segment == segmentCount - 1);
+				cipher.doFinal(ciphertext, plaintext);
+				plaintext.flip();
+				writeFully(out, plaintext, segment * segmentSize);
+			}
+		}
+	}
+
+	// SegmentException carries a GeneralSecurityException out of a fork-join task.
+	private static class SegmentException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private SegmentException(GeneralSecurityException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized GeneralSecurityException getCause() {
+			return (GeneralSecurityException) super.getCause();
+		}
+	}
+}
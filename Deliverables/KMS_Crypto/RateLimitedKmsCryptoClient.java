@@ -0,0 +1,67 @@
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+import com.oracle.bmc.keymanagement.requests.DecryptRequest;
+import com.oracle.bmc.keymanagement.requests.EncryptRequest;
+import com.oracle.bmc.keymanagement.requests.GenerateDataEncryptionKeyRequest;
+import com.oracle.bmc.keymanagement.responses.DecryptResponse;
+import com.oracle.bmc.keymanagement.responses.EncryptResponse;
+import com.oracle.bmc.keymanagement.responses.GenerateDataEncryptionKeyResponse;
+
+import java.util.function.Supplier;
+
+// RateLimitedKmsCryptoClient is a KmsCryptoClient whose calls all go through a KmsRateLimiter first. It can be used
+// anywhere a KmsCryptoClient is expected (EnvelopeCrypto, BatchCrypto, AsyncKms, ...), so every cryptographic call
+// made by the process shares the same quota for the vault.
+public class RateLimitedKmsCryptoClient extends KmsCryptoClient {
+
+	private final KmsRateLimiter limiter;
+	private final String vaultId;
+
+	public RateLimitedKmsCryptoClient(BasicAuthenticationDetailsProvider provider, KmsRateLimiter limiter, String vaultId) {
+		super(provider);
+		this.limiter = limiter;
+		this.vaultId = vaultId;
+	}
+
+	@Override
+	public EncryptResponse encrypt(EncryptRequest request) {
+		return limited(() -> super.encrypt(request));
+	}
+
+	@Override
+	public DecryptResponse decrypt(DecryptRequest request) {
+		return limited(() -> super.decrypt(request));
+	}
+
+	@Override
+	public GenerateDataEncryptionKeyResponse generateDataEncryptionKey(GenerateDataEncryptionKeyRequest request) {
+		return limited(() -> super.generateDataEncryptionKey(request));
+	}
+
+	public KmsRateLimiter getLimiter() { return limiter; }
+
+	// Makes the call under a permit. The permit is released however the call ends, with the failure if there is one.
+	private <T> T limited(Supplier<T> call) {
+		KmsRateLimiter.Permit permit = acquire();
+		Throwable error = null;
+		try {
+			return call.get();
+		} catch (Throwable e) {
+			error = e;
+			throw e;
+		} finally {
+			permit.release(error);
+		}
+	}
+
+	// The SDK methods cannot throw checked exceptions, so an interrupt while waiting for a permit is rethrown
+	// unchecked with the interrupt flag restored.
+	private KmsRateLimiter.Permit acquire() {
+		try {
+			return limiter.acquire(vaultId, KmsRateLimiter.OperationType.CRYPTO);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the KMS rate limiter.", e);
+		}
+	}
+}
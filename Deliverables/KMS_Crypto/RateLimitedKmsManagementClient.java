@@ -0,0 +1,115 @@
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.keymanagement.KmsManagementClient;
+import com.oracle.bmc.keymanagement.requests.CancelKeyDeletionRequest;
+import com.oracle.bmc.keymanagement.requests.CreateKeyRequest;
+import com.oracle.bmc.keymanagement.requests.CreateKeyVersionRequest;
+import com.oracle.bmc.keymanagement.requests.DisableKeyRequest;
+import com.oracle.bmc.keymanagement.requests.EnableKeyRequest;
+import com.oracle.bmc.keymanagement.requests.GetKeyRequest;
+import com.oracle.bmc.keymanagement.requests.ListKeyVersionsRequest;
+import com.oracle.bmc.keymanagement.requests.ListKeysRequest;
+import com.oracle.bmc.keymanagement.requests.ScheduleKeyDeletionRequest;
+import com.oracle.bmc.keymanagement.requests.UpdateKeyRequest;
+import com.oracle.bmc.keymanagement.responses.CancelKeyDeletionResponse;
+import com.oracle.bmc.keymanagement.responses.CreateKeyResponse;
+import com.oracle.bmc.keymanagement.responses.CreateKeyVersionResponse;
+import com.oracle.bmc.keymanagement.responses.DisableKeyResponse;
+import com.oracle.bmc.keymanagement.responses.EnableKeyResponse;
+import com.oracle.bmc.keymanagement.responses.GetKeyResponse;
+import com.oracle.bmc.keymanagement.responses.ListKeyVersionsResponse;
+import com.oracle.bmc.keymanagement.responses.ListKeysResponse;
+import com.oracle.bmc.keymanagement.responses.ScheduleKeyDeletionResponse;
+import com.oracle.bmc.keymanagement.responses.UpdateKeyResponse;
+
+import java.util.function.Supplier;
+
+// RateLimitedKmsManagementClient is a KmsManagementClient whose calls all go through a KmsRateLimiter first. Reads
+// (get, list) and writes (create, update, enable, disable, deletion, rotation) are limited separately, as the vault
+// has separate quotas for them.
+public class RateLimitedKmsManagementClient extends KmsManagementClient {
+
+	private final KmsRateLimiter limiter;
+	private final String vaultId;
+
+	public RateLimitedKmsManagementClient(BasicAuthenticationDetailsProvider provider, KmsRateLimiter limiter, String vaultId) {
+		super(provider);
+		this.limiter = limiter;
+		this.vaultId = vaultId;
+	}
+
+	@Override
+	public CreateKeyResponse createKey(CreateKeyRequest request) {
+		return limited(KmsRateLimiter.OperationType.MANAGEMENT_WRITE, () -> super.createKey(request));
+	}
+
+	@Override
+	public GetKeyResponse getKey(GetKeyRequest request) {
+		return limited(KmsRateLimiter.OperationType.MANAGEMENT_READ, () -> super.getKey(request));
+	}
+
+	@Override
+	public UpdateKeyResponse updateKey(UpdateKeyRequest request) {
+		return limited(KmsRateLimiter.OperationType.MANAGEMENT_WRITE, () -> super.updateKey(request));
+	}
+
+	@Override
+	public ListKeysResponse listKeys(ListKeysRequest request) {
+		return limited(KmsRateLimiter.OperationType.MANAGEMENT_READ, () -> super.listKeys(request));
+	}
+
+	@Override
+	public EnableKeyResponse enableKey(EnableKeyRequest request) {
+		return limited(KmsRateLimiter.OperationType.MANAGEMENT_WRITE, () -> super.enableKey(request));
+	}
+
+	@Override
+	public DisableKeyResponse disableKey(DisableKeyRequest request) {
+		return limited(KmsRateLimiter.OperationType.MANAGEMENT_WRITE, () -> super.disableKey(request));
+	}
+
+	@Override
+	public ScheduleKeyDeletionResponse scheduleKeyDeletion(ScheduleKeyDeletionRequest request) {
+		return limited(KmsRateLimiter.OperationType.MANAGEMENT_WRITE, () -> super.scheduleKeyDeletion(request));
+	}
+
+	@Override
+	public CancelKeyDeletionResponse cancelKeyDeletion(CancelKeyDeletionRequest request) {
+		return limited(KmsRateLimiter.OperationType.MANAGEMENT_WRITE, () -> super.cancelKeyDeletion(request));
+	}
+
+	@Override
+	public CreateKeyVersionResponse createKeyVersion(CreateKeyVersionRequest request) {
+		return limited(KmsRateLimiter.OperationType.MANAGEMENT_WRITE, () -> super.createKeyVersion(request));
+	}
+
+	@Override
+	public ListKeyVersionsResponse listKeyVersions(ListKeyVersionsRequest request) {
+		return limited(KmsRateLimiter.OperationType.MANAGEMENT_READ, () -> super.listKeyVersions(request));
+	}
+
+	public KmsRateLimiter getLimiter() { return limiter; }
+
+	// Makes the call under a permit of the given type. The permit is released however the call ends, with the
+	// failure if there is one.
+	private <T> T limited(KmsRateLimiter.OperationType type, Supplier<T> call) {
+		KmsRateLimiter.Permit permit = acquire(type);
+		Throwable error = null;
+		try {
+			return call.get();
+		} catch (Throwable e) {
+			error = e;
+			throw e;
+		} finally {
+			permit.release(error);
+		}
+	}
+
+	private KmsRateLimiter.Permit acquire(KmsRateLimiter.OperationType type) {
+		try {
+			return limiter.acquire(vaultId, type);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the KMS rate limiter.", e);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.SecretKeySpec;
+
+// SecureBufferPool hands out direct (off-heap) ByteBuffers for plaintext payloads and key material, so that secrets
+// are not left behind in heap byte[]s and Strings (where they survive until the next GC and show up in heap dumps),
+// and so that the hot path reuses buffers instead of allocating new ones:
+//     * buffers come in power-of-two size classes from MIN_CLASS_SIZE to maxClassSize; a request is served from the
+//       smallest class that fits it, and larger requests get a one-off buffer that is not pooled
+//     * every buffer is zeroed when its Lease is closed, before it can be handed out again
+//     * at most maxPooledBytes are kept idle across all classes; buffers released beyond that are dropped (zeroed)
+// The JCE still needs the key as a byte[] while a Cipher is being initialized (see Lease.toSecretKey), so keys are
+// only off-heap while they are not in use.
+public class SecureBufferPool {
+
+	// MIN_CLASS_SIZE fits an AES-256 key, the smallest thing borrowed from the pool.
+	public static final int MIN_CLASS_SIZE = 32;
+	// DEFAULT_MAX_CLASS_SIZE is the largest buffer that is pooled by default (1 MB).
+	public static final int DEFAULT_MAX_CLASS_SIZE = 1024 * 1024;
+	// DEFAULT_MAX_POOLED_BYTES bounds the idle off-heap memory kept by the pool (16 MB).
+	public static final long DEFAULT_MAX_POOLED_BYTES = 16L * 1024 * 1024;
+
+	private static final SecureBufferPool DEFAULT = new SecureBufferPool();
+
+	private final int maxClassSize;
+	private final long maxPooledBytes;
+	// idle.get(i) holds the idle buffers of capacity MIN_CLASS_SIZE << i
+	private final List<ArrayDeque<ByteBuffer>> idle;
+	private final AtomicLong pooledBytes = new AtomicLong();
+
+	private final AtomicLong acquires = new AtomicLong();
+	private final AtomicLong reuses = new AtomicLong();
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong oversized = new AtomicLong();
+
+	public SecureBufferPool() {
+		this(DEFAULT_MAX_CLASS_SIZE, DEFAULT_MAX_POOLED_BYTES);
+	}
+
+	public SecureBufferPool(int maxClassSize, long maxPooledBytes) {
+		if (maxClassSize < MIN_CLASS_SIZE || Integer.bitCount(maxClassSize) != 1) {
+			throw new IllegalArgumentException("The largest size class must be a power of two of at least " + MIN_CLASS_SIZE + " bytes.");
+		}
+		if (maxPooledBytes < 0) {
+			throw new IllegalArgumentException("maxPooledBytes must not be negative.");
+		}
+		this.maxClassSize = maxClassSize;
+		this.maxPooledBytes = maxPooledBytes;
+		this.idle = new ArrayList<ArrayDeque<ByteBuffer>>();
+		for (int i = 0; i <= classIndex(maxClassSize); i++) {
+			idle.add(new ArrayDeque<ByteBuffer>());
+		}
+	}
+
+	// The pool shared by the classes in this folder.
+	public static SecureBufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	// Borrows a zeroed buffer with position 0 and limit size. The lease must be closed when the buffer is no longer
+	// needed; the buffer must not be used after that.
+	public Lease acquire(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative buffer size " + size + ".");
+		}
+		acquires.incrementAndGet();
+		if (size > maxClassSize) {
+			oversized.incrementAndGet();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+			return new Lease(this, buffer, -1, size);
+		}
+		int index = classIndex(size);
+		ArrayDeque<ByteBuffer> deque = idle.get(index);
+		ByteBuffer buffer;
+		synchronized (deque) {
+			buffer = deque.pollFirst();
+		}
+		if (buffer != null) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			reuses.incrementAndGet();
+		} else {
+			buffer = ByteBuffer.allocateDirect(MIN_CLASS_SIZE << index);
+			allocations.incrementAndGet();
+		}
+		return new Lease(this, buffer, index, size);
+	}
+
+	// Borrows a buffer holding a copy of the given bytes, and zeroes the array.
+	public Lease acquireCopy(byte[] data) {
+		Lease lease = acquire(data.length);
+		lease.getBuffer().put(data).flip();
+		Arrays.fill(data, (byte) 0);
+		return lease;
+	}
+
+	private void release(ByteBuffer buffer, int index) {
+		zero(buffer);
+		if (index < 0) {
+			return;
+		}
+		if (pooledBytes.addAndGet(buffer.capacity()) > maxPooledBytes) {
+			// over budget: let the (zeroed) buffer be collected instead
+			pooledBytes.addAndGet(-buffer.capacity());
+			return;
+		}
+		ArrayDeque<ByteBuffer> deque = idle.get(index);
+		synchronized (deque) {
+			deque.offerFirst(buffer);
+		}
+	}
+
+	// the index of the smallest size class holding size bytes
+	private static int classIndex(int size) {
+		if (size <= MIN_CLASS_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+	}
+
+	// Overwrites the whole buffer, whatever its position and limit. Capacities are multiples of 8 except for
+	// one-off buffers, whose tail is cleared byte by byte.
+	static void zero(ByteBuffer buffer) {
+		buffer.clear();
+		int capacity = buffer.capacity();
+		int i = 0;
+		for (; i + 8 <= capacity; i += 8) {
+			buffer.putLong(i, 0L);
+		}
+		for (; i < capacity; i++) {
+			buffer.put(i, (byte) 0);
+		}
+	}
+
+	public long getPooledBytes() { return pooledBytes.get(); }
+
+	// Counters: every acquire is either a reuse of a pooled buffer, a new allocation, or an oversized one-off buffer.
+	public long getAcquires() { return acquires.get(); }
+	public long getReuses() { return reuses.get(); }
+	public long getAllocations() { return allocations.get(); }
+	public long getOversized() { return oversized.get(); }
+
+	@Override
+	public String toString() {
+		return "SecureBufferPool[pooledBytes=" + pooledBytes.get() + ", acquires=" + acquires.get() + ", reuses=" + reuses.get()
+			+ ", allocations=" + allocations.get() + ", oversized=" + oversized.get() + "]";
+	}
+
+	// Lease is one borrowed buffer. close() zeroes it and gives it back to the pool; closing twice has no effect.
+	public static class Lease implements AutoCloseable {
+		private final SecureBufferPool pool;
+		private final int index;
+		private ByteBuffer buffer;
+
+		private Lease(SecureBufferPool pool, ByteBuffer buffer, int index, int size) {
+			this.pool = pool;
+			this.index = index;
+			this.buffer = buffer;
+			buffer.clear().limit(size);
+		}
+
+		// The borrowed buffer. Its capacity may be larger than the size asked for.
+		public synchronized ByteBuffer getBuffer() {
+			if (buffer == null) {
+				throw new IllegalStateException("The buffer has already been returned to the pool.");
+			}
+			return buffer;
+		}
+
+		// An AES key made of the bytes between position and limit of the buffer, which are left untouched. The
+		// SecretKeySpec keeps its own heap copy of the key, which cannot be wiped, so it should not be kept longer
+		// than the operation that needs it.
+		public SecretKeySpec toSecretKey() {
+			ByteBuffer key = getBuffer().duplicate();
+			byte[] bytes = new byte[key.remaining()];
+			key.get(bytes);
+			try {
+				return new SecretKeySpec(bytes, "AES");
+			} finally {
+				Arrays.fill(bytes, (byte) 0);
+			}
+		}
+
+		@Override
+		public void close() {
+			ByteBuffer released;
+			synchronized (this) {
+				released = buffer;
+				buffer = null;
+			}
+			if (released != null) {
+				pool.release(released, index);
+			}
+		}
+	}
+}
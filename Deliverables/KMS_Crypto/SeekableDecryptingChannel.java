@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+// SeekableDecryptingChannel gives random access to the plaintext of a stream written by StreamingCrypto, e.g. to
+// read one record out of a large encrypted export. Reading at a position only fetches, authenticates and decrypts the
+// segments that cover the bytes read, instead of decrypting the stream from the start. The ciphertext must be
+// available as a SeekableByteChannel, such as a FileChannel. The channel is read-only.
+// Each segment read is authenticated on its own; a stream cut short at a segment boundary is only detected when its
+// (new) last segment is read.
+public class SeekableDecryptingChannel implements SeekableByteChannel {
+
+	private final SeekableByteChannel ciphertext;
+	private final StreamHeader header;
+	private final SecretKey key;
+	private final Cipher cipher;
+	private final long plaintextSize;
+	private final long segmentCount;
+
+	// the most recently decrypted segment, so that sequential small reads decrypt each segment once
+	private final byte[] segmentCiphertext;
+	private final byte[] segmentPlaintext;
+	private long cachedSegment = -1;
+	private int cachedLength;
+
+	private long position;
+	private boolean open = true;
+
+	// Use StreamingCrypto.newSeekableDecryptingChannel, which reads the header and unwraps the DEK.
+	SeekableDecryptingChannel(SeekableByteChannel ciphertext, StreamHeader header, SecretKey key) throws IOException, GeneralSecurityException {
+		this.ciphertext = ciphertext;
+		this.header = header;
+		this.key = key;
+		this.cipher = Cipher.getInstance(EnvelopeCrypto.CIPHER_ALGORITHM);
+		this.plaintextSize = header.plaintextLength(ciphertext.size());
+		if (plaintextSize < 0) {
+			throw new GeneralSecurityException("The ciphertext has an invalid length: it was truncated or is not a stream written by StreamingCrypto.");
+		}
+		this.segmentCount = header.segmentCount(plaintextSize);
+		this.segmentCiphertext = new byte[header.getCiphertextSegmentSize()];
+		this.segmentPlaintext = new byte[header.getSegmentSize()];
+	}
+
+	// Reads the header at the start of the channel.
+	static StreamHeader readHeader(SeekableByteChannel ciphertext) throws IOException, GeneralSecurityException {
+		ciphertext.position(0);
+		return StreamHeader.read(Channels.newInputStream(ciphertext));
+	}
+
+	public StreamHeader getHeader() { return header; }
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		if (position >= plaintextSize) {
+			return -1;
+		}
+		int total = 0;
+		while (dst.hasRemaining() && position < plaintextSize) {
+			long segment = position / header.getSegmentSize();
+			int offset = (int) (position % header.getSegmentSize());
+			loadSegment(segment);
+			int n = Math.min(dst.remaining(), cachedLength - offset);
+			dst.put(segmentPlaintext, offset, n);
+			position += n;
+			total += n;
+		}
+		return total;
+	}
+
+	private void loadSegment(long segment) throws IOException {
+		if (segment == cachedSegment) {
+			return;
+		}
+		boolean last = segment == segmentCount - 1;
+		long start = header.getLength() + segment * header.getCiphertextSegmentSize();
+		int length = (int) Math.min(header.getCiphertextSegmentSize(), ciphertext.size() - start);
+		ByteBuffer buffer = ByteBuffer.wrap(segmentCiphertext, 0, length);
+		ciphertext.position(start);
+		while (buffer.hasRemaining()) {
+			if (ciphertext.read(buffer) == -1) {
+				throw new IOException("The ciphertext ended in the middle of segment " + segment + ".");
+			}
+		}
+		// invalidate first, so a segment that fails authentication is never served from the cache
+		cachedSegment = -1;
+		try {
+			cachedLength = StreamingCrypto.openSegment(cipher, key, header, segment, last, segmentCiphertext, 0, length, segmentPlaintext, 0);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Segment " + segment + " failed authentication: the ciphertext was modified.", e);
+		}
+		cachedSegment = segment;
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	// Positions past the end are allowed; reading there returns -1.
+	@Override
+	public synchronized SeekableDecryptingChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position " + newPosition + ".");
+		}
+		position = newPosition;
+		return this;
+	}
+
+	// the size of the plaintext
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return plaintextSize;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	// Also closes the ciphertext channel.
+	@Override
+	public synchronized void close() throws IOException {
+		open = false;
+		ciphertext.close();
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+}
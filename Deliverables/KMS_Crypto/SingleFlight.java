@@ -0,0 +1,70 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// SingleFlight collapses identical calls that are running at the same time into one. The first thread to execute a
+// key makes the call; threads that execute the same key while it is running wait for it and get the same result, or
+// the same exception. Once the call has finished the key is forgotten, so SingleFlight is not a cache: put it in
+// front of a cache's miss path (see UnwrappedKeyCache) so that a burst of misses on the same entry, e.g. when a popular
+// DEK has just been evicted, makes one vault call instead of one per thread and does not get the vault to throttle.
+// The result is shared between the waiting threads, so it should be immutable.
+public class SingleFlight<K, V> {
+
+	// Call is the remote call made by the first thread.
+	public interface Call<V> {
+		V call() throws Exception;
+	}
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<K, CompletableFuture<V>>();
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+
+	// Makes the call, or waits for the identical call already in flight. A waiter that is interrupted stops waiting
+	// and throws InterruptedException; the call itself goes on for the others.
+	public V execute(K key, Call<V> call) throws Exception {
+		CompletableFuture<V> flight = new CompletableFuture<V>();
+		CompletableFuture<V> existing = flights.putIfAbsent(key, flight);
+		if (existing != null) {
+			shared.incrementAndGet();
+			try {
+				return existing.get();
+			} catch (ExecutionException e) {
+				throw rethrow(e.getCause());
+			}
+		}
+		calls.incrementAndGet();
+		try {
+			V value = call.call();
+			flight.complete(value);
+			return value;
+		} catch (Exception | Error e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			flights.remove(key, flight);
+		}
+	}
+
+	// the number of calls currently in flight
+	public int size() {
+		return flights.size();
+	}
+
+	// Counters: calls is the number of calls made, shared the number of executions that waited for one instead.
+	public long getCalls() { return calls.get(); }
+	public long getShared() { return shared.get(); }
+
+	@Override
+	public String toString() {
+		return "SingleFlight[calls=" + calls.get() + ", shared=" + shared.get() + ", inFlight=" + flights.size() + "]";
+	}
+
+	// The waiters rethrow the exception of the call itself, so that callers can still tell e.g. a BmcException apart.
+	private static Exception rethrow(Throwable cause) {
+		if (cause instanceof Exception) {
+			return (Exception) cause;
+		}
+		throw (Error) cause;
+	}
+}
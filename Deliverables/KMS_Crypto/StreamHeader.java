@@ -0,0 +1,157 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+// StreamHeader is the header of the chunked format written by StreamingCrypto. A stream is this header followed by
+// the plaintext cut into segments of segmentSize bytes, each encrypted separately with AES-GCM (the last segment may
+// be shorter, and an empty plaintext is one empty segment). The header layout is:
+//     [4 byte magic "KMSS"][1 byte format version][4 byte segment size]
+//     [2 byte length][vault key id, UTF-8][2 byte length][key version id, UTF-8, empty if unknown]
+//     [2 byte length][wrapped DEK][7 byte nonce prefix]
+// The nonce of segment i is noncePrefix || i (4 bytes, big-endian) || 1 if it is the last segment, else 0. The whole
+// header is the associated data of every segment, so neither the header nor the order of the segments can be changed,
+// and a stream cut at a segment boundary fails because its new last segment was not encrypted as the last one.
+// Since every segment can be encrypted and decrypted on its own, the format also allows random access (see
+// SeekableDecryptingChannel) and parallel encryption.
+public class StreamHeader {
+
+	static final byte[] MAGIC = { 'K', 'M', 'S', 'S' };
+	static final byte FORMAT_VERSION = 1;
+	static final int NONCE_PREFIX_LENGTH = 7;
+	// MAX_SEGMENTS: segment indexes are 4 byte counters in the nonce
+	static final long MAX_SEGMENTS = 1L << 32;
+	// MAX_SEGMENT_SIZE bounds the segment size, which is read before anything is authenticated, so that a forged header
+	// cannot make a reader allocate a huge segment buffer.
+	public static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final String keyId;
+	private final String keyVersionId;
+	private final byte[] wrappedKey;
+	private final int segmentSize;
+	private final byte[] noncePrefix;
+	private final byte[] encoded;
+
+	private StreamHeader(String keyId, String keyVersionId, byte[] wrappedKey, int segmentSize, byte[] noncePrefix) {
+		this.keyId = keyId;
+		this.keyVersionId = keyVersionId;
+		this.wrappedKey = wrappedKey;
+		this.segmentSize = segmentSize;
+		this.noncePrefix = noncePrefix;
+		byte[] keyIdBytes = keyId.getBytes(StandardCharsets.UTF_8);
+		byte[] keyVersionIdBytes = keyVersionId == null ? new byte[0] : keyVersionId.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer out = ByteBuffer.allocate(MAGIC.length + 1 + 4 + 2 + keyIdBytes.length + 2 + keyVersionIdBytes.length
+			+ 2 + wrappedKey.length + NONCE_PREFIX_LENGTH);
+		out.put(MAGIC);
+		out.put(FORMAT_VERSION);
+		out.putInt(segmentSize);
+		out.putShort((short) keyIdBytes.length);
+		out.put(keyIdBytes);
+		out.putShort((short) keyVersionIdBytes.length);
+		out.put(keyVersionIdBytes);
+		out.putShort((short) wrappedKey.length);
+		out.put(wrappedKey);
+		out.put(noncePrefix);
+		this.encoded = out.array();
+	}
+
+	// A header for a new stream, with a random nonce prefix. keyVersionId may be null.
+	static StreamHeader create(DataKey dataKey, String keyVersionId, int segmentSize) {
+		if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+			throw new IllegalArgumentException("The segment size must be positive and at most " + MAX_SEGMENT_SIZE + " bytes.");
+		}
+		byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+		RANDOM.nextBytes(noncePrefix);
+		return new StreamHeader(dataKey.getKeyId(), keyVersionId, dataKey.getWrappedKey(), segmentSize, noncePrefix);
+	}
+
+	// Reads a header from the start of a stream, leaving the stream at the first segment.
+	static StreamHeader read(InputStream stream) throws IOException, GeneralSecurityException {
+		DataInputStream in = new DataInputStream(stream);
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			byte version = in.readByte();
+			if (!Arrays.equals(magic, MAGIC) || version != FORMAT_VERSION) {
+				throw new GeneralSecurityException("Not a stream written by StreamingCrypto, or an unsupported format version.");
+			}
+			int segmentSize = in.readInt();
+			if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+				throw new GeneralSecurityException("Invalid segment size " + segmentSize + ".");
+			}
+			String keyId = new String(readBlock(in), StandardCharsets.UTF_8);
+			byte[] keyVersionIdBytes = readBlock(in);
+			String keyVersionId = keyVersionIdBytes.length == 0 ? null : new String(keyVersionIdBytes, StandardCharsets.UTF_8);
+			byte[] wrappedKey = readBlock(in);
+			byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+			in.readFully(noncePrefix);
+			return new StreamHeader(keyId, keyVersionId, wrappedKey, segmentSize, noncePrefix);
+		} catch (EOFException e) {
+			throw new GeneralSecurityException("Stream header is truncated.", e);
+		}
+	}
+
+	private static byte[] readBlock(DataInputStream in) throws IOException {
+		byte[] block = new byte[in.readUnsignedShort()];
+		in.readFully(block);
+		return block;
+	}
+
+	// the OCID of the vault key that wrapped the DEK
+	public String getKeyId() { return keyId; }
+	// the vault key version that wrapped the DEK, or null if it was not recorded
+	public String getKeyVersionId() { return keyVersionId; }
+	public byte[] getWrappedKey() { return wrappedKey.clone(); }
+	// the number of plaintext bytes in every segment but the last
+	public int getSegmentSize() { return segmentSize; }
+	// the length of the encoded header, i.e. the offset of the first segment
+	public int getLength() { return encoded.length; }
+
+	byte[] getEncoded() { return encoded; }
+
+	// the number of ciphertext bytes in every segment but the last
+	int getCiphertextSegmentSize() { return segmentSize + EnvelopeCrypto.TAG_LENGTH; }
+
+	// The number of segments a plaintext of the given length is cut into. An empty plaintext is one empty segment.
+	long segmentCount(long plaintextLength) {
+		return Math.max(1L, (plaintextLength + segmentSize - 1) / segmentSize);
+	}
+
+	// The total length of the stream (header and segments) for a plaintext of the given length.
+	long ciphertextLength(long plaintextLength) {
+		return encoded.length + plaintextLength + segmentCount(plaintextLength) * EnvelopeCrypto.TAG_LENGTH;
+	}
+
+	// The plaintext length of a stream of the given total length (header included), or -1 if no stream has that length.
+	long plaintextLength(long ciphertextLength) {
+		long body = ciphertextLength - encoded.length;
+		long fullSegments = body / getCiphertextSegmentSize();
+		long rest = body % getCiphertextSegmentSize();
+		if (body < EnvelopeCrypto.TAG_LENGTH || (rest > 0 && rest < EnvelopeCrypto.TAG_LENGTH)) {
+			return -1;
+		}
+		// a stream ending exactly on a segment boundary ends with a full segment
+		return fullSegments * segmentSize + (rest == 0 ? 0 : rest - EnvelopeCrypto.TAG_LENGTH);
+	}
+
+	// The GCM nonce of a segment.
+	byte[] nonce(long segmentIndex, boolean last) throws GeneralSecurityException {
+		if (segmentIndex < 0 || segmentIndex >= MAX_SEGMENTS) {
+			throw new GeneralSecurityException("Too many segments for one stream; use a larger segment size.");
+		}
+		byte[] nonce = new byte[EnvelopeCrypto.IV_LENGTH];
+		System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+		nonce[7] = (byte) (segmentIndex >>> 24);
+		nonce[8] = (byte) (segmentIndex >>> 16);
+		nonce[9] = (byte) (segmentIndex >>> 8);
+		nonce[10] = (byte) segmentIndex;
+		nonce[11] = (byte) (last ? 1 : 0);
+		return nonce;
+	}
+}
@@ -0,0 +1,310 @@
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// StreamingCrypto encrypts payloads of any size, e.g. multi-GB exports, which neither the vault's encrypt endpoint
+// (a few KB at most) nor EnvelopeCrypto (the whole payload in memory) can handle. Each stream gets its own DEK from
+// generateDataEncryptionKey; the plaintext is then cut into segments that are encrypted one at a time with AES-GCM
+// (see StreamHeader for the format). Only one segment is held in memory at a time, so memory use does not depend on
+// the size of the payload, and a tampered or truncated stream fails at the first bad segment.
+// Decrypted data is only ever returned once its segment has been authenticated.
+public class StreamingCrypto {
+
+	// DEFAULT_SEGMENT_SIZE is the number of plaintext bytes per segment.
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+	private final KmsCryptoClient kmsCryptoClient;
+	private final String keyId;
+	private final String keyVersionId;
+	private final int segmentSize;
+	private final UnwrappedKeyCache unwrappedKeyCache;
+
+	public StreamingCrypto(KmsCryptoClient kmsCryptoClient, String keyId) {
+		this(kmsCryptoClient, keyId, null, DEFAULT_SEGMENT_SIZE, EnvelopeCrypto.newUnwrappedKeyCache(kmsCryptoClient));
+	}
+
+	// keyVersionId is recorded in the header if it is known, and may be null.
+	public StreamingCrypto(KmsCryptoClient kmsCryptoClient, String keyId, String keyVersionId, int segmentSize, UnwrappedKeyCache unwrappedKeyCache) {
+		if (segmentSize <= 0 || segmentSize > StreamHeader.MAX_SEGMENT_SIZE) {
+			throw new IllegalArgumentException("StreamingCrypto needs a positive segment size of at most " + StreamHeader.MAX_SEGMENT_SIZE + " bytes.");
+		}
+		this.kmsCryptoClient = kmsCryptoClient;
+		this.keyId = keyId;
+		this.keyVersionId = keyVersionId;
+		this.segmentSize = segmentSize;
+		this.unwrappedKeyCache = unwrappedKeyCache;
+	}
+
+	public String getKeyId() { return keyId; }
+	public int getSegmentSize() { return segmentSize; }
+
+	// Encrypts everything read from in to out. Neither stream is closed. Returns the number of plaintext bytes.
+	public long encrypt(InputStream in, OutputStream out) throws Exception {
+		OutputStream encrypting = newEncryptingStream(new NonClosingOutputStream(out));
+		long count = copy(in, encrypting);
+		encrypting.close();
+		return count;
+	}
+
+	// Decrypts a stream written by encrypt from in to out. Neither stream is closed. Returns the number of plaintext bytes.
+	public long decrypt(InputStream in, OutputStream out) throws Exception {
+		return copy(newDecryptingStream(in), out);
+	}
+
+	// Returns a stream that encrypts everything written to it into out. It must be closed to write the last segment;
+	// closing it also closes out.
+	public OutputStream newEncryptingStream(OutputStream out) throws Exception {
+		DataKey dataKey = EnvelopeCrypto.generateDataKey(kmsCryptoClient, keyId);
+		try {
+			StreamHeader header = StreamHeader.create(dataKey, keyVersionId, segmentSize);
+			out.write(header.getEncoded());
+			return new EncryptingOutputStream(out, header, dataKey.toSecretKey());
+		} finally {
+			dataKey.destroy();
+		}
+	}
+
+	// Returns a stream of the plaintext of the stream read from in. The header is read right away; the DEK is unwrapped
+	// with the vault key named in the header.
+	public InputStream newDecryptingStream(InputStream in) throws Exception {
+		StreamHeader header = StreamHeader.read(in);
+		SecretKey key = unwrappedKeyCache.get(header.getKeyId(), header.getKeyVersionId(), header.getWrappedKey());
+		return new DecryptingInputStream(in, header, key);
+	}
+
+	// Channel versions of the streams above, for code built on NIO channels such as FileChannel.
+	public WritableByteChannel newEncryptingChannel(WritableByteChannel out) throws Exception {
+		return Channels.newChannel(newEncryptingStream(Channels.newOutputStream(out)));
+	}
+
+	public ReadableByteChannel newDecryptingChannel(ReadableByteChannel in) throws Exception {
+		return Channels.newChannel(newDecryptingStream(Channels.newInputStream(in)));
+	}
+
+	// Returns a read-only channel with random access to the plaintext of the stream in the given channel, e.g. a
+	// FileChannel. Reading a range only decrypts the segments that cover it (see SeekableDecryptingChannel).
+	public SeekableDecryptingChannel newSeekableDecryptingChannel(SeekableByteChannel in) throws Exception {
+		StreamHeader header = SeekableDecryptingChannel.readHeader(in);
+		SecretKey key = unwrappedKeyCache.get(header.getKeyId(), header.getKeyVersionId(), header.getWrappedKey());
+		return new SeekableDecryptingChannel(in, header, key);
+	}
+
+	private long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[Math.min(segmentSize, DEFAULT_SEGMENT_SIZE)];
+		long count = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			count += read;
+		}
+		return count;
+	}
+
+	// Encrypts one segment of plaintext into out at outOffset, returning the number of bytes written (length + tag).
+	static int sealSegment(Cipher cipher, SecretKey key, StreamHeader header, long segmentIndex, boolean last,
+			byte[] in, int offset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+		initSegmentCipher(cipher, Cipher.ENCRYPT_MODE, key, header, segmentIndex, last);
+		return cipher.doFinal(in, offset, length, out, outOffset);
+	}
+
+	// Authenticates and decrypts one segment into out at outOffset, returning the number of plaintext bytes.
+	static int openSegment(Cipher cipher, SecretKey key, StreamHeader header, long segmentIndex, boolean last,
+			byte[] in, int offset, int length, byte[] out, int outOffset) throws GeneralSecurityException {
+		if (length < EnvelopeCrypto.TAG_LENGTH) {
+			throw new GeneralSecurityException("Segment " + segmentIndex + " is truncated.");
+		}
+		initSegmentCipher(cipher, Cipher.DECRYPT_MODE, key, header, segmentIndex, last);
+		return cipher.doFinal(in, offset, length, out, outOffset);
+	}
+
+	// Sets the cipher up for one segment: the segment's nonce, and the header as associated data.
+	static void initSegmentCipher(Cipher cipher, int mode, SecretKey key, StreamHeader header, long segmentIndex, boolean last) throws GeneralSecurityException {
+		cipher.init(mode, key, new GCMParameterSpec(EnvelopeCrypto.TAG_LENGTH * 8, header.nonce(segmentIndex, last)));
+		cipher.updateAAD(header.getEncoded());
+	}
+
+	// EncryptingOutputStream holds back a full segment until more data arrives, because only then does it know that
+	// the segment is not the last one. close() writes the remaining data as the last segment.
+	private static class EncryptingOutputStream extends FilterOutputStream {
+		private final StreamHeader header;
+		private final SecretKey key;
+		private final Cipher cipher;
+		private final byte[] plaintext;
+		private final byte[] ciphertext;
+		private int count;
+		private long segmentIndex;
+		private boolean closed;
+
+		private EncryptingOutputStream(OutputStream out, StreamHeader header, SecretKey key) throws GeneralSecurityException {
+			super(out);
+			this.header = header;
+			this.key = key;
+			this.cipher = Cipher.getInstance(EnvelopeCrypto.CIPHER_ALGORITHM);
+			this.plaintext = new byte[header.getSegmentSize()];
+			this.ciphertext = new byte[header.getCiphertextSegmentSize()];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream is closed.");
+			}
+			while (len > 0) {
+				if (count == plaintext.length) {
+					writeSegment(false);
+				}
+				int n = Math.min(len, plaintext.length - count);
+				System.arraycopy(b, off, plaintext, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		// Segments are only complete once their size is known, so flushing cannot push out buffered plaintext.
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				writeSegment(true);
+			} finally {
+				out.close();
+			}
+		}
+
+		private void writeSegment(boolean last) throws IOException {
+			try {
+				int length = sealSegment(cipher, key, header, segmentIndex++, last, plaintext, 0, count, ciphertext, 0);
+				out.write(ciphertext, 0, length);
+				count = 0;
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Failed to encrypt segment " + (segmentIndex - 1) + ".", e);
+			}
+		}
+	}
+
+	// DecryptingInputStream reads one byte past each segment to find out whether the segment is the last one.
+	private static class DecryptingInputStream extends InputStream {
+		private final InputStream in;
+		private final StreamHeader header;
+		private final SecretKey key;
+		private final Cipher cipher;
+		// ciphertext holds one segment plus the first byte of the next one
+		private final byte[] ciphertext;
+		private int ciphertextCount;
+		private final byte[] plaintext;
+		private int position;
+		private int limit;
+		private long segmentIndex;
+		private boolean lastSegmentRead;
+
+		private DecryptingInputStream(InputStream in, StreamHeader header, SecretKey key) throws GeneralSecurityException {
+			this.in = in;
+			this.header = header;
+			this.key = key;
+			this.cipher = Cipher.getInstance(EnvelopeCrypto.CIPHER_ALGORITHM);
+			this.ciphertext = new byte[header.getCiphertextSegmentSize() + 1];
+			this.plaintext = new byte[header.getSegmentSize()];
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			int n = read(one, 0, 1);
+			return n == -1 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (position == limit) {
+				if (lastSegmentRead) {
+					return -1;
+				}
+				readSegment();
+			}
+			int n = Math.min(len, limit - position);
+			System.arraycopy(plaintext, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return limit - position;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private void readSegment() throws IOException {
+			while (ciphertextCount < ciphertext.length) {
+				int read = in.read(ciphertext, ciphertextCount, ciphertext.length - ciphertextCount);
+				if (read == -1) {
+					break;
+				}
+				ciphertextCount += read;
+			}
+			boolean last = ciphertextCount < ciphertext.length;
+			int length = last ? ciphertextCount : ciphertext.length - 1;
+			try {
+				limit = openSegment(cipher, key, header, segmentIndex++, last, ciphertext, 0, length, plaintext, 0);
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Segment " + (segmentIndex - 1) + " failed authentication: the stream was modified or truncated.", e);
+			}
+			position = 0;
+			if (last) {
+				lastSegmentRead = true;
+			} else {
+				ciphertext[0] = ciphertext[length];
+				ciphertextCount = 1;
+			}
+		}
+	}
+
+	// NonClosingOutputStream lets encrypt close its encrypting stream without closing the caller's stream.
+	private static class NonClosingOutputStream extends FilterOutputStream {
+		private NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.SecretKeySpec;
+
+// UnwrappedKeyCache remembers DEKs that have already been unwrapped by the vault, so that decrypting many payloads
+// written under the same DEK costs one decrypt call instead of one per payload. Entries are keyed by a SHA-256
+// fingerprint of the vault key id, the key version (when known) and the wrapped DEK, so the wrapped DEK itself is
+// not kept around. The cache holds at most maxEntries keys; the least recently used key is evicted and zeroed first.
+// Concurrent misses on the same DEK share one decrypt call (see SingleFlight).
+// Cached keys are kept off-heap in buffers borrowed from the default SecureBufferPool.
+public class UnwrappedKeyCache {
+
+	// DEFAULT_MAX_ENTRIES is the number of unwrapped DEKs kept in memory by default.
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	// Unwrapper asks the vault to decrypt a wrapped DEK, usually through EnvelopeCrypto.unwrap.
+	public interface Unwrapper {
+		byte[] unwrap(String keyId, byte[] wrappedKey) throws Exception;
+	}
+
+	private final Unwrapper unwrapper;
+	private final int maxEntries;
+	// keys is an access-ordered LinkedHashMap, which makes its iteration order least recently used first.
+	private final LinkedHashMap<String, SecureBufferPool.Lease> keys;
+	// the unwrap calls in flight, by fingerprint
+	private final SingleFlight<String, SecretKeySpec> unwraps = new SingleFlight<String, SecretKeySpec>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public UnwrappedKeyCache(Unwrapper unwrapper) {
+		this(unwrapper, DEFAULT_MAX_ENTRIES);
+	}
+
+	public UnwrappedKeyCache(Unwrapper unwrapper, final int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("UnwrappedKeyCache needs room for at least one key.");
+		}
+		this.unwrapper = unwrapper;
+		this.maxEntries = maxEntries;
+		this.keys = new LinkedHashMap<String, SecureBufferPool.Lease>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SecureBufferPool.Lease> eldest) {
+				if (size() > maxEntries) {
+					eldest.getValue().close();
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	// Returns the unwrapped DEK, calling the vault only if it is not cached yet. keyVersionId may be null.
+	public SecretKeySpec get(final String keyId, String keyVersionId, final byte[] wrappedKey) throws Exception {
+		final String fingerprint = fingerprint(keyId, keyVersionId, wrappedKey);
+		SecretKeySpec cached = cached(fingerprint);
+		if (cached != null) {
+			hits.incrementAndGet();
+			return cached;
+		}
+		// The vault call is made without holding the lock so that hits on other keys are not blocked by it, and
+		// threads missing on the same DEK wait for the first one's call.
+		return unwraps.execute(fingerprint, () -> {
+			// the key may have been cached between the lookup above and the start of this call
+			SecretKeySpec unwrapped = cached(fingerprint);
+			if (unwrapped != null) {
+				return unwrapped;
+			}
+			misses.incrementAndGet();
+			SecureBufferPool.Lease plaintextKey = SecureBufferPool.getDefault().acquireCopy(unwrapper.unwrap(keyId, wrappedKey));
+			synchronized (keys) {
+				keys.put(fingerprint, plaintextKey);
+				return plaintextKey.toSecretKey();
+			}
+		});
+	}
+
+	// Zeroes and drops every cached key.
+	public void clear() {
+		synchronized (keys) {
+			Iterator<SecureBufferPool.Lease> iterator = keys.values().iterator();
+			while (iterator.hasNext()) {
+				iterator.next().close();
+				iterator.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private SecretKeySpec cached(String fingerprint) {
+		synchronized (keys) {
+			SecureBufferPool.Lease plaintextKey = keys.get(fingerprint);
+			return plaintextKey == null ? null : plaintextKey.toSecretKey();
+		}
+	}
+
+	public int size() {
+		synchronized (keys) {
+			return keys.size();
+		}
+	}
+
+	public int getMaxEntries() { return maxEntries; }
+
+	// Counters used to size the cache: a miss is one decrypt call to the vault.
+	public long getHits() { return hits.get(); }
+	public long getMisses() { return misses.get(); }
+	public long getEvictions() { return evictions.get(); }
+	// the number of misses that waited for another thread's decrypt call instead of making their own
+	public long getSharedMisses() { return unwraps.getShared(); }
+
+	@Override
+	public String toString() {
+		return "UnwrappedKeyCache[size=" + size() + ", hits=" + hits.get() + ", misses=" + misses.get() + ", evictions=" + evictions.get()
+			+ ", sharedMisses=" + unwraps.getShared() + "]";
+	}
+
+	static String fingerprint(String keyId, String keyVersionId, byte[] wrappedKey) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(keyId.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		if (keyVersionId != null) {
+			digest.update(keyVersionId.getBytes(StandardCharsets.UTF_8));
+		}
+		digest.update((byte) 0);
+		digest.update(wrappedKey);
+		return Hex.encodeHexString(digest.digest());
+	}
+}
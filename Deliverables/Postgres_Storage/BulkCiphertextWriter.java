@@ -0,0 +1,289 @@
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// BulkCiphertextWriter inserts (keyId, keyVersion, ciphertext) rows in bulk instead of one INSERT per row. Rows are
+// buffered and written in one transaction when batchSize rows are waiting, when flushIntervalMillis has passed since
+// the last write (so a slow trickle of rows still reaches the table), or on flush/close. Two ways of writing are
+// supported:
+//     * Mode.BATCH: a parameterized INSERT with addBatch/executeBatch. Add reWriteBatchedInserts=true to the JDBC URL
+//       (see withBatchedInserts) so the driver sends each batch as a few multi-row INSERTs instead of one per row.
+//     * Mode.COPY: the driver's CopyManager with COPY ... FROM STDIN in binary format, the fastest way to load rows.
+// The table needs the text columns keyid, keyversion and payload; keyVersion may be null. Writers created with a
+// blindIndexColumn also fill that BYTEA column with each record's blind index (see BlindIndex in KMS_Crypto), e.g.
+//     ALTER TABLE t ADD COLUMN ssnindex BYTEA; CREATE INDEX ON t (ssnindex);
+public class BulkCiphertextWriter implements AutoCloseable {
+
+	public enum Mode { BATCH, COPY }
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000L;
+	// COPY_CHUNK_SIZE is how many bytes of COPY data are buffered before they are sent to the server.
+	private static final int COPY_CHUNK_SIZE = 64 * 1024;
+	// COPY_SIGNATURE starts every binary COPY stream: "PGCOPY\n\377\r\n\0"
+	private static final byte[] COPY_SIGNATURE = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0 };
+
+	private final ConnectionPool connectionPool;
+	private final String tableName;
+	private final Mode mode;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+	// blindIndexColumn is null if the table has no blind index column
+	private final String blindIndexColumn;
+	private final String columns;
+	private final ScheduledExecutorService flusher;
+
+	// guarded by this
+	private final List<Record> buffer = new ArrayList<Record>();
+	private long lastFlushMillis = System.currentTimeMillis();
+	private long rowsWritten;
+	private long flushes;
+	private SQLException backgroundFailure;
+	private boolean closed;
+
+	public BulkCiphertextWriter(ConnectionPool connectionPool, String tableName, Mode mode) {
+		this(connectionPool, tableName, mode, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+	}
+
+	public BulkCiphertextWriter(ConnectionPool connectionPool, String tableName, Mode mode, int batchSize, long flushIntervalMillis) {
+		this(connectionPool, tableName, mode, batchSize, flushIntervalMillis, null);
+	}
+
+	// blindIndexColumn names the BYTEA column that receives Record.getBlindIndex().
+	public BulkCiphertextWriter(ConnectionPool connectionPool, String tableName, Mode mode, int batchSize, long flushIntervalMillis, String blindIndexColumn) {
+		if (batchSize <= 0 || flushIntervalMillis <= 0) {
+			throw new IllegalArgumentException("BulkCiphertextWriter needs a positive batch size and flush interval.");
+		}
+		this.connectionPool = connectionPool;
+		this.tableName = tableName;
+		this.mode = mode;
+		this.batchSize = batchSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.blindIndexColumn = blindIndexColumn;
+		this.columns = blindIndexColumn == null ? "(keyid, keyversion, payload)" : "(keyid, keyversion, payload, " + blindIndexColumn + ")";
+		this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "bulk-ciphertext-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushIfDue, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// Adds reWriteBatchedInserts=true to a postgres JDBC URL, for connection pools used with Mode.BATCH.
+	public static String withBatchedInserts(String url) {
+		return url + (url.contains("?") ? "&" : "?") + "reWriteBatchedInserts=true";
+	}
+
+	// Buffers one row, writing the buffer out if it is full.
+	public synchronized void write(String keyId, String keyVersion, String ciphertext) throws SQLException {
+		write(new Record(keyId, keyVersion, ciphertext));
+	}
+
+	// Buffers one row with its blind index, for writers created with a blindIndexColumn.
+	public synchronized void write(String keyId, String keyVersion, String ciphertext, byte[] blindIndex) throws SQLException {
+		write(new Record(keyId, keyVersion, ciphertext, blindIndex));
+	}
+
+	public synchronized void write(Record record) throws SQLException {
+		checkUsable();
+		buffer.add(record);
+		if (buffer.size() >= batchSize) {
+			flush();
+		}
+	}
+
+	// Writes every record, e.g. writeAll(stream::iterator). Returns the number of records written.
+	public long writeAll(Iterable<? extends Record> records) throws SQLException {
+		long count = 0;
+		for (Record record : records) {
+			write(record);
+			count++;
+		}
+		return count;
+	}
+
+	// Writes all buffered rows in one transaction. If the write fails, the rows stay buffered and the next flush
+	// tries again.
+	public synchronized void flush() throws SQLException {
+		checkUsable();
+		if (buffer.isEmpty()) {
+			return;
+		}
+		try (Connection connection = connectionPool.getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				if (mode == Mode.COPY) {
+					copy(connection);
+				} else {
+					insertBatch(connection);
+				}
+				connection.commit();
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		}
+		rowsWritten += buffer.size();
+		flushes++;
+		buffer.clear();
+		lastFlushMillis = System.currentTimeMillis();
+	}
+
+	// Flushes the remaining rows and stops the background flushes.
+	@Override
+	public void close() throws SQLException {
+		flusher.shutdownNow();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			try {
+				flush();
+			} finally {
+				closed = true;
+			}
+		}
+	}
+
+	public synchronized long getRowsWritten() { return rowsWritten; }
+	public synchronized long getFlushes() { return flushes; }
+	public synchronized int getBufferedCount() { return buffer.size(); }
+
+	@Override
+	public synchronized String toString() {
+		return "BulkCiphertextWriter[mode=" + mode + ", table=" + tableName + ", rows written=" + rowsWritten + ", flushes=" + flushes + ", buffered=" + buffer.size() + "]";
+	}
+
+	private void insertBatch(Connection connection) throws SQLException {
+		String values = blindIndexColumn == null ? " VALUES (?, ?, ?)" : " VALUES (?, ?, ?, ?)";
+		try (PreparedStatement ps = connection.prepareStatement("INSERT INTO " + tableName + " " + columns + values)) {
+			for (Record record : buffer) {
+				ps.setString(1, record.getKeyId());
+				ps.setString(2, record.getKeyVersion());
+				ps.setString(3, record.getCiphertext());
+				if (blindIndexColumn != null) {
+					ps.setBytes(4, record.getBlindIndex());
+				}
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+	}
+
+	// Binary COPY format: a signature, a flags field and a header extension length, then per row the number of
+	// fields followed by each field as a length and its bytes (-1 for NULL), then -1 as the trailer. Text columns are
+	// sent as their UTF-8 bytes and BYTEA columns as their raw bytes.
+	private void copy(Connection connection) throws SQLException {
+		CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI()
+			.copyIn("COPY " + tableName + " " + columns + " FROM STDIN (FORMAT BINARY)");
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(COPY_CHUNK_SIZE + 1024);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.write(COPY_SIGNATURE);
+			out.writeInt(0);
+			out.writeInt(0);
+			for (Record record : buffer) {
+				out.writeShort(blindIndexColumn == null ? 3 : 4);
+				writeField(out, record.getKeyId());
+				writeField(out, record.getKeyVersion());
+				writeField(out, record.getCiphertext());
+				if (blindIndexColumn != null) {
+					writeField(out, record.getBlindIndex());
+				}
+				if (bytes.size() >= COPY_CHUNK_SIZE) {
+					copyIn.writeToCopy(bytes.toByteArray(), 0, bytes.size());
+					bytes.reset();
+				}
+			}
+			out.writeShort(-1);
+			copyIn.writeToCopy(bytes.toByteArray(), 0, bytes.size());
+			copyIn.endCopy();
+		} catch (IOException e) {
+			// only thrown by the in-memory streams, which cannot fail
+			throw new IllegalStateException(e);
+		} finally {
+			if (copyIn.isActive()) {
+				copyIn.cancelCopy();
+			}
+		}
+	}
+
+	private static void writeField(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		writeField(out, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeField(DataOutputStream out, byte[] value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(value.length);
+		out.write(value);
+	}
+
+	private synchronized void flushIfDue() {
+		if (closed || backgroundFailure != null || System.currentTimeMillis() - lastFlushMillis < flushIntervalMillis) {
+			return;
+		}
+		try {
+			flush();
+		} catch (SQLException e) {
+			// reported to the caller on the next write, flush or close
+			backgroundFailure = e;
+		}
+	}
+
+	private void checkUsable() throws SQLException {
+		if (closed) {
+			throw new SQLException("BulkCiphertextWriter is closed.");
+		}
+		if (backgroundFailure != null) {
+			SQLException failure = backgroundFailure;
+			backgroundFailure = null;
+			throw new SQLException("A background flush of " + tableName + " failed; the rows are still buffered.", failure);
+		}
+	}
+
+	// Record is one row to write: the vault key and key version that protect the ciphertext, the ciphertext, and
+	// optionally the blind index of one of its fields.
+	public static class Record {
+		private final String keyId;
+		private final String keyVersion;
+		private final String ciphertext;
+		private final byte[] blindIndex;
+
+		public Record(String keyId, String keyVersion, String ciphertext) {
+			this(keyId, keyVersion, ciphertext, null);
+		}
+
+		public Record(String keyId, String keyVersion, String ciphertext, byte[] blindIndex) {
+			this.keyId = keyId;
+			this.keyVersion = keyVersion;
+			this.ciphertext = ciphertext;
+			this.blindIndex = blindIndex;
+		}
+
+		public String getKeyId() { return keyId; }
+		public String getKeyVersion() { return keyVersion; }
+		public String getCiphertext() { return ciphertext; }
+		public byte[] getBlindIndex() { return blindIndex; }
+	}
+}
@@ -0,0 +1,469 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// ConnectionPool keeps connections to the postgres server open and hands them out again, instead of paying for a new
+// TCP connection, authentication and backend startup on every DriverManager.getConnection call.
+//     * minSize / maxSize: the pool keeps at least minSize connections open and never opens more than maxSize.
+//       getConnection waits (up to DEFAULT_BORROW_TIMEOUT_MILLIS) when all maxSize connections are in use.
+//     * idle eviction: connections unused for idleTimeoutMillis are closed, down to minSize.
+//     * validation: a pooled connection is checked with Connection.isValid before it is handed out; a dead one is
+//       replaced transparently.
+//     * leak detection: a connection borrowed for longer than leakThresholdMillis is reported once, with the stack
+//       trace of the code that borrowed it.
+//     * statement cache: each connection keeps its last statementCacheSize prepared statements, so preparing the same
+//       SQL again on a pooled connection is free. A cached statement is handed to one user at a time; preparing SQL
+//       whose statement is still open gets a separate, uncached one. Closing a cached statement only clears its
+//       parameters and batch and restores its fetch size, max rows and query timeout. Cached statements still open
+//       when the connection is returned are closed and dropped from the cache.
+// Connections are returned to the pool by closing them, so the usual try-with-resources blocks work unchanged.
+public class ConnectionPool implements AutoCloseable {
+
+	public static final int DEFAULT_MIN_SIZE = 1;
+	public static final int DEFAULT_MAX_SIZE = 10;
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	public static final long DEFAULT_LEAK_THRESHOLD_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+	// DEFAULT_BORROW_TIMEOUT_MILLIS is how long getConnection waits for a free connection before failing.
+	public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	// VALIDATION_TIMEOUT_SECONDS bounds the isValid check made before handing out a pooled connection.
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+	// HOUSEKEEPING_PERIOD_MILLIS is how often idle eviction, refilling to minSize and leak detection run.
+	private static final long HOUSEKEEPING_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private final int minSize;
+	private final int maxSize;
+	private final long idleTimeoutMillis;
+	private final long leakThresholdMillis;
+	private final int statementCacheSize;
+
+	// idle connections, most recently used first, so that rarely needed connections age out
+	private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+	// total counts idle, borrowed and currently opening connections; guarded by this
+	private int total;
+	private boolean closed;
+	private final ScheduledExecutorService housekeeper;
+
+	public ConnectionPool(String url, String user, String password) {
+		this(url, user, password, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_LEAK_THRESHOLD_MILLIS, DEFAULT_STATEMENT_CACHE_SIZE);
+	}
+
+	public ConnectionPool(String url, String user, String password, int minSize, int maxSize, long idleTimeoutMillis, long leakThresholdMillis, int statementCacheSize) {
+		if (minSize < 0 || maxSize <= 0 || minSize > maxSize || idleTimeoutMillis <= 0 || leakThresholdMillis <= 0 || statementCacheSize < 0) {
+			throw new IllegalArgumentException("ConnectionPool needs 0 <= minSize <= maxSize, maxSize > 0, positive timeouts and a non-negative statement cache size.");
+		}
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.leakThresholdMillis = leakThresholdMillis;
+		this.statementCacheSize = statementCacheSize;
+		this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "connection-pool-housekeeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// The first run opens the minSize connections in the background, so creating a pool never fails or blocks.
+		housekeeper.scheduleWithFixedDelay(this::housekeeping, 0L, HOUSEKEEPING_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	// Borrows a connection. Closing the returned connection gives it back to the pool.
+	public Connection getConnection() throws SQLException {
+		long deadline = System.currentTimeMillis() + DEFAULT_BORROW_TIMEOUT_MILLIS;
+		while (true) {
+			PooledConnection pooled = null;
+			synchronized (this) {
+				while (!closed && idle.isEmpty() && total >= maxSize) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						throw new SQLException("Timed out after " + DEFAULT_BORROW_TIMEOUT_MILLIS + " ms waiting for a connection: all " + maxSize + " connections are in use.");
+					}
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a connection.", e);
+					}
+				}
+				if (closed) {
+					throw new SQLException("The connection pool is closed.");
+				}
+				if (!idle.isEmpty()) {
+					pooled = idle.pollFirst();
+				} else {
+					total++;
+				}
+			}
+			// Validating and opening connections talk to the server, so they are done without holding the lock.
+			if (pooled == null) {
+				pooled = open();
+			} else if (!isValid(pooled)) {
+				discard(pooled);
+				continue;
+			}
+			pooled.borrowedAtMillis = System.currentTimeMillis();
+			pooled.borrowTrace = new Throwable("Connection borrowed here");
+			pooled.leakReported = false;
+			borrowed.add(pooled);
+			return pooled.newHandle();
+		}
+	}
+
+	// Closes the idle connections and stops handing out new ones. Borrowed connections are closed when returned.
+	@Override
+	public void close() {
+		housekeeper.shutdownNow();
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		PooledConnection pooled;
+		while ((pooled = pollIdle()) != null) {
+			discard(pooled);
+		}
+	}
+
+	public synchronized int getIdleCount() { return idle.size(); }
+	public int getBorrowedCount() { return borrowed.size(); }
+	public synchronized int getTotalCount() { return total; }
+
+	@Override
+	public synchronized String toString() {
+		return "ConnectionPool[total=" + total + ", idle=" + idle.size() + ", borrowed=" + borrowed.size() + ", max=" + maxSize + "]";
+	}
+
+	private PooledConnection open() throws SQLException {
+		try {
+			return new PooledConnection(DriverManager.getConnection(url, user, password));
+		} catch (SQLException | RuntimeException e) {
+			synchronized (this) {
+				total--;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	private boolean isValid(PooledConnection pooled) {
+		try {
+			return pooled.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	// Called when a borrowed connection is closed by its user. The connection is reset to a clean state (no open
+	// transaction, auto-commit on, no statements in use) before anyone else can borrow it; if that fails it is discarded
+	// instead.
+	private void giveBack(PooledConnection pooled) {
+		borrowed.remove(pooled);
+		pooled.closeStatementsInUse();
+		boolean reusable;
+		try {
+			if (!pooled.physical.getAutoCommit()) {
+				pooled.physical.rollback();
+				pooled.physical.setAutoCommit(true);
+			}
+			pooled.physical.clearWarnings();
+			reusable = !pooled.physical.isClosed();
+		} catch (SQLException e) {
+			reusable = false;
+		}
+		synchronized (this) {
+			if (reusable && !closed) {
+				pooled.lastUsedMillis = System.currentTimeMillis();
+				idle.addFirst(pooled);
+				notifyAll();
+				return;
+			}
+		}
+		discard(pooled);
+	}
+
+	private void discard(PooledConnection pooled) {
+		pooled.closeStatements();
+		try {
+			pooled.physical.close();
+		} catch (SQLException e) {
+			// the connection is being thrown away anyway
+		}
+		synchronized (this) {
+			total--;
+			notifyAll();
+		}
+	}
+
+	private synchronized PooledConnection pollIdle() {
+		return idle.pollFirst();
+	}
+
+	private void housekeeping() {
+		long now = System.currentTimeMillis();
+		// idle eviction: the least recently used connections are at the end of the deque
+		while (true) {
+			PooledConnection expired = null;
+			synchronized (this) {
+				PooledConnection oldest = idle.peekLast();
+				if (oldest != null && total > minSize && now - oldest.lastUsedMillis > idleTimeoutMillis) {
+					expired = idle.pollLast();
+				}
+			}
+			if (expired == null) {
+				break;
+			}
+			discard(expired);
+		}
+		// refill to minSize
+		while (true) {
+			synchronized (this) {
+				if (closed || total >= minSize) {
+					break;
+				}
+				total++;
+			}
+			try {
+				PooledConnection pooled = open();
+				pooled.lastUsedMillis = now;
+				synchronized (this) {
+					idle.addLast(pooled);
+					notifyAll();
+				}
+			} catch (SQLException | RuntimeException e) {
+				// the server is not reachable right now; getConnection will report the error to its caller
+				break;
+			}
+		}
+		// leak detection
+		for (PooledConnection pooled : borrowed) {
+			if (!pooled.leakReported && now - pooled.borrowedAtMillis > leakThresholdMillis) {
+				pooled.leakReported = true;
+				System.err.println("WARNING: a connection has been borrowed from the pool for more than " + leakThresholdMillis
+					+ " ms without being closed. It may have leaked:");
+				pooled.borrowTrace.printStackTrace();
+			}
+		}
+	}
+
+	// PooledConnection is one physical connection together with its prepared statement cache and borrow bookkeeping.
+	private class PooledConnection {
+		private final Connection physical;
+		// statements is an access-ordered LinkedHashMap, which makes its iteration order least recently used first
+		private final LinkedHashMap<String, PreparedStatement> statements;
+		// the cached statements that are handed out and not closed yet, with their handles
+		private final Map<PreparedStatement, CachedStatementHandle> inUse = new IdentityHashMap<PreparedStatement, CachedStatementHandle>();
+		private volatile long lastUsedMillis = System.currentTimeMillis();
+		private volatile long borrowedAtMillis;
+		private volatile Throwable borrowTrace;
+		private volatile boolean leakReported;
+
+		private PooledConnection(Connection physical) {
+			this.physical = physical;
+			this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+					if (size() > statementCacheSize) {
+						// a statement in use is closed when its user is done with it (see release)
+						if (!inUse.containsKey(eldest.getValue())) {
+							closeQuietly(eldest.getValue());
+						}
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		// A new handle is made for every borrow, so a handle that was closed cannot be used to reach the connection
+		// after someone else has borrowed it.
+		private Connection newHandle() {
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+				new ConnectionHandle(this));
+		}
+
+		// Only the plain prepareStatement(String) is cached; the variants with result set options are rarely reused.
+		private PreparedStatement prepare(String sql) throws SQLException {
+			if (statementCacheSize == 0) {
+				return physical.prepareStatement(sql);
+			}
+			PreparedStatement statement = statements.get(sql);
+			if (statement != null && inUse.containsKey(statement)) {
+				// e.g. a query whose results are still being read while the same SQL runs again
+				return physical.prepareStatement(sql);
+			}
+			if (statement == null || statement.isClosed()) {
+				statement = physical.prepareStatement(sql);
+				statements.put(sql, statement);
+			}
+			CachedStatementHandle handle = new CachedStatementHandle(this, statement);
+			inUse.put(statement, handle);
+			return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+				handle);
+		}
+
+		// Called when the handle of a cached statement is closed. A statement that was evicted while it was in use, or
+		// whose state could not be reset, is closed now.
+		private void release(PreparedStatement statement, boolean reusable) {
+			inUse.remove(statement);
+			if (!reusable) {
+				statements.values().remove(statement);
+			}
+			if (!statements.containsValue(statement)) {
+				closeQuietly(statement);
+			}
+		}
+
+		// Closes the cached statements whose handles were not closed by the borrower, e.g. after an exception, and
+		// drops them from the cache; otherwise their SQL would never be served from the cache again. Their handles are
+		// closed too, so they cannot reach this connection once someone else has borrowed it.
+		private void closeStatementsInUse() {
+			for (Map.Entry<PreparedStatement, CachedStatementHandle> entry : inUse.entrySet()) {
+				entry.getValue().closed = true;
+				statements.values().remove(entry.getKey());
+				closeQuietly(entry.getKey());
+			}
+			inUse.clear();
+		}
+
+		private void closeStatements() {
+			Iterator<PreparedStatement> iterator = statements.values().iterator();
+			while (iterator.hasNext()) {
+				closeQuietly(iterator.next());
+				iterator.remove();
+			}
+		}
+	}
+
+	// ConnectionHandle is what users of the pool see: close() returns the connection to the pool and
+	// prepareStatement(String) goes through the statement cache. Everything else is passed to the real connection.
+	private class ConnectionHandle implements InvocationHandler {
+		private final PooledConnection pooled;
+		private boolean closed;
+
+		private ConnectionHandle(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (!closed) {
+					closed = true;
+					giveBack(pooled);
+				}
+				return null;
+			}
+			if (name.equals("isClosed")) {
+				return closed || pooled.physical.isClosed();
+			}
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			if (name.equals("toString")) {
+				return "Pooled" + (closed ? "[closed]" : "[" + pooled.physical + "]");
+			}
+			if (closed) {
+				throw new SQLException("Connection is closed; it has been returned to the pool.");
+			}
+			if (name.equals("prepareStatement") && args.length == 1) {
+				return pooled.prepare((String) args[0]);
+			}
+			return invokeOn(pooled.physical, method, args);
+		}
+	}
+
+	// CachedStatementHandle keeps a cached statement open when its user closes it; only its state is reset, to what it
+	// was when the statement was handed out.
+	private static class CachedStatementHandle implements InvocationHandler {
+		private final PooledConnection pooled;
+		private final PreparedStatement statement;
+		private final int fetchSize;
+		private final int maxRows;
+		private final int queryTimeout;
+		// also set when the connection is returned with this handle still open (see closeStatementsInUse)
+		private volatile boolean closed;
+
+		private CachedStatementHandle(PooledConnection pooled, PreparedStatement statement) throws SQLException {
+			this.pooled = pooled;
+			this.statement = statement;
+			this.fetchSize = statement.getFetchSize();
+			this.maxRows = statement.getMaxRows();
+			this.queryTimeout = statement.getQueryTimeout();
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (!closed) {
+					closed = true;
+					boolean reset = false;
+					try {
+						statement.clearParameters();
+						statement.clearBatch();
+						statement.setFetchSize(fetchSize);
+						statement.setMaxRows(maxRows);
+						statement.setQueryTimeout(queryTimeout);
+						reset = true;
+					} finally {
+						pooled.release(statement, reset);
+					}
+				}
+				return null;
+			}
+			if (name.equals("isClosed")) {
+				return closed || statement.isClosed();
+			}
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			if (closed) {
+				throw new SQLException("Statement is closed.");
+			}
+			return invokeOn(statement, method, args);
+		}
+	}
+
+	private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			// the statement is being evicted anyway
+		}
+	}
+}
@@ -0,0 +1,116 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+// DecryptingResultSet reads rows with encrypted columns without decrypting them up front. Reading an encrypted column
+// returns a Value that only calls the Decryptor the first time its plaintext is asked for, and remembers the plaintext
+// for the rest of the row; columns that are never read are never decrypted. A report that pages through thousands of
+// rows but shows a few fields therefore only pays for the decryptions it displays.
+// Values hold on to their ciphertext, so they can still be decrypted after the result set has moved on to the next row.
+public class DecryptingResultSet implements AutoCloseable {
+
+	// Decryptor turns the ciphertext of a column back into plaintext, e.g. by calling the vault's decrypt endpoint or
+	// EnvelopeCrypto. keyId is the value of the row's key id column, or null if there is none.
+	public interface Decryptor {
+		String decrypt(String keyId, String ciphertext) throws Exception;
+	}
+
+	private final ResultSet resultSet;
+	private final Decryptor decryptor;
+	private final String keyIdColumn;
+	private final Set<String> encryptedColumns;
+	// the Values handed out for the current row, so that each column is decrypted at most once per row
+	private final Map<String, Value> row = new HashMap<String, Value>();
+	private final AtomicLong decryptions = new AtomicLong();
+
+	// keyIdColumn names the column holding the vault key id of each row, and may be null.
+	public DecryptingResultSet(ResultSet resultSet, Decryptor decryptor, String keyIdColumn, String... encryptedColumns) {
+		this.resultSet = resultSet;
+		this.decryptor = decryptor;
+		this.keyIdColumn = keyIdColumn;
+		this.encryptedColumns = new HashSet<String>(Arrays.asList(encryptedColumns));
+	}
+
+	// Moves to the next row, forgetting the plaintext of the current one.
+	public boolean next() throws SQLException {
+		row.clear();
+		return resultSet.next();
+	}
+
+	// The column's value. Encrypted columns are decrypted now (at most once per row); see get to defer that.
+	public String getString(String column) throws SQLException {
+		if (!encryptedColumns.contains(column)) {
+			return resultSet.getString(column);
+		}
+		return get(column).getPlaintext();
+	}
+
+	// The encrypted column's value, decrypted on first access.
+	public Value get(String column) throws SQLException {
+		if (!encryptedColumns.contains(column)) {
+			throw new SQLException("Column " + column + " is not an encrypted column.");
+		}
+		Value value = row.get(column);
+		if (value == null) {
+			String keyId = keyIdColumn == null ? null : resultSet.getString(keyIdColumn);
+			value = new Value(keyId, resultSet.getString(column));
+			row.put(column, value);
+		}
+		return value;
+	}
+
+	// the stored value of a column, without decrypting it
+	public String getRaw(String column) throws SQLException {
+		return resultSet.getString(column);
+	}
+
+	public ResultSet getResultSet() { return resultSet; }
+
+	// the number of decryptions made so far
+	public long getDecryptions() { return decryptions.get(); }
+
+	@Override
+	public void close() throws SQLException {
+		row.clear();
+		resultSet.close();
+	}
+
+	// Value is one encrypted cell. getPlaintext decrypts it the first time and returns the same plaintext afterwards.
+	public class Value {
+		private final String keyId;
+		private final String ciphertext;
+		private String plaintext;
+
+		private Value(String keyId, String ciphertext) {
+			this.keyId = keyId;
+			this.ciphertext = ciphertext;
+		}
+
+		public String getKeyId() { return keyId; }
+		public String getCiphertext() { return ciphertext; }
+
+		// A NULL cell decrypts to null. Decryption failures are reported as SQLExceptions.
+		public synchronized String getPlaintext() throws SQLException {
+			if (plaintext == null && ciphertext != null) {
+				try {
+					plaintext = decryptor.decrypt(keyId, ciphertext);
+				} catch (SQLException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new SQLException("Failed to decrypt a value encrypted under key " + keyId + ".", e);
+				}
+				decryptions.incrementAndGet();
+			}
+			return plaintext;
+		}
+
+		public synchronized boolean isDecrypted() {
+			return plaintext != null;
+		}
+	}
+}
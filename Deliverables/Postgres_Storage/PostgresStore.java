@@ -1,5 +1,4 @@
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
@@ -9,13 +8,21 @@ public class PostgresStore {
 	private static final String connectionURL = "jdbc:postgresql://localhost:5432/kms";
 	private static final String psqlUser = "postgres";
 	private static final String tableName = "encrypteddata";
+	// bulkTableName is the table the bulk ingestion test writes to. It needs the columns keyid, keyversion and payload.
+	private static final String bulkTableName = "encrypteddatabulk";
+	// BULK_ROWS is the number of rows the bulk ingestion test writes in each mode.
+	private static final int BULK_ROWS = 20000;
 
 	public static void main(String[] args) {
 		System.out.println("Java JDBC PostgreSQL Example");
 
-		try (Connection connection = DriverManager.getConnection(connectionURL, psqlUser, "")) {
-			// When this class first attempts to establish a connection, it automatically loads any JDBC 4.0 drivers found within
-			// the class path. Note that your application must manually load any JDBC drivers prior to version 4.0.
+		// Connections come from a ConnectionPool, which keeps them open for reuse instead of connecting to the server on
+		// every request. Closing a pooled connection returns it to the pool; closing the pool closes the connections.
+		// reWriteBatchedInserts lets the driver send batched INSERTs as multi-row statements (see BulkCiphertextWriter).
+		try (ConnectionPool connectionPool = new ConnectionPool(BulkCiphertextWriter.withBatchedInserts(connectionURL), psqlUser, "");
+				Connection connection = connectionPool.getConnection()) {
+			// When the pool first attempts to establish a connection, DriverManager automatically loads any JDBC 4.0 drivers found
+			// within the class path. Note that your application must manually load any JDBC drivers prior to version 4.0.
 			// Class.forName("org.postgresql.Driver");
 			System.out.println("Connected to PostgreSQL database!");
 			Statement statement = connection.createStatement();
@@ -34,10 +41,27 @@ public class PostgresStore {
 			// and by default resultSet does not point to the data immediately after statement.executeQuery (i.e. you **must** run
 			// ResultSet.next() at least once in order to access the data, which in this case starts at the first row returned by the
 			// given SELECT statement).
-			ResultSet resultSet = statement.executeQuery("SELECT * FROM " + tableName);
+			ResultSet resultSet = statement.executeQuery("SELECT * FROM " + tableName + " LIMIT 10");
 			while (resultSet.next()) {
 				System.out.printf("%-30.30s  %-30.30s%n", resultSet.getString("id"), resultSet.getString("payload"));
 			}
+			// The query above is limited to 10 rows because a plain executeQuery holds every row of its result in memory
+			// before next() returns. Whole tables are read through a StreamingTableReader instead, which only reads the
+			// columns it is asked for, through a cursor, a few hundred rows at a time.
+			try (StreamingTableReader reader = new StreamingTableReader(connectionPool, 500, 0)) {
+				final long[] payloadChars = new long[1];
+				long rows = reader.stream(tableName, row -> {
+					String payload = row.getString("payload");
+					payloadChars[0] += payload == null ? 0 : payload.length();
+					return true;
+				}, "payload");
+				System.out.println(">>> Streamed " + rows + " rows holding " + payloadChars[0] + " payload characters.");
+			}
+
+			// Rows that arrive in bulk should not be inserted one statement at a time: BulkCiphertextWriter buffers them and
+			// writes each batch in one transaction, either as batched INSERTs or with COPY.
+			bulkInsertTest(connectionPool, BulkCiphertextWriter.Mode.BATCH);
+			bulkInsertTest(connectionPool, BulkCiphertextWriter.Mode.COPY);
 			System.out.println("\033[1;32mDone.\033[0m"); // green bolded text
 		/*} catch (ClassNotFoundException e) {
 			System.out.println("PostgreSQL JDBC driver not found.");
@@ -45,8 +69,24 @@ public class PostgresStore {
 		} catch (SQLException e) {
 			System.out.println("Connection failure." + e);
 			System.out.println("\033[1;31mError.\033[0m"); // red bolded text
+		} catch (Exception e) {
+			System.out.println("Something went wrong." + e);
+			System.out.println("\033[1;31mError.\033[0m"); // red bolded text
 		}
 
 		System.out.println("Done. Exiting program...");
 	}
+
+	// writes BULK_ROWS sample rows to bulkTableName and reports the ingest rate
+	public static void bulkInsertTest(ConnectionPool connectionPool, BulkCiphertextWriter.Mode mode) throws SQLException {
+		System.out.println("Bulk inserting " + BULK_ROWS + " rows using " + mode + "...");
+		long start = System.nanoTime();
+		try (BulkCiphertextWriter writer = new BulkCiphertextWriter(connectionPool, bulkTableName, mode)) {
+			for (int i = 0; i < BULK_ROWS; i++) {
+				writer.write("sample-key", "sample-key-version", String.format("%016d", i));
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf(">>> Inserted %d rows in %.2f s (%.0f rows/s).%n", BULK_ROWS, seconds, BULK_ROWS / seconds);
+	}
 }
@@ -0,0 +1,227 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// StreamingTableReader reads large tables without holding them in memory. By default the postgres driver fetches the
+// whole result of a query into the heap before the first next() returns, which runs out of memory on tables with
+// millions of rows. Here every query runs:
+//     * in a transaction (autocommit off), because the driver only uses a server-side cursor inside one
+//     * with setFetchSize(fetchSize), so the driver holds at most fetchSize rows and fetches the next ones on demand
+//     * with only the columns the caller asks for
+// Rows are pushed to a RowConsumer, which sets the pace: the next rows are only fetched from the server once the
+// consumer has taken the current ones. With readAheadRows > 0 the rows are read on a separate thread into a queue of
+// that many rows, so fetching overlaps with a slow consumer (e.g. one that decrypts every row); when the queue is full
+// the reading thread waits. Either way memory use depends on fetchSize and readAheadRows, not on the size of the table.
+// A stream keeps its connection for as long as it runs, so streams that take longer than the pool's leak threshold
+// are reported as possible leaks; use a pool with a higher threshold for them.
+public class StreamingTableReader implements AutoCloseable {
+
+	// RowConsumer receives the rows in order, on the thread that called stream. Returning false stops the stream.
+	public interface RowConsumer {
+		boolean accept(Row row) throws Exception;
+	}
+
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+	// POLL_MILLIS is how often a waiting reading thread checks whether the consumer has stopped.
+	private static final long POLL_MILLIS = 100L;
+	// END marks the end of the rows in the read-ahead queue.
+	private static final Row END = new Row(Collections.<String, Integer>emptyMap(), new Object[0]);
+
+	private final ConnectionPool connectionPool;
+	private final int fetchSize;
+	private final int readAheadRows;
+	// readers is null if the rows are not read ahead
+	private final ExecutorService readers;
+
+	public StreamingTableReader(ConnectionPool connectionPool) {
+		this(connectionPool, DEFAULT_FETCH_SIZE, 0);
+	}
+
+	// readAheadRows is the size of the read-ahead queue, or 0 to read on the consumer's thread.
+	public StreamingTableReader(ConnectionPool connectionPool, int fetchSize, int readAheadRows) {
+		if (fetchSize <= 0 || readAheadRows < 0) {
+			throw new IllegalArgumentException("StreamingTableReader needs a positive fetch size and a non-negative read-ahead.");
+		}
+		this.connectionPool = connectionPool;
+		this.fetchSize = fetchSize;
+		this.readAheadRows = readAheadRows;
+		if (readAheadRows == 0) {
+			this.readers = null;
+		} else {
+			final AtomicInteger count = new AtomicInteger();
+			this.readers = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "streaming-table-reader-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	// Streams the given columns of every row of the table. Returns the number of rows the consumer accepted.
+	public long stream(String tableName, RowConsumer consumer, String... columns) throws Exception {
+		if (columns.length == 0) {
+			throw new IllegalArgumentException("Name the columns to read.");
+		}
+		return streamQuery("SELECT " + String.join(", ", columns) + " FROM " + tableName, Collections.emptyList(), consumer);
+	}
+
+	// Streams the rows of any SELECT, with its ? parameters set from parameters in order.
+	public long streamQuery(final String sql, final List<?> parameters, RowConsumer consumer) throws Exception {
+		if (readers == null) {
+			return read(sql, parameters, consumer);
+		}
+		final BlockingQueue<Row> queue = new ArrayBlockingQueue<Row>(readAheadRows);
+		final AtomicBoolean stopped = new AtomicBoolean();
+		Future<Long> reader = readers.submit(() -> {
+			try {
+				return read(sql, parameters, row -> {
+					while (!queue.offer(row, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+						if (stopped.get()) {
+							return false;
+						}
+					}
+					return true;
+				});
+			} finally {
+				while (!stopped.get() && !queue.offer(END, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					// the consumer is still working through a full queue
+				}
+			}
+		});
+		long accepted = 0;
+		Throwable consumerError = null;
+		try {
+			while (true) {
+				Row row = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				// the queue is final once the reading thread is done, so an empty queue then means it failed
+				if (row == END || (row == null && reader.isDone() && queue.isEmpty())) {
+					break;
+				}
+				if (row != null) {
+					if (!consumer.accept(row)) {
+						break;
+					}
+					accepted++;
+				}
+			}
+		} catch (Throwable e) {
+			consumerError = e;
+			throw e;
+		} finally {
+			// tells the reading thread to stop, and waits for it so that its connection is back in the pool
+			stopped.set(true);
+			try {
+				reader.get();
+			} catch (ExecutionException e) {
+				// the consumer's error is the one the caller is interested in; the reader's is kept with it
+				if (consumerError != null) {
+					consumerError.addSuppressed(e.getCause());
+				} else {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		}
+		return accepted;
+	}
+
+	@Override
+	public void close() {
+		if (readers != null) {
+			readers.shutdownNow();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "StreamingTableReader[fetchSize=" + fetchSize + ", readAheadRows=" + readAheadRows + "]";
+	}
+
+	private long read(String sql, List<?> parameters, RowConsumer consumer) throws Exception {
+		long accepted = 0;
+		try (Connection connection = connectionPool.getConnection()) {
+			connection.setAutoCommit(false);
+			try (PreparedStatement ps = connection.prepareStatement(sql)) {
+				ps.setFetchSize(fetchSize);
+				for (int i = 0; i < parameters.size(); i++) {
+					ps.setObject(i + 1, parameters.get(i));
+				}
+				try (ResultSet rs = ps.executeQuery()) {
+					ResultSetMetaData metaData = rs.getMetaData();
+					int columnCount = metaData.getColumnCount();
+					Map<String, Integer> columns = new HashMap<String, Integer>();
+					for (int i = 1; i <= columnCount; i++) {
+						columns.put(metaData.getColumnLabel(i), i - 1);
+					}
+					while (rs.next()) {
+						Object[] values = new Object[columnCount];
+						for (int i = 0; i < columnCount; i++) {
+							values[i] = rs.getObject(i + 1);
+						}
+						if (!consumer.accept(new Row(columns, values))) {
+							break;
+						}
+						accepted++;
+					}
+				}
+			} finally {
+				// nothing was written, and ending the transaction closes the cursor
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		}
+		return accepted;
+	}
+
+	// Row is one row of a stream, holding the values of the columns that were read. Columns are looked up by label or
+	// by index, starting at 1 like in a ResultSet.
+	public static class Row {
+		private final Map<String, Integer> columns;
+		private final Object[] values;
+
+		private Row(Map<String, Integer> columns, Object[] values) {
+			this.columns = columns;
+			this.values = values;
+		}
+
+		public Object getObject(int index) { return values[index - 1]; }
+
+		public Object getObject(String column) throws SQLException {
+			Integer index = columns.get(column);
+			if (index == null) {
+				throw new SQLException("Column " + column + " was not read.");
+			}
+			return values[index];
+		}
+
+		public String getString(int index) {
+			Object value = getObject(index);
+			return value == null ? null : value.toString();
+		}
+
+		public String getString(String column) throws SQLException {
+			Object value = getObject(column);
+			return value == null ? null : value.toString();
+		}
+
+		public byte[] getBytes(String column) throws SQLException {
+			return (byte[]) getObject(column);
+		}
+
+		public int getColumnCount() { return values.length; }
+	}
+}
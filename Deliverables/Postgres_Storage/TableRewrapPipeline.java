@@ -0,0 +1,570 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// TableRewrapPipeline migrates the encrypted column of a table to new ciphertext, e.g. to the new version of a vault
+// key after a rotation, without loading the table into memory and without starting over when it is interrupted:
+//     * the table is split into partitions: ranges of its integer id column, planned once per job from min(id) and
+//       max(id). The last partition has no upper bound, so rows added while the job runs are covered too.
+//     * partitions are streamed parallelism at a time. Each one is read a batch of batchSize rows at a time, ordered by
+//       id from the checkpoint, with a server-side cursor (autocommit off and setFetchSize, so the driver holds
+//       fetchSize rows at a time). The read transaction ends as soon as the batch is read, before it is transformed,
+//       so no read transaction stays open while the vault works or the job is throttled or paused.
+//     * the batch is handed to the Transformer on a pool of workers threads, e.g. to decrypt and re-encrypt each
+//       payload with the vault. The next batch is only read once this one is written, so the vault sets the pace.
+//     * each batch is written back with batched UPDATEs, in the same transaction as the partition's checkpoint (the
+//       last id done) in the progress table. A row is only updated if its payload has not changed since it was read, so
+//       rows the application rewrites meanwhile are left alone (and counted as conflicts).
+//     * a row the Transformer fails on (e.g. a payload that does not decrypt) is left as it is and recorded, with the
+//       error, in the failures table in the same transaction, and the checkpoint moves past it. One bad row does not
+//       hold up its partition; look into the recorded rows once the job is done.
+// Running the same job again resumes every unfinished partition from its checkpoint. A partition that fails, i.e. on a
+// database error, stops at its last checkpoint and the others go on; run the job again to retry it.
+// The job can be throttled or paused while it runs through its row in the control table, which is checked every
+// CONTROL_REFRESH_MILLIS:
+//     UPDATE rewrapcontrol SET rowspersecond = 200 WHERE job = 'my-job';   -- 0 means no limit
+//     UPDATE rewrapcontrol SET paused = true WHERE job = 'my-job';
+// The tables are created on the first run if they do not exist yet.
+public class TableRewrapPipeline implements AutoCloseable {
+
+	// Transformer returns the new ciphertext of a row, or null to leave the row as it is. keyId is the value of the
+	// row's key id column, or null if there is none.
+	public interface Transformer {
+		String transform(String keyId, String ciphertext) throws Exception;
+	}
+
+	// ProgressListener is told about the progress of the job after every batch, from the partition threads.
+	public interface ProgressListener {
+		void onProgress(Progress progress);
+	}
+
+	public static final int DEFAULT_PARTITIONS = 8;
+	public static final int DEFAULT_PARALLELISM = 2;
+	public static final int DEFAULT_WORKERS = 8;
+	public static final int DEFAULT_FETCH_SIZE = 500;
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final String PROGRESS_TABLE = "rewrapprogress";
+	public static final String CONTROL_TABLE = "rewrapcontrol";
+	public static final String FAILURES_TABLE = "rewrapfailures";
+	// CONTROL_REFRESH_MILLIS is how often the throttle settings are read from the control table.
+	private static final long CONTROL_REFRESH_MILLIS = 1000L;
+
+	private final ConnectionPool connectionPool;
+	private final String job;
+	private final String tableName;
+	private final String idColumn;
+	// keyIdColumn is null if the table has no key id column
+	private final String keyIdColumn;
+	private final String payloadColumn;
+	private final Transformer transformer;
+	private final int partitions;
+	private final int fetchSize;
+	private final int batchSize;
+	private final ExecutorService partitionExecutor;
+	private final ExecutorService workers;
+	private volatile boolean stopped;
+
+	// throttle state, guarded by this
+	private long controlReadMillis;
+	private int rowsPerSecond;
+	private boolean paused;
+	private long nextFreeNanos;
+
+	// counters of the current run
+	private final AtomicLong rowsScanned = new AtomicLong();
+	private final AtomicLong rowsUpdated = new AtomicLong();
+	private final AtomicLong rowsUnchanged = new AtomicLong();
+	private final AtomicLong conflicts = new AtomicLong();
+	private final AtomicLong rowsFailed = new AtomicLong();
+	private final AtomicInteger partitionsDone = new AtomicInteger();
+	private volatile int partitionsTotal;
+	private volatile long startMillis;
+
+	public TableRewrapPipeline(ConnectionPool connectionPool, String job, String tableName, String idColumn, String keyIdColumn,
+			String payloadColumn, Transformer transformer) {
+		this(connectionPool, job, tableName, idColumn, keyIdColumn, payloadColumn, transformer, DEFAULT_PARTITIONS,
+			DEFAULT_PARALLELISM, DEFAULT_WORKERS, DEFAULT_FETCH_SIZE, DEFAULT_BATCH_SIZE);
+	}
+
+	// partitions is only used when the job is planned, on its first run. Every partition being streamed holds one
+	// connection at a time (to read or to write a batch), so the pool needs at least parallelism + 1 connections.
+	public TableRewrapPipeline(ConnectionPool connectionPool, String job, String tableName, String idColumn, String keyIdColumn,
+			String payloadColumn, Transformer transformer, int partitions, int parallelism, int workers, int fetchSize, int batchSize) {
+		if (partitions <= 0 || parallelism <= 0 || workers <= 0 || fetchSize <= 0 || batchSize <= 0) {
+			throw new IllegalArgumentException("TableRewrapPipeline needs positive partition, thread, fetch and batch counts.");
+		}
+		this.connectionPool = connectionPool;
+		this.job = job;
+		this.tableName = tableName;
+		this.idColumn = idColumn;
+		this.keyIdColumn = keyIdColumn;
+		this.payloadColumn = payloadColumn;
+		this.transformer = transformer;
+		this.partitions = partitions;
+		this.fetchSize = fetchSize;
+		this.batchSize = batchSize;
+		this.partitionExecutor = Executors.newFixedThreadPool(parallelism, daemonThreads("table-rewrap-partition-"));
+		this.workers = Executors.newFixedThreadPool(workers, daemonThreads("table-rewrap-worker-"));
+	}
+
+	// Runs the job until every partition is done, has failed, or stop is called. Returns what this run did.
+	public Report run(final ProgressListener listener) throws Exception {
+		stopped = false;
+		startMillis = System.currentTimeMillis();
+		rowsScanned.set(0);
+		rowsUpdated.set(0);
+		rowsUnchanged.set(0);
+		conflicts.set(0);
+		rowsFailed.set(0);
+		createTables();
+		List<Partition> pending = plan();
+		partitionsDone.set(0);
+		partitionsTotal = pending.size();
+		Map<Integer, Future<?>> futures = new LinkedHashMap<Integer, Future<?>>();
+		for (final Partition partition : pending) {
+			futures.put(partition.number, partitionExecutor.submit(() -> {
+				if (stream(partition, listener)) {
+					partitionsDone.incrementAndGet();
+				}
+				return null;
+			}));
+		}
+		Map<Integer, Throwable> failures = new LinkedHashMap<Integer, Throwable>();
+		try {
+			for (Map.Entry<Integer, Future<?>> future : futures.entrySet()) {
+				try {
+					future.getValue().get();
+				} catch (ExecutionException e) {
+					failures.put(future.getKey(), e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			stop();
+			for (Future<?> future : futures.values()) {
+				future.cancel(true);
+			}
+			throw e;
+		}
+		return new Report(getProgress(), failures);
+	}
+
+	// Asks the running job to stop after the batches in progress. Their checkpoints are saved, so the job can be
+	// resumed later.
+	public void stop() {
+		stopped = true;
+	}
+
+	// Changes the throttle of the job, as the UPDATEs above do. Every process running the job picks it up.
+	public void setThrottle(int rowsPerSecond, boolean paused) throws SQLException {
+		createTables();
+		try (Connection connection = connectionPool.getConnection();
+				PreparedStatement ps = connection.prepareStatement("UPDATE " + CONTROL_TABLE + " SET rowspersecond = ?, paused = ? WHERE job = ?")) {
+			ps.setInt(1, rowsPerSecond);
+			ps.setBoolean(2, paused);
+			ps.setString(3, job);
+			ps.executeUpdate();
+		}
+		synchronized (this) {
+			controlReadMillis = 0;
+		}
+	}
+
+	public Progress getProgress() {
+		return new Progress(partitionsTotal, partitionsDone.get(), rowsScanned.get(), rowsUpdated.get(), rowsUnchanged.get(),
+			conflicts.get(), rowsFailed.get(), System.currentTimeMillis() - startMillis);
+	}
+
+	@Override
+	public void close() {
+		stopped = true;
+		partitionExecutor.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "TableRewrapPipeline[job=" + job + ", table=" + tableName + ", " + getProgress() + "]";
+	}
+
+	private void createTables() throws SQLException {
+		try (Connection connection = connectionPool.getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE IF NOT EXISTS " + PROGRESS_TABLE + " (job VARCHAR(255), part INT, lowid BIGINT, highid BIGINT, "
+				+ "lastid BIGINT, rowsdone BIGINT NOT NULL DEFAULT 0, done BOOLEAN NOT NULL DEFAULT false, updated TIMESTAMP, PRIMARY KEY (job, part))");
+			statement.execute("CREATE TABLE IF NOT EXISTS " + CONTROL_TABLE + " (job VARCHAR(255) PRIMARY KEY, "
+				+ "rowspersecond INT NOT NULL DEFAULT 0, paused BOOLEAN NOT NULL DEFAULT false)");
+			statement.execute("CREATE TABLE IF NOT EXISTS " + FAILURES_TABLE + " (job VARCHAR(255), id BIGINT, error TEXT, failed TIMESTAMP, "
+				+ "PRIMARY KEY (job, id))");
+		}
+		try (Connection connection = connectionPool.getConnection();
+				PreparedStatement ps = connection.prepareStatement("INSERT INTO " + CONTROL_TABLE + " (job) VALUES (?) ON CONFLICT DO NOTHING")) {
+			ps.setString(1, job);
+			ps.executeUpdate();
+		}
+	}
+
+	// The unfinished partitions of the job. On the first run the partitions are planned and saved in one transaction;
+	// if another process plans the same job at the same time, the primary key keeps one of the plans.
+	private List<Partition> plan() throws SQLException {
+		try (Connection connection = connectionPool.getConnection()) {
+			if (loadPartitions(connection, true).isEmpty()) {
+				long min;
+				long max;
+				try (Statement statement = connection.createStatement();
+						ResultSet bounds = statement.executeQuery("SELECT min(" + idColumn + "), max(" + idColumn + ") FROM " + tableName)) {
+					bounds.next();
+					min = bounds.getLong(1);
+					max = bounds.getLong(2);
+				}
+				// an empty table still gets one (unbounded) partition, for the rows added later
+				long width = Math.max(1, (max - min) / partitions + 1);
+				connection.setAutoCommit(false);
+				try (PreparedStatement ps = connection.prepareStatement("INSERT INTO " + PROGRESS_TABLE
+						+ " (job, part, lowid, highid, lastid, updated) VALUES (?, ?, ?, ?, ?, now()) ON CONFLICT DO NOTHING")) {
+					for (int part = 0; part < partitions; part++) {
+						long low = min + part * width;
+						boolean last = part == partitions - 1 || low + width > max;
+						ps.setString(1, job);
+						ps.setInt(2, part);
+						ps.setLong(3, low);
+						ps.setLong(4, last ? Long.MAX_VALUE : low + width);
+						// lastid is exclusive: rows with an id above it are left to do
+						ps.setLong(5, low - 1);
+						ps.addBatch();
+						if (last) {
+							break;
+						}
+					}
+					ps.executeBatch();
+					connection.commit();
+				} finally {
+					connection.setAutoCommit(true);
+				}
+			}
+			return loadPartitions(connection, false);
+		}
+	}
+
+	// all of the job's partitions if includeDone, else the unfinished ones
+	private List<Partition> loadPartitions(Connection connection, boolean includeDone) throws SQLException {
+		List<Partition> result = new ArrayList<Partition>();
+		try (PreparedStatement ps = connection.prepareStatement("SELECT part, highid, lastid FROM " + PROGRESS_TABLE
+				+ " WHERE job = ?" + (includeDone ? "" : " AND NOT done") + " ORDER BY part")) {
+			ps.setString(1, job);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					result.add(new Partition(rs.getInt(1), rs.getLong(2), rs.getLong(3)));
+				}
+			}
+		}
+		return result;
+	}
+
+	// Streams one partition from its checkpoint. Returns true if the partition is done, false if the job was stopped.
+	private boolean stream(Partition partition, ProgressListener listener) throws Exception {
+		String columns = idColumn + ", " + (keyIdColumn == null ? "NULL" : keyIdColumn) + ", " + payloadColumn;
+		String select = "SELECT " + columns + " FROM " + tableName + " WHERE " + idColumn + " > ? AND " + idColumn + " < ? ORDER BY "
+			+ idColumn + " LIMIT " + batchSize;
+		long lastId = partition.lastId;
+		while (!stopped) {
+			List<Row> batch = read(select, lastId, partition.highId);
+			if (!batch.isEmpty()) {
+				lastId = process(partition, batch, listener);
+			}
+			if (batch.size() < batchSize) {
+				markDone(partition);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Reads the next batch after lastId, and ends the read transaction before returning it.
+	private List<Row> read(String select, long lastId, long highId) throws SQLException {
+		List<Row> batch = new ArrayList<Row>(batchSize);
+		try (Connection reader = connectionPool.getConnection()) {
+			// postgres only streams a result set through a cursor inside a transaction
+			reader.setAutoCommit(false);
+			try (PreparedStatement ps = reader.prepareStatement(select)) {
+				ps.setFetchSize(fetchSize);
+				ps.setLong(1, lastId);
+				ps.setLong(2, highId);
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						batch.add(new Row(rs.getLong(1), rs.getString(2), rs.getString(3)));
+					}
+				}
+			} finally {
+				reader.rollback();
+				reader.setAutoCommit(true);
+			}
+		}
+		return batch;
+	}
+
+	// Transforms a batch on the workers and writes it back with the partition's checkpoint. Returns the new checkpoint.
+	// Rows the Transformer throws an exception for are recorded as failed; an Error or an interrupt fails the batch.
+	private long process(Partition partition, List<Row> batch, ProgressListener listener) throws Exception {
+		throttle(batch.size());
+		List<Future<String>> results = new ArrayList<Future<String>>(batch.size());
+		for (final Row row : batch) {
+			results.add(workers.submit(() -> transformer.transform(row.keyId, row.payload)));
+		}
+		List<Row> changed = new ArrayList<Row>();
+		List<String> payloads = new ArrayList<String>();
+		List<Row> failed = new ArrayList<Row>();
+		List<String> errors = new ArrayList<String>();
+		try {
+			for (int i = 0; i < batch.size(); i++) {
+				String payload;
+				try {
+					payload = results.get(i).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					}
+					failed.add(batch.get(i));
+					errors.add(String.valueOf(e.getCause()));
+					continue;
+				}
+				if (payload != null && !payload.equals(batch.get(i).payload)) {
+					changed.add(batch.get(i));
+					payloads.add(payload);
+				}
+			}
+		} catch (InterruptedException | Error e) {
+			for (Future<String> result : results) {
+				result.cancel(true);
+			}
+			throw e;
+		}
+		long lastId = batch.get(batch.size() - 1).id;
+		int updated = 0;
+		try (Connection writer = connectionPool.getConnection()) {
+			writer.setAutoCommit(false);
+			try {
+				if (!changed.isEmpty()) {
+					try (PreparedStatement ps = writer.prepareStatement("UPDATE " + tableName + " SET " + payloadColumn + " = ? WHERE "
+							+ idColumn + " = ? AND " + payloadColumn + " = ?")) {
+						for (int i = 0; i < changed.size(); i++) {
+							ps.setString(1, payloads.get(i));
+							ps.setLong(2, changed.get(i).id);
+							ps.setString(3, changed.get(i).payload);
+							ps.addBatch();
+						}
+						for (int count : ps.executeBatch()) {
+							if (count != 0) {
+								updated++;
+							}
+						}
+					}
+				}
+				if (!failed.isEmpty()) {
+					try (PreparedStatement ps = writer.prepareStatement("INSERT INTO " + FAILURES_TABLE + " (job, id, error, failed) "
+							+ "VALUES (?, ?, ?, now()) ON CONFLICT (job, id) DO UPDATE SET error = EXCLUDED.error, failed = EXCLUDED.failed")) {
+						for (int i = 0; i < failed.size(); i++) {
+							ps.setString(1, job);
+							ps.setLong(2, failed.get(i).id);
+							ps.setString(3, errors.get(i));
+							ps.addBatch();
+						}
+						ps.executeBatch();
+					}
+				}
+				try (PreparedStatement ps = writer.prepareStatement("UPDATE " + PROGRESS_TABLE
+						+ " SET lastid = ?, rowsdone = rowsdone + ?, updated = now() WHERE job = ? AND part = ?")) {
+					ps.setLong(1, lastId);
+					ps.setLong(2, batch.size());
+					ps.setString(3, job);
+					ps.setInt(4, partition.number);
+					ps.executeUpdate();
+				}
+				writer.commit();
+			} catch (SQLException | RuntimeException e) {
+				writer.rollback();
+				throw e;
+			} finally {
+				writer.setAutoCommit(true);
+			}
+		}
+		rowsScanned.addAndGet(batch.size());
+		rowsUpdated.addAndGet(updated);
+		rowsUnchanged.addAndGet(batch.size() - changed.size() - failed.size());
+		conflicts.addAndGet(changed.size() - updated);
+		rowsFailed.addAndGet(failed.size());
+		if (listener != null) {
+			listener.onProgress(getProgress());
+		}
+		return lastId;
+	}
+
+	private void markDone(Partition partition) throws SQLException {
+		try (Connection connection = connectionPool.getConnection();
+				PreparedStatement ps = connection.prepareStatement("UPDATE " + PROGRESS_TABLE + " SET done = true, updated = now() WHERE job = ? AND part = ?")) {
+			ps.setString(1, job);
+			ps.setInt(2, partition.number);
+			ps.executeUpdate();
+		}
+	}
+
+	// Waits while the job is paused, then until rows more rows fit under the rate limit. All partitions share the limit.
+	private void throttle(int rows) throws SQLException, InterruptedException {
+		while (true) {
+			long waitNanos;
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				if (now - controlReadMillis >= CONTROL_REFRESH_MILLIS) {
+					readControl();
+					controlReadMillis = now;
+				}
+				if (paused) {
+					waitNanos = -1;
+				} else if (rowsPerSecond <= 0) {
+					return;
+				} else {
+					long nowNanos = System.nanoTime();
+					long start = Math.max(nowNanos, nextFreeNanos);
+					nextFreeNanos = start + TimeUnit.SECONDS.toNanos(rows) / rowsPerSecond;
+					waitNanos = start - nowNanos;
+				}
+			}
+			if (stopped) {
+				return;
+			}
+			if (waitNanos >= 0) {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+				return;
+			}
+			Thread.sleep(CONTROL_REFRESH_MILLIS);
+		}
+	}
+
+	// called with the lock held
+	private void readControl() throws SQLException {
+		try (Connection connection = connectionPool.getConnection();
+				PreparedStatement ps = connection.prepareStatement("SELECT rowspersecond, paused FROM " + CONTROL_TABLE + " WHERE job = ?")) {
+			ps.setString(1, job);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (rs.next()) {
+					rowsPerSecond = rs.getInt(1);
+					paused = rs.getBoolean(2);
+				}
+			}
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	// Partition is a range of ids (lastId, highId) still to do.
+	private static class Partition {
+		private final int number;
+		private final long highId;
+		private final long lastId;
+
+		private Partition(int number, long highId, long lastId) {
+			this.number = number;
+			this.highId = highId;
+			this.lastId = lastId;
+		}
+	}
+
+	private static class Row {
+		private final long id;
+		private final String keyId;
+		private final String payload;
+
+		private Row(long id, String keyId, String payload) {
+			this.id = id;
+			this.keyId = keyId;
+			this.payload = payload;
+		}
+	}
+
+	// Progress counts what the current run has done; rows done in earlier runs of the job are in the progress table.
+	public static class Progress {
+		private final int partitionsTotal;
+		private final int partitionsDone;
+		private final long rowsScanned;
+		private final long rowsUpdated;
+		private final long rowsUnchanged;
+		private final long conflicts;
+		private final long rowsFailed;
+		private final long elapsedMillis;
+
+		private Progress(int partitionsTotal, int partitionsDone, long rowsScanned, long rowsUpdated, long rowsUnchanged, long conflicts,
+				long rowsFailed, long elapsedMillis) {
+			this.partitionsTotal = partitionsTotal;
+			this.partitionsDone = partitionsDone;
+			this.rowsScanned = rowsScanned;
+			this.rowsUpdated = rowsUpdated;
+			this.rowsUnchanged = rowsUnchanged;
+			this.conflicts = conflicts;
+			this.rowsFailed = rowsFailed;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		// the partitions this run started with, i.e. the unfinished ones
+		public int getPartitionsTotal() { return partitionsTotal; }
+		public int getPartitionsDone() { return partitionsDone; }
+		public long getRowsScanned() { return rowsScanned; }
+		public long getRowsUpdated() { return rowsUpdated; }
+		// rows the Transformer left as they were
+		public long getRowsUnchanged() { return rowsUnchanged; }
+		// rows changed by someone else between the read and the write, which were left alone
+		public long getConflicts() { return conflicts; }
+		// rows the Transformer failed on, which were left alone and recorded in the failures table
+		public long getRowsFailed() { return rowsFailed; }
+		public long getElapsedMillis() { return elapsedMillis; }
+
+		public long getRowsPerSecond() {
+			return elapsedMillis == 0 ? 0 : rowsScanned * 1000 / elapsedMillis;
+		}
+
+		@Override
+		public String toString() {
+			return partitionsDone + "/" + partitionsTotal + " partitions done, " + rowsScanned + " rows scanned (" + rowsUpdated
+				 + " updated, " + rowsUnchanged + " unchanged, " + conflicts + " conflicts, " + rowsFailed + " failed), " + (elapsedMillis / 1000) + "s elapsed, "
+				+ getRowsPerSecond() + " rows/s";
+		}
+	}
+
+	// Report is the outcome of a run: the partitions that failed, with their errors. Rows that failed are in the
+	// failures table.
+	public static class Report {
+		private final Progress progress;
+		private final Map<Integer, Throwable> failures;
+
+		private Report(Progress progress, Map<Integer, Throwable> failures) {
+			this.progress = progress;
+			this.failures = failures;
+		}
+
+		public Progress getProgress() { return progress; }
+		public Map<Integer, Throwable> getFailures() { return failures; }
+
+		@Override
+		public String toString() {
+			return "Report[" + progress + ", failed partitions=" + failures.keySet() + "]";
+		}
+	}
+}
@@ -40,6 +40,8 @@ fi
 # This line details the explicit libraries compiled
 LIBRARIES="lib/oci-java-sdk-full-1.12.0.jar:lib/javax.activation-1.2.0.jar:lib/slf4j-jdk14-1.7.30.jar:lib/third-party/lib/*"
 LIBRARIES2="lib/postgresql-42.2.9.jar"
+# This line details the project folders whose helper classes (e.g. EnvelopeCrypto, ConnectionPool) are compiled alongside the program
+SOURCES="KMS_Crypto:Postgres_Storage"
 
 compartmentId=""
 vaultId=""
@@ -113,16 +115,16 @@ FOLDER="${FOLDERS[$1]}"
 FILENAME="${FILENAMES[$1]}"
 
 echo -e "\n\033[1;30mCompiling $FILENAME...\033[0m\n"
-echo -e "Command: javac -cp $LIBRARIES $FOLDER/$FILENAME"'.java'
-javac -cp $LIBRARIES $FOLDER/$FILENAME'.java' || {
+echo -e "Command: javac -cp $LIBRARIES -sourcepath $FOLDER:$SOURCES $FOLDER/$FILENAME"'.java'
+javac -cp $LIBRARIES -sourcepath $FOLDER:$SOURCES $FOLDER/$FILENAME'.java' || {
 	# if the javac command fails, this happens instead
 	echo -e "\033[1;31mERROR: compilation failed. Please view above logs and fix the compilation issues.\033[0m"
 	exit
 }
 
 echo -e "\n\033[1;30mRunning $FILENAME...\033[0m\n"
-echo -e "Command: java -cp $FOLDER:$LIBRARIES $FILENAME $compartmentId $vaultId $region"
-java -cp $FOLDER:$LIBRARIES $FILENAME $compartmentId $vaultId $region || { # if example* is not the arg then the command will execute as if there were no command line arguments
+echo -e "Command: java -cp $FOLDER:$SOURCES:$LIBRARIES $FILENAME $compartmentId $vaultId $region"
+java -cp $FOLDER:$SOURCES:$LIBRARIES $FILENAME $compartmentId $vaultId $region || { # if example* is not the arg then the command will execute as if there were no command line arguments
 	echo -e "\033[1;31mERROR: program has crashed. Please fix the bug(s) before trying again.\033[0m"
 	exit
 }